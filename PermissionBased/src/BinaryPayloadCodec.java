@@ -0,0 +1,73 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * A concrete implementation of the IPayloadCodec interface.
+ *
+ * This class formats payloads using a fixed layout of 12 bytes, all in network byte order:
+ *      offset 0    2 bytes     magic number, the characters 'RA'
+ *      offset 2    1 byte      version of this layout
+ *      offset 3    1 byte      payload type, the ordinal of Payload.Type
+ *      offset 4    4 bytes     villager index
+ *      offset 8    4 bytes     ticket
+ *
+ * The magic number and version let a receiver reject bytes that aren't a payload, and let this layout change in future
+ * without confusing older villagers. The magic number can never be mistaken for JSON, which always starts with a brace.
+ */
+public class BinaryPayloadCodec implements IPayloadCodec {
+    public static final short MAGIC = 0x5241;
+    public static final byte VERSION = 1;
+    public static final int NUM_PAYLOAD_BYTES = 12;
+    private static final Payload.Type[] TYPES = Payload.Type.values();
+
+    /**
+     * Converts the payload to the fixed binary layout
+     * @param payload the payload to convert
+     * @return an array of bytes representing the payload
+     */
+    @Override
+    public byte[] encode(Payload payload) {
+        byte[] bytes = new byte[NUM_PAYLOAD_BYTES];
+        ByteBuffer.wrap(bytes)
+                .putShort(MAGIC)
+                .put(VERSION)
+                .put((byte)payload._type.ordinal())
+                .putInt(payload._villagerIndex)
+                .putInt(payload._ticket);
+        return bytes;
+    }
+
+    /**
+     * Fills a payload object from bytes in the fixed binary layout. Nothing is allocated.
+     * @param buffer a buffer containing the received bytes
+     * @param into the payload object to fill
+     * @throws IllegalArgumentException if the bytes are too short, or have the wrong magic number, version, or type
+     */
+    @Override
+    public void decode(ByteBuffer buffer, Payload into) {
+        if (buffer.remaining() < NUM_PAYLOAD_BYTES || buffer.getShort() != MAGIC) {
+            throw new IllegalArgumentException("Received bytes are not a binary payload");
+        }
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported binary payload version " + version);
+        }
+        int type = buffer.get();
+        if (type < 0 || type >= TYPES.length) {
+            throw new IllegalArgumentException("Unknown binary payload type " + type);
+        }
+        into._villagerIndex = buffer.getInt();
+        into._ticket = buffer.getInt();
+        into._type = TYPES[type];
+    }
+}
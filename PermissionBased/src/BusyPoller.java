@@ -0,0 +1,121 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class trades a CPU core for latency. There's one instance per JVM, and only when the user asks for it.
+ *
+ * A thread that blocks inside the kernel waiting for a datagram has to be woken up when one arrives, and scheduled back
+ * onto a core. On the loopback interface that wake-up costs more than the datagram took to arrive. When busy polling,
+ * a receiving thread asks for a message without blocking, over and over, with Thread.onSpinWait() between attempts so
+ * that the core knows it's spinning. Only once the spin budget has passed without a message does it fall back to
+ * blocking, so an idle villager doesn't burn a core forever. The budget starts again every time a message arrives.
+ *
+ * The messengers and the event loop know how to ask their own channel for a message, and how to block on it. This
+ * class knows how long to spin for, and keeps count of the time spent spinning versus the time spent blocked, so that
+ * the Main class can report whether the budget suits the traffic.
+ */
+public class BusyPoller {
+    /**
+     * Something a receiving thread can poll without blocking, and block on when polling isn't worth it anymore
+     */
+    interface Pollable {
+        /**
+         * Takes whatever is ready, without blocking
+         * @return true if something was taken, false if nothing was ready
+         * @throws IOException if the channel suffers a communication issue
+         */
+        boolean poll() throws IOException;
+
+        /**
+         * Blocks until something is probably ready to be polled
+         * @throws IOException if the channel suffers a communication issue
+         */
+        void block() throws IOException;
+    }
+
+    private final long _spinBudgetNanos;
+    private final AtomicLong _spinningNanos;
+    private final AtomicLong _idleNanos;
+    private final AtomicLong _numSpinningPolls;
+    private final AtomicLong _numBlockingPolls;
+
+    /**
+     * Constructs a poller with no time counted yet
+     * @param spinBudgetMicros how long to spin before blocking, in microseconds
+     */
+    public BusyPoller(long spinBudgetMicros) {
+        _spinBudgetNanos = spinBudgetMicros * 1000;
+        _spinningNanos = new AtomicLong();
+        _idleNanos = new AtomicLong();
+        _numSpinningPolls = new AtomicLong();
+        _numBlockingPolls = new AtomicLong();
+    }
+
+    /**
+     * Polls until something is taken. Spins until the budget has passed, then alternates between blocking and polling.
+     * Called by any receiving thread.
+     * @param pollable the channel to poll
+     * @throws IOException if the channel suffers a communication issue
+     */
+    public void pollUntilReady(Pollable pollable) throws IOException {
+        long start = System.nanoTime();
+        while (!pollable.poll()) {
+            long now = System.nanoTime();
+            if (now - start >= _spinBudgetNanos) {
+                _spinningNanos.addAndGet(now - start);
+                do {
+                    pollable.block();
+                } while (!pollable.poll());
+                _idleNanos.addAndGet(System.nanoTime() - now);
+                _numBlockingPolls.incrementAndGet();
+                return;
+            }
+            Thread.onSpinWait();
+        }
+        _spinningNanos.addAndGet(System.nanoTime() - start);
+        _numSpinningPolls.incrementAndGet();
+    }
+
+    /**
+     * Returns how long receiving threads have spent spinning, whether or not the spin found anything
+     * @return the time spent spinning so far, in nanoseconds
+     */
+    public long getSpinningNanos() {
+        return _spinningNanos.get();
+    }
+
+    /**
+     * Returns how long receiving threads have spent blocked, after their spin budget had passed
+     * @return the time spent blocked so far, in nanoseconds
+     */
+    public long getIdleNanos() {
+        return _idleNanos.get();
+    }
+
+    /**
+     * Returns how many polls found something before the spin budget had passed, i.e. never blocked
+     * @return the number of polls that never blocked so far
+     */
+    public long getNumSpinningPolls() {
+        return _numSpinningPolls.get();
+    }
+
+    /**
+     * Returns how many polls had to fall back to blocking
+     * @return the number of polls that blocked so far
+     */
+    public long getNumBlockingPolls() {
+        return _numBlockingPolls.get();
+    }
+}
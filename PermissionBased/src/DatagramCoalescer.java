@@ -0,0 +1,254 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class packs several payloads that are headed for the same node into one datagram. There's one instance per JVM,
+ * owned by the LocalRouter.
+ *
+ * Several villagers within this node often send to villagers within the same other node at about the same moment,
+ * e.g. when a villager exits the Mini Mart and acknowledges every villager it deferred. Each of those payloads used to
+ * cost a datagram, i.e. a system call to send and another to receive. Now they're appended to a batch for the
+ * destination node instead, and the batch is sent as one datagram when any of these happen:
+ *      the next payload won't fit within the batch
+ *      a villager signals the end of a burst of messages, via IMessenger.flush()
+ *      the flush window has passed since the first payload was appended
+ *
+ * The flush window bounds the delay a payload can suffer. It's measured in microseconds, because that's the scale of
+ * a round trip over the loopback interface.
+ *
+ * A batch is sent to the port of the villager its first payload is for. That villager's LocalRoutingMessenger spots
+ * the batch and hands each payload to the villager it's for, through memory. Each batch is laid out in network byte
+ * order as:
+ *      offset 0    2 bytes     magic number, the characters 'RC'
+ *      offset 2    1 byte      number of entries
+ *      then for each entry:
+ *                  2 bytes     destination villager's port
+ *                  2 bytes     sending villager's port
+ *                  2 bytes     payload length
+ *                  n bytes     the payload, exactly as it'd be sent on its own
+ *
+ * The magic number can't be mistaken for JSON, which starts with a brace, nor a binary payload, which starts with 'RA'.
+ * A batch with only one entry is pointless, so that entry is sent on its own instead.
+ */
+public class DatagramCoalescer {
+    public static final short MAGIC = 0x5243;
+    private static final int NUM_HEADER_BYTES = 3;
+    private static final int NUM_ENTRY_HEADER_BYTES = 6;
+    private static final int MAX_BATCH_BYTES = UdpMessenger.NUM_RECEIVE_BUFFER_BYTES -
+            ReliableMessenger.NUM_DATA_HEADER_BYTES;     // leaves room for the reliable layer's header
+    private static final int MAX_NUM_ENTRIES = 255;
+    private final int _portStart;
+    private final long _flushWindowMicros;
+    private final HashMap<Integer, Batch> _batches;     // keyed by the port of the first villager within each node
+    private final ScheduledExecutorService _timer;
+    private final ReentrantLock _lock;      // not a monitor, so that a virtual thread isn't pinned while it sends
+
+    /**
+     * The payloads waiting to be sent to one node. Running a batch sends it; that's what the timer does once the flush
+     * window has passed.
+     */
+    private class Batch implements Runnable {
+        private final ByteBuffer _buffer;
+        private LocalRoutingMessenger _sender;
+        private InetSocketAddress _destination;
+        private byte[] _firstPayloadBytes;
+        private int _numEntries;
+        private boolean _isFlushScheduled;
+
+        /**
+         * Constructs an empty batch
+         */
+        private Batch() {
+            _buffer = ByteBuffer.allocate(MAX_BATCH_BYTES);
+        }
+
+        /**
+         * Sends this batch. Only called by the timer's thread.
+         */
+        @Override
+        public void run() {
+            _lock.lock();
+            try {
+                _isFlushScheduled = false;
+                flush(this);
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+            }
+            finally {
+                _lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Determines whether a received message is a batch of payloads rather than a single payload
+     * @param message a received message
+     * @return true if the message is a batch, false otherwise
+     */
+    public static boolean isBatch(Message message) {
+        ByteBuffer bytes = message.getReceivedBytes();
+        return bytes != null && bytes.remaining() >= NUM_HEADER_BYTES && bytes.getShort(bytes.position()) == MAGIC;
+    }
+
+    /**
+     * Hands each payload within a received batch to the villager within this node that it's for. The batch message
+     * itself isn't released; that's up to whoever received it.
+     * @param batch a received message for which isBatch() returned true
+     * @param router finds the villagers within this node
+     * @param localAddress the address the villagers within this node are bound to
+     */
+    public static void unpack(Message batch, LocalRouter router, InetAddress localAddress) {
+        ByteBuffer bytes = batch.getReceivedBytes();
+        int position = bytes.position() + 2;
+        int numEntries = bytes.get(position++) & 0xFF;
+        for (int i = 0; i < numEntries && position + NUM_ENTRY_HEADER_BYTES <= bytes.limit(); ++i) {
+            int destinationPort = bytes.getChar(position);
+            int senderPort = bytes.getChar(position + 2);
+            int length = bytes.getChar(position + 4);
+            position += NUM_ENTRY_HEADER_BYTES;
+            if (position + length > bytes.limit()) {
+                break;  // a truncated batch. the rest is lost, the same as a lost datagram.
+            }
+
+            LocalRoutingMessenger destination = router.find(localAddress, destinationPort);
+            if (destination != null) {
+                Payload payload = Payload.makeEmpty();
+                Payload.decode(bytes.slice(position, length), payload);
+                destination.deliver(Message.makeReceivedMessage(batch.getAddress(), senderPort, payload));
+            }
+            position += length;
+        }
+    }
+
+    /**
+     * Constructs a coalescer with no batches. The timer's thread is a daemon so that it never keeps the JVM alive.
+     * @param portStart the first value in a contiguous range of port values
+     * @param flushWindowMicros how long a payload may wait for others to join it, in microseconds
+     */
+    public DatagramCoalescer(int portStart, long flushWindowMicros) {
+        _portStart = portStart;
+        _flushWindowMicros = flushWindowMicros;
+        _batches = new HashMap<>();
+        _timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "DatagramCoalescer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _lock = new ReentrantLock();
+    }
+
+    /**
+     * Appends a payload to the batch for its destination node. Payloads too large for a batch aren't appended; the
+     * batch for their node is sent first though, so that the caller can send the payload itself without overtaking
+     * anything it sent earlier.
+     * @param sender the messenger of the sending villager, which may be used to send the batch
+     * @param message contains the destination address and the data to send
+     * @return true if the payload was appended, false if the caller must send it itself
+     * @throws IOException if a batch that had to be sent first cannot be sent
+     */
+    public boolean add(LocalRoutingMessenger sender, Message message) throws IOException {
+        byte[] payloadBytes = message.getPayloadBytes();
+        _lock.lock();
+        try {
+            Batch batch = _batches.computeIfAbsent(findFirstPort(message.getPort()), firstPort -> new Batch());
+            if (NUM_HEADER_BYTES + NUM_ENTRY_HEADER_BYTES + payloadBytes.length > MAX_BATCH_BYTES) {
+                flush(batch);
+                return false;
+            }
+            if (batch._buffer.remaining() < NUM_ENTRY_HEADER_BYTES + payloadBytes.length ||
+                    batch._numEntries == MAX_NUM_ENTRIES) {
+                flush(batch);
+            }
+
+            if (batch._numEntries == 0) {
+                batch._sender = sender;
+                batch._destination = new InetSocketAddress(message.getAddress(), message.getPort());
+                batch._firstPayloadBytes = payloadBytes;
+                batch._buffer.clear().putShort(MAGIC).put((byte)0);
+                if (!batch._isFlushScheduled) {
+                    batch._isFlushScheduled = true;
+                    _timer.schedule(batch, _flushWindowMicros, TimeUnit.MICROSECONDS);
+                }
+            }
+            batch._buffer.putChar((char)message.getPort())
+                    .putChar((char)sender.getLocalPort())
+                    .putChar((char)payloadBytes.length)
+                    .put(payloadBytes);
+            ++batch._numEntries;
+            return true;
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Sends every batch that has at least one payload in it. Called at the end of a burst of messages.
+     * @throws IOException if a batch cannot be sent
+     */
+    public void flushAll() throws IOException {
+        _lock.lock();
+        try {
+            for (Batch batch : _batches.values()) {
+                flush(batch);
+            }
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Sends the batch, or its only payload if there's just the one, then empties it. The timer isn't cancelled; if it
+     * goes off while a newer batch is waiting, that batch is simply sent a little early. The lock is held while the
+     * batch is sent, so that a payload never overtakes one that was appended before it.
+     * @param batch the batch to send
+     * @throws IOException if the batch cannot be sent
+     */
+    private void flush(Batch batch) throws IOException {
+        if (batch._numEntries == 0) {
+            return;
+        }
+        byte[] bytes;
+        if (batch._numEntries == 1) {
+            bytes = batch._firstPayloadBytes;
+        }
+        else {
+            batch._buffer.put(2, (byte)batch._numEntries);
+            bytes = Arrays.copyOf(batch._buffer.array(), batch._buffer.position());
+        }
+        batch._numEntries = 0;
+        batch._firstPayloadBytes = null;
+        batch._sender.sendThroughSocket(Message.makeFrame(batch._destination, bytes));
+    }
+
+    /**
+     * Works out the port of the first villager within the node a villager belongs to
+     * @param port the villager's port
+     * @return the port of the first villager within the villager's node
+     */
+    private int findFirstPort(int port) {
+        int index = port - _portStart;
+        return _portStart + index - index % Villager.NUM_VILLAGERS_PER_NODE;
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+
+/**
+ * This interface represents the contract between a messenger and the code that processes the messages it receives.
+ *
+ * Most messengers are happy for a thread to sit inside their receive() method. Event driven messengers, such as the
+ * SelectorMessenger, instead read the message themselves then hand it over through this interface. This means a villager
+ * does not need a thread of its own just to wait for messages.
+ */
+public interface IMessageHandler {
+    int MAX_BATCH_SIZE = 64;    // the most messages handed to handleMessages() at once
+
+    /**
+     * Processes one received message. This is called by whichever thread received the message.
+     * @param message a message received from another villager
+     * @throws IOException if a reply to the message is unable to be sent
+     */
+    void handleMessage(Message message) throws IOException;
+
+    /**
+     * Processes a batch of received messages, in the order given. Messengers that have several messages waiting at once
+     * call this instead of handleMessage(), so that the handler can do per-batch work once rather than once per
+     * message. By default each message is simply passed to handleMessage().
+     * @param messages the messages received from other villagers. Only the first count elements are used.
+     * @param count how many messages are in the batch, at most MAX_BATCH_SIZE
+     * @throws IOException if a reply to a message is unable to be sent
+     */
+    default void handleMessages(Message[] messages, int count) throws IOException {
+        for (int i = 0; i < count; ++i) {
+            handleMessage(messages[i]);
+        }
+    }
+
+    /**
+     * Returns whether the handler no longer wants to receive messages. Messengers stop delivering messages to the
+     * handler once this returns true.
+     * @return true if the handler no longer wants to receive messages, false otherwise
+     */
+    boolean mustShutdown();
+}
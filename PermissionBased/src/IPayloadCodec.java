@@ -0,0 +1,36 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * This interface represents the wire format of a payload. It lets the Main class choose how payloads are formatted
+ * without the Message and Payload classes needing to know.
+ *
+ * Implementations must be thread safe. One instance is shared by every villager within this node.
+ */
+public interface IPayloadCodec {
+    /**
+     * Converts the payload to a form suitable for sending over a socket
+     * @param payload the payload to convert
+     * @return an array of bytes representing the payload
+     */
+    byte[] encode(Payload payload);
+
+    /**
+     * Fills a payload object with fields decoded from received bytes. The bytes between the buffer's position and limit
+     * are consumed. Every field is overwritten, so the same payload object can be reused for each received message.
+     * @param buffer a buffer containing the received bytes
+     * @param into the payload object to fill
+     * @throws IllegalArgumentException if the bytes are not a payload in this format
+     */
+    void decode(ByteBuffer buffer, Payload into);
+}
@@ -17,7 +17,7 @@
  * In this case that method is the stopRequestingMiniMartAccess() method below. This method ensures that a villager
  * leaving the critical section is always signalled to the software.
  *
- * This class is implemented by the Villager class. That class also extends Thread hence the need to not name the
+ * This class is implemented by the Villager class. That class used to extend Thread hence the need to not name the
  * methods simply start() and stop().
  */
 public interface IRequestsMiniMartAccess {
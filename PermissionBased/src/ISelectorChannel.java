@@ -0,0 +1,28 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+
+/**
+ * This interface represents anything with a channel registered with the SelectorEventLoop. The object is attached to
+ * its SelectionKey, and the event loop calls it whenever its channel is ready.
+ */
+public interface ISelectorChannel {
+    /**
+     * Does whatever the channel is ready for, e.g. reading messages, sending queued messages, or accepting a
+     * connection. Only called by the event loop thread.
+     * @param key the key whose channel is ready
+     * @param messagePool a pool, owned by the event loop, of messages to read received bytes into
+     * @throws IOException if the channel suffers a communication issue
+     */
+    void serviceChannel(SelectionKey key, MessagePool messagePool) throws IOException;
+}
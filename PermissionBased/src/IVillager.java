@@ -14,7 +14,7 @@
  * receiving thread has very little state for itself. It delegates almost all state reading/writing decisions through
  * this interface.
  *
- * The trade-off, therefore, is the implementation of this interface will need to use synchronised methods so that the
+ * The trade-off, therefore, is the implementation of this interface will need to lock within its methods so that the
  * receiving thread can make a meaningful contribution to the Ricart-Agrawala algorithm.
  */
 public interface IVillager {
@@ -82,4 +82,12 @@ public interface IVillager {
      * @return whether the villager has finished shopping
      */
     boolean hasNotFinishedShopping();
+
+    /**
+     * Runs the updates while holding this villager's lock, so that a whole batch of received messages is applied within
+     * one critical region instead of taking the lock once per call. The Villager thread is woken at most once, after
+     * the updates have run, no matter how many acknowledgements or finished shopping messages they recorded.
+     * @param updates calls to the methods of this interface, made by the receiving thread
+     */
+    void applyAtomically(Runnable updates);
 }
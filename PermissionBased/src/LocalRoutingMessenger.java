@@ -0,0 +1,408 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A concrete implementation of the IMessenger interface that wraps another messenger.
+ *
+ * Messages for villagers within this node are placed directly into the destination villager's in-memory queue. The
+ * payload object is handed over as is, so it's never encoded or decoded. Messages for villagers within other nodes are
+ * sent by the wrapped messenger, as before.
+ *
+ * Receiving depends upon the wrapped messenger:
+ *      Event driven (e.g. the SelectorMessenger)
+ *          The wrapped messenger delivers datagrams to the Receiver on its own thread. Local messages are handed to
+ *          that same thread, which drains the in-memory queue into the Receiver.
+ *
+ *      Blocking (e.g. the UdpMessenger)
+ *          A socket pump task, run by the villager executor, sits inside the wrapped messenger's receive() method and
+ *          moves each datagram into the in-memory queue. The villager's Receiver then takes every message, local or
+ *          not, from that queue. When villagers run on virtual threads, so do the socket pumps. When a BusyPoller
+ *          is given, the Receiver polls the queue until the spin budget has passed, and only then waits on it, so
+ *          that a message that arrives during the spin doesn't have to wake the Receiver.
+ *
+ * Either way, a villager's Receiver is handed every message that's waiting in the queue as one batch, up to
+ * IMessageHandler.MAX_BATCH_SIZE messages at a time.
+ *
+ * The in-memory queue is a PriorityInbox, so the Receiver is handed messages that can let its villager into the Mini
+ * Mart ahead of those that can't. When the wrapped messenger is event driven, the messages it delivers are queued too,
+ * and the queue is drained once the event loop has finished delivering, so that there's something to choose between.
+ */
+public class LocalRoutingMessenger implements IMessenger, BusyPoller.Pollable {
+    private final LocalRouter _router;
+    private final IMessenger _socketMessenger;
+    private final InetAddress _localAddress;
+    private final int _localPort;
+    private final Executor _receivingThread;
+    private final Executor _villagerExecutor;
+    private final BusyPoller _busyPoller;
+    private final PriorityInbox _inbox;
+    private final Runnable _drainInboxTask;
+    private final AtomicBoolean _isDrainScheduled;
+    private final Message[] _drainBatch;        // only used by the wrapped messenger's receiving thread
+    private Message _polledMessage;             // only used by the Receiver thread while busy polling
+    private volatile IMessageHandler _handler;
+    private volatile PeerTable _peerTable;
+
+    /**
+     * A table of villager addresses, split into the villagers within this node and the villagers within other nodes.
+     * Never changed once built, so it's safe to share between threads.
+     */
+    static class PeerTable {
+        private final InetSocketAddress[] _peers;
+        private final LocalRoutingMessenger[] _localPeers;
+        private final InetSocketAddress[] _remotePeers;
+
+        /**
+         * Determines whether this is the split of the passed in table
+         * @param peers a table of villager addresses
+         * @return true if this was split from exactly that array object, false otherwise
+         */
+        boolean isSplitOf(InetSocketAddress[] peers) {
+            return _peers == peers;
+        }
+
+        /**
+         * Constructs a table. Only called by LocalRouter.
+         * @param peers the table as the villager built it
+         * @param localPeers the messengers of the villagers within this node
+         * @param remotePeers the addresses of the villagers within other nodes
+         */
+        PeerTable(InetSocketAddress[] peers, LocalRoutingMessenger[] localPeers, InetSocketAddress[] remotePeers) {
+            _peers = peers;
+            _localPeers = localPeers;
+            _remotePeers = remotePeers;
+        }
+    }
+
+    /**
+     * Constructs a messenger that routes local messages through memory. Only called by LocalRouter.
+     * @param router knows the messengers of every villager within this node
+     * @param socketMessenger the messenger that carries messages to other nodes
+     * @param localAddress the address this villager is bound to
+     * @param port the port this villager is bound to
+     * @param receivingThread runs tasks on the wrapped messenger's receiving thread, or null if it's not event driven
+     * @param villagerExecutor runs the socket pump task if the wrapped messenger isn't event driven
+     * @param busyPoller spins on the in-memory queue before waiting on it, or null to wait straight away
+     */
+    LocalRoutingMessenger(LocalRouter router, IMessenger socketMessenger, InetAddress localAddress, int port,
+                          Executor receivingThread, Executor villagerExecutor, BusyPoller busyPoller) {
+        _router = router;
+        _socketMessenger = socketMessenger;
+        _localAddress = localAddress;
+        _localPort = port;
+        _receivingThread = receivingThread;
+        _villagerExecutor = villagerExecutor;
+        _busyPoller = busyPoller;
+        _inbox = new PriorityInbox();
+        _drainInboxTask = this::drainInbox;     // made once, not once per message
+        _isDrainScheduled = new AtomicBoolean();
+        _drainBatch = new Message[IMessageHandler.MAX_BATCH_SIZE];
+    }
+
+    /**
+     * Hands the message to the destination villager's queue if it's within this node, otherwise sends it via the
+     * wrapped messenger.
+     * @param message contains the destination address and the data to send
+     * @throws IOException if the wrapped messenger suffers a communication issue
+     */
+    @Override
+    public void send(Message message) throws IOException {
+        LocalRoutingMessenger destination = _router.find(message.getAddress(), message.getPort());
+        if (destination == null) {
+            _router.sendToOtherNode(this, message);
+        }
+        else {
+            destination.deliver(Message.makeLocalMessage(_localAddress, _localPort, message));
+        }
+    }
+
+    /**
+     * Broadcasts the payload through the LocalRouter if it has a multicast group. Otherwise the payload object is handed
+     * to each villager within this node, and the wrapped messenger sends it to the villagers within other nodes. The
+     * wrapped messenger is free to encode the payload once for all of them.
+     * @param payload the data to send to every other villager
+     * @param peers the addresses of villagers, which include the sender when it's one of the node's shared table
+     * @param skip the index within the table of the villager to leave out. The sender is always left out anyway,
+     *             because it's within this node, and no other villager within this node is ever skipped.
+     * @throws IOException if the wrapped messenger suffers a communication issue
+     */
+    @Override
+    public void broadcast(Payload payload, InetSocketAddress[] peers, int skip) throws IOException {
+        if (_router.broadcast(this, payload)) {
+            return;
+        }
+        PeerTable peerTable = _peerTable;
+        if (peerTable == null || !peerTable.isSplitOf(peers)) {
+            peerTable = _peerTable = _router.split(peers);     // only once, because the caller reuses its table
+        }
+        for (LocalRoutingMessenger destination : peerTable._localPeers) {
+            if (destination != this) {
+                destination.deliver(Message.makeReceivedMessage(_localAddress, _localPort, payload));
+            }
+        }
+        if (peerTable._remotePeers.length > 0) {
+            _router.broadcastToOtherNodes(this, payload, peerTable._remotePeers);
+        }
+    }
+
+    /**
+     * Sends any batches of payloads the LocalRouter is holding back.
+     * @throws IOException if a batch cannot be sent
+     */
+    @Override
+    public void flush() throws IOException {
+        _router.flush();
+    }
+
+    /**
+     * Takes the next message from the in-memory queue, blocking until there is one. When busy polling, the queue is
+     * polled until the spin budget has passed before blocking. Only used when the wrapped messenger isn't event driven.
+     * @return the next message, from either a villager within this node or another node
+     * @throws IOException if the calling thread is interrupted while waiting
+     */
+    @Override
+    public Message receive() throws IOException {
+        if (_busyPoller == null) {
+            return takeFromInbox();
+        }
+        _busyPoller.pollUntilReady(this);
+        Message message = _polledMessage;
+        _polledMessage = null;
+        return message;
+    }
+
+    /**
+     * Takes a message from the in-memory queue if there is one, without blocking. Only called by the BusyPoller, on
+     * the Receiver thread.
+     * @return true if a message was taken, false otherwise
+     */
+    @Override
+    public boolean poll() {
+        if (_polledMessage == null) {
+            _polledMessage = _inbox.poll();
+        }
+        return _polledMessage != null;
+    }
+
+    /**
+     * Blocks until there's a message in the in-memory queue. The message is taken straight away, and the poll() that
+     * follows hands it over. Only called by the BusyPoller, on the Receiver thread.
+     * @throws IOException if the calling thread is interrupted while waiting
+     */
+    @Override
+    public void block() throws IOException {
+        _polledMessage = takeFromInbox();
+    }
+
+    /**
+     * Takes the next message from the in-memory queue if there is one. Only used when the wrapped messenger isn't event
+     * driven.
+     * @return the next message, or null if the queue is empty
+     */
+    @Override
+    public Message receiveNow() {
+        return _inbox.poll();
+    }
+
+    /**
+     * Starts the wrapped messenger receiving. If it's event driven then this villager's messages are delivered by the
+     * wrapped messenger's thread. Otherwise the villager executor is given a socket pump task that moves datagrams into
+     * the in-memory queue, and the caller must loop over receive().
+     * @param handler the object that processes received messages
+     * @return true if messages will be delivered to the handler, false if the caller must use receive()
+     * @throws IOException if the wrapped messenger suffers a communication issue
+     */
+    @Override
+    public boolean startReceiving(IMessageHandler handler) throws IOException {
+        // this villager's socket is read for as long as the JVM runs, even once the villager has finished. a batch
+        // that's sent to this villager's port may carry payloads for other villagers within this node that haven't.
+        IMessageHandler unpackingHandler = new IMessageHandler() {
+            @Override
+            public void handleMessage(Message message) throws IOException {
+                if (DatagramCoalescer.isBatch(message)) {
+                    DatagramCoalescer.unpack(message, _router, _localAddress);
+                }
+                else if (!handler.mustShutdown()) {
+                    message.hold();             // released again once the inbox has been drained
+                    deliver(message);
+                }
+            }
+
+            @Override
+            public boolean mustShutdown() {
+                return false;
+            }
+        };
+        if (_socketMessenger.startReceiving(unpackingHandler)) {
+            if (_receivingThread == null) {
+                throw new IllegalStateException("An event driven messenger needs a receiving thread for local messages");
+            }
+            _handler = handler;
+            _receivingThread.execute(_drainInboxTask);  // local messages may have arrived before now
+            return true;
+        }
+
+        _villagerExecutor.execute(() -> pumpSocket(handler));
+        return false;
+    }
+
+    /**
+     * The socket pump. Sits inside the wrapped messenger's receive() method and moves each datagram into the in-memory
+     * queue, unpacking batches as it goes. A datagram that can't be decoded is printed and dropped, so that one bad
+     * datagram doesn't stop this villager receiving. Only a communication issue with the socket ends the pump.
+     * @param handler the object given to startReceiving(), which decides whether messages are still wanted
+     */
+    private void pumpSocket(IMessageHandler handler) {
+        try {
+            while (true) {
+                Message message = _socketMessenger.receive();   // blocks until a datagram arrives
+                try {
+                    if (DatagramCoalescer.isBatch(message)) {
+                        DatagramCoalescer.unpack(message, _router, _localAddress);
+                        message.release();
+                    }
+                    else if (handler.mustShutdown()) {
+                        message.release();
+                    }
+                    else {
+                        _inbox.add(message);    // decodes before queuing, so a bad message is never queued
+                    }
+                }
+                catch (RuntimeException e) {
+                    e.printStackTrace();
+                    message.release();
+                }
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * The address the villager is bound to.
+     * @return an address on the local machine
+     */
+    @Override
+    public InetAddress getMyAddress() {
+        return _localAddress;
+    }
+
+    /**
+     * Returns the same tiebreaker value as the wrapped messenger, so that every villager agrees on it whether or not
+     * their messages are routed locally.
+     * @return a value unique to this villager
+     */
+    @Override
+    public int getTiebreakerValue() {
+        return _socketMessenger.getTiebreakerValue();
+    }
+
+    /**
+     * Returns the port this villager is bound to
+     * @return a port number
+     */
+    int getLocalPort() {
+        return _localPort;
+    }
+
+    /**
+     * Sends a message via the wrapped messenger, bypassing the LocalRouter. Called by the LocalRouter and the
+     * DatagramCoalescer.
+     * @param message contains the destination address and the data to send
+     * @throws IOException if the wrapped messenger suffers a communication issue
+     */
+    void sendThroughSocket(Message message) throws IOException {
+        _socketMessenger.send(message);
+    }
+
+    /**
+     * Broadcasts a payload via the wrapped messenger, bypassing the LocalRouter. Only called by the LocalRouter.
+     * @param payload the data to send
+     * @param peers the addresses of villagers within other nodes
+     * @throws IOException if the wrapped messenger suffers a communication issue
+     */
+    void broadcastThroughSocket(Payload payload, InetSocketAddress[] peers) throws IOException {
+        _socketMessenger.broadcast(payload, peers, SKIP_NOBODY);
+    }
+
+    /**
+     * Returns the queue of messages waiting for this villager's Receiver, so that the depth of each lane can be read
+     * @return the in-memory queue
+     */
+    PriorityInbox getInbox() {
+        return _inbox;
+    }
+
+    /**
+     * Places a message into the in-memory queue. Called by the sending villager's thread for a message from within
+     * this node, or by the wrapped messenger's receiving thread for a message from another node. Only one task to drain
+     * the queue is waiting to run at any time.
+     * @param message the message to deliver
+     */
+    void deliver(Message message) {
+        _inbox.add(message);
+        if (_receivingThread != null && _handler != null && _isDrainScheduled.compareAndSet(false, true)) {
+            _receivingThread.execute(_drainInboxTask);
+        }
+    }
+
+    /**
+     * Passes every queued message to the handler, most urgent first, in batches of up to MAX_BATCH_SIZE. A batch the
+     * handler fails on is printed, and the batches after it are still passed on. Only runs on the wrapped messenger's
+     * receiving thread.
+     */
+    private void drainInbox() {
+        _isDrainScheduled.set(false);   // anything queued from now on schedules another pass
+        while (!_handler.mustShutdown()) {
+            int count = 0;
+            Message message;
+            while (count < _drainBatch.length && (message = _inbox.poll()) != null) {
+                _drainBatch[count++] = message;
+            }
+            if (count == 0) {
+                break;
+            }
+            try {
+                _handler.handleMessages(_drainBatch, count);
+            }
+            catch (IOException | RuntimeException e) {
+                e.printStackTrace();
+            }
+            finally {
+                for (int i = 0; i < count; ++i) {
+                    _drainBatch[i].release();   // gives back the messages held by the wrapped messenger's handler
+                    _drainBatch[i] = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the next message from the in-memory queue, blocking until there is one
+     * @return the next message
+     * @throws IOException if the calling thread is interrupted while waiting
+     */
+    private Message takeFromInbox() throws IOException {
+        try {
+            return _inbox.take();
+        }
+        catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for a message", e);
+        }
+    }
+}
@@ -0,0 +1,60 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * This class recycles the message objects that received datagrams are read into.
+ *
+ * Before this class existed every received datagram allocated a byte array, a payload, and a message. Under a storm
+ * of requests that's a lot of garbage, and the collections show up as pauses in the middle of the algorithm. Now each
+ * pooled message owns a direct ByteBuffer and a payload object that are reused for every datagram read into it. Once
+ * the Receiver has handled the message it's released back to this pool, ready for the next datagram.
+ *
+ * If the pool is empty then a new message is made, and if the pool is full then a released message is simply dropped.
+ * This way the pool never blocks, and the number of messages settles at however many are in flight at once, which is
+ * normally only one per receiving thread.
+ *
+ * An ArrayBlockingQueue is used rather than a ConcurrentLinkedQueue because the latter allocates a node every time a
+ * message is released, which would defeat the purpose.
+ */
+public class MessagePool {
+    private final ArrayBlockingQueue<Message> _freeMessages;
+    private final int _numBufferBytes;
+
+    /**
+     * Constructs an empty pool. Messages are made on demand.
+     * @param maxFreeMessages the most messages this pool will hold on to
+     * @param numBufferBytes the size of each message's receive buffer, i.e. the largest datagram it can hold
+     */
+    public MessagePool(int maxFreeMessages, int numBufferBytes) {
+        _freeMessages = new ArrayBlockingQueue<>(maxFreeMessages);
+        _numBufferBytes = numBufferBytes;
+    }
+
+    /**
+     * Takes a message out of the pool, or makes a new one if the pool is empty. The caller must call release() on the
+     * message once it's finished with.
+     * @return a message ready to have a datagram read into it
+     */
+    public Message acquire() {
+        Message message = _freeMessages.poll();
+        return message != null ? message : Message.makePooledMessage(this, _numBufferBytes);
+    }
+
+    /**
+     * Puts the message back into the pool. Only called by Message.release().
+     * @param message a message that was returned by acquire()
+     */
+    void release(Message message) {
+        _freeMessages.offer(message);
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class holds the tables that every villager within a node would otherwise keep a copy of. There's one instance
+ * per JVM, shared by every villager within the node.
+ *
+ * A table sized by the number of villagers within the simulation, kept by each villager within the node, takes memory
+ * in proportion to both numbers multiplied together. Kept once per node, it only takes memory in proportion to the
+ * number of villagers within the simulation. That's only possible for facts that are the same whichever villager
+ * learns them: where every villager lives, and which villagers have finished shopping. The replies to a villager's
+ * ticket are its own, so they stay with the villager.
+ *
+ * The address table is never changed once built, so it's read without a lock. The finished shopping set is written by
+ * every villager's Receiver, so it's protected by a lock of its own. A villager may hold its own lock while it takes
+ * this one, but never the other way around, so the two can't deadlock.
+ */
+public class NodeTables {
+    private final InetSocketAddress[] _villagerAddresses;
+    private final VillagerBits _villagerHasFinishedShopping;
+    private final ReentrantLock _lock;
+
+    /**
+     * Constructs the tables, with no villager finished shopping
+     * @param address the IP address every villager is bound to
+     * @param portStart the first value in a contiguous range of port values
+     * @param totalVillagers how many villagers are part of the simulation
+     */
+    public NodeTables(InetAddress address, int portStart, int totalVillagers) {
+        _villagerAddresses = new InetSocketAddress[totalVillagers];
+        for (int i = 0; i < totalVillagers; ++i) {
+            _villagerAddresses[i] = new InetSocketAddress(address, portStart + i);
+        }
+        _villagerHasFinishedShopping = new VillagerBits(totalVillagers);
+        _lock = new ReentrantLock();
+    }
+
+    /**
+     * Returns the address of every villager, including the caller. Villagers pass the table to
+     * IMessenger.broadcast() along with their own index, so that they're left out.
+     * @return the address of every villager, indexed by villager
+     */
+    public InetSocketAddress[] getVillagerAddresses() {
+        return _villagerAddresses;
+    }
+
+    /**
+     * Records that a villager has finished shopping. Called by any villager's Receiver, and by a villager that has
+     * just finished.
+     * @param i the index of the villager
+     */
+    public void recordFinishedShopping(int i) {
+        _lock.lock();
+        try {
+            _villagerHasFinishedShopping.set(i);
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Determines whether every villager within the simulation has finished shopping
+     * @return true if every villager has finished shopping, false otherwise
+     */
+    public boolean hasEveryVillagerFinishedShopping() {
+        _lock.lock();
+        try {
+            return _villagerHasFinishedShopping.isEveryBitSet();    // 64 villagers at a time
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+}
@@ -9,11 +9,13 @@
  *
  */
 
-import com.google.gson.Gson;
+import java.nio.ByteBuffer;
 
 /**
- * This class represents the data that are sent from villager to villager within a message. So that parsing of the data
- * is unambiguous, I'm formatting the data as JSON.
+ * This class represents the data that are sent from villager to villager within a message. How the data are formatted
+ * on the wire is decided by an IPayloadCodec. The JsonPayloadCodec is used by default because it's human-readable,
+ * which helps when debugging. The far cheaper BinaryPayloadCodec can be chosen on the command line. Received data are
+ * decoded with whichever codec matches them, so villagers using different codecs can still talk to each other.
  *
  * To give the data some context, the following types were created:
  *      TICKET_NUMBER
@@ -38,6 +40,18 @@ public class Payload {
     public enum Type { TICKET_NUMBER, ACKNOWLEDGEMENT, FINISHED_SHOPPING }
     public Type _type;
 
+    private static final IPayloadCodec BINARY_CODEC = new BinaryPayloadCodec();
+    private static final IPayloadCodec JSON_CODEC = new JsonPayloadCodec();
+    private static volatile IPayloadCodec _codec = JSON_CODEC;
+
+    /**
+     * Chooses the format used for all payloads sent by this node. This is expected to be called once, at startup.
+     * @param useJSON true to format payloads as JSON, false to use the compact binary layout
+     */
+    public static void useJSON(boolean useJSON) {
+        _codec = useJSON ? JSON_CODEC : BINARY_CODEC;
+    }
+
     /**
      * Builds a payload that informs the receiver of our ticket number
      * @param sender the villager whose details are packed into the payload
@@ -65,6 +79,14 @@ public class Payload {
         return new Payload(sender.getMyId().getIndex(), sender.getTicket(), Type.FINISHED_SHOPPING);
     }
 
+    /**
+     * Builds an empty payload for an IPayloadCodec to fill in with the fields it decodes
+     * @return a new payload object
+     */
+    public static Payload makeEmpty() {
+        return new Payload(0, 0, null);
+    }
+
     /**
      * This is private to force usage of the above public static methods. Their names dictate my intentions, a
      * constructor does not.
@@ -79,21 +101,31 @@ public class Payload {
     }
 
     /**
-     * Converts the payload to minified JSON
-     * @return a minified JSON string representing the payload
+     * Overwrites every field of this payload with the fields of another
+     * @param other the payload to copy
      */
-    public String toJSON() {
-        Gson jsonParser = new Gson();
-        return jsonParser.toJson(this);
+    public void copyFrom(Payload other) {
+        _villagerIndex = other._villagerIndex;
+        _ticket = other._ticket;
+        _type = other._type;
     }
 
     /**
-     * Builds a payload object from text formatted as JSON
-     * @param jsonText the text to parse as JSON
-     * @return a new payload object
+     * Converts the payload to bytes using the format chosen by useJSON()
+     * @return an array of bytes representing the payload
+     */
+    public byte[] encode() {
+        return _codec.encode(this);
+    }
+
+    /**
+     * Fills an existing payload object from received bytes. JSON always starts with a brace, and binary payloads never
+     * do, so the format is detected from the first byte. Filling an existing object is how pooled messages avoid
+     * allocating a payload per datagram.
+     * @param buffer a buffer containing the received bytes
+     * @param into the payload object to fill
      */
-    public static Payload fromJSON(String jsonText) {
-        Gson jsonParser = new Gson();
-        return jsonParser.fromJson(jsonText, Payload.class);
+    public static void decode(ByteBuffer buffer, Payload into) {
+        (JsonPayloadCodec.isJSON(buffer) ? JSON_CODEC : BINARY_CODEC).decode(buffer, into);
     }
 }
@@ -0,0 +1,148 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class is the queue of messages waiting for one villager's Receiver. Each villager has their own instance, owned
+ * by its LocalRoutingMessenger.
+ *
+ * A plain queue hands messages to the Receiver strictly in the order they arrived. During a burst of tickets, e.g.
+ * just after every villager has exited the Mini Mart, the one acknowledgement that would let this villager in waits
+ * behind every ticket that arrived before it. So the messages are split into two lanes instead:
+ *      GRANT       messages that can let this villager into the Mini Mart, i.e. see Message.isGrant()
+ *      REQUEST     everything else
+ *
+ * The grant lane is always taken from first, except that a waiting request is never passed over more than
+ * MAX_NUM_CONSECUTIVE_GRANTS times in a row. That stops a steady stream of grants from starving requests, which other
+ * villagers are waiting on a reply to. Each lane is still in arrival order.
+ *
+ * To the Receiver, taking a grant ahead of an earlier request looks exactly as if the request had spent a little longer
+ * in the network. The algorithm never relied upon messages arriving in the order they were sent, because UDP doesn't
+ * promise that either, so this is safe.
+ *
+ * The number of messages waiting in each lane is available, along with the most that have ever waited at once.
+ */
+public class PriorityInbox {
+    public enum Lane { GRANT, REQUEST }
+    private static final int MAX_NUM_CONSECUTIVE_GRANTS = 8;
+    private final ArrayDeque<Message> _grants;
+    private final ArrayDeque<Message> _requests;
+    private int _numConsecutiveGrants;
+    private int _maxNumGrants;
+    private int _maxNumRequests;
+    private final ReentrantLock _lock;
+    private final Condition _notEmpty;
+
+    /**
+     * Constructs an empty inbox
+     */
+    public PriorityInbox() {
+        _grants = new ArrayDeque<>();
+        _requests = new ArrayDeque<>();
+        _lock = new ReentrantLock();
+        _notEmpty = _lock.newCondition();
+    }
+
+    /**
+     * Appends the message to its lane, and wakes the Receiver thread if it's waiting. The message is classified
+     * before the lock is taken, because that may decode its payload.
+     * @param message the message to queue
+     */
+    public void add(Message message) {
+        boolean isGrant = message.isGrant();
+        _lock.lock();
+        try {
+            if (isGrant) {
+                _grants.add(message);
+                _maxNumGrants = Math.max(_maxNumGrants, _grants.size());
+            }
+            else {
+                _requests.add(message);
+                _maxNumRequests = Math.max(_maxNumRequests, _requests.size());
+            }
+            _notEmpty.signalAll();    // Unblock waiting threads
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next message without waiting
+     * @return the next message, or null if both lanes are empty
+     */
+    public Message poll() {
+        _lock.lock();
+        try {
+            if (!_grants.isEmpty() && (_requests.isEmpty() || _numConsecutiveGrants < MAX_NUM_CONSECUTIVE_GRANTS)) {
+                ++_numConsecutiveGrants;
+                return _grants.remove();
+            }
+            _numConsecutiveGrants = 0;
+            return _requests.poll();
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next message, blocking until there is one. This method implements the Monitor pattern.
+     * @return the next message
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public Message take() throws InterruptedException {
+        _lock.lock();
+        try {
+            // Monitor both lanes
+            while (_grants.isEmpty() && _requests.isEmpty()) {
+                _notEmpty.await();
+            }
+            return poll();
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many messages are waiting in a lane right now
+     * @param lane the lane to count
+     * @return the number of messages waiting
+     */
+    public int getDepth(Lane lane) {
+        _lock.lock();
+        try {
+            return lane == Lane.GRANT ? _grants.size() : _requests.size();
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the most messages that have ever waited in a lane at once
+     * @param lane the lane to ask about
+     * @return the lane's high water mark
+     */
+    public int getMaxDepth(Lane lane) {
+        _lock.lock();
+        try {
+            return lane == Lane.GRANT ? _maxNumGrants : _maxNumRequests;
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+}
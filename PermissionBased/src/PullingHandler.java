@@ -0,0 +1,72 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * A concrete implementation of the IMessageHandler interface.
+ *
+ * Event driven messengers, such as the SelectorMessenger, hand each message to a handler on the thread that read it.
+ * This handler simply queues the messages, which lets such a messenger implement receive() for a caller that would
+ * rather loop over it. The messages are held rather than copied, so the caller must release() each one it receives.
+ */
+public class PullingHandler implements IMessageHandler {
+    private final LinkedBlockingQueue<Message> _messages;
+
+    /**
+     * Constructs an empty queue of messages.
+     */
+    public PullingHandler() {
+        _messages = new LinkedBlockingQueue<>();
+    }
+
+    /**
+     * Queues the message for take() or poll(). Called by whichever thread received the message.
+     * @param message a message received from another villager
+     */
+    @Override
+    public void handleMessage(Message message) {
+        message.hold();     // the messenger's release() leaves it out of the pool, the caller of receive() releases it
+        _messages.add(message);
+    }
+
+    /**
+     * Messages are queued for as long as the messenger delivers them.
+     * @return false, always
+     */
+    @Override
+    public boolean mustShutdown() {
+        return false;
+    }
+
+    /**
+     * Takes the next queued message, blocking until there is one.
+     * @return the next message received from another villager
+     * @throws IOException if the calling thread is interrupted while waiting
+     */
+    public Message take() throws IOException {
+        try {
+            return _messages.take();
+        }
+        catch (InterruptedException e) {
+            throw new IOException("Interrupted while waiting for a message", e);
+        }
+    }
+
+    /**
+     * Takes the next queued message if there is one.
+     * @return the next message received from another villager, or null if the queue is empty
+     */
+    public Message poll() {
+        return _messages.poll();
+    }
+}
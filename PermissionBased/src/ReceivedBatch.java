@@ -0,0 +1,69 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+
+/**
+ * The pooled messages an event loop has read for one villager, but hasn't handed to that villager's handler yet.
+ *
+ * An event loop reads every message that's waiting before it hands any of them over, so that the handler is called
+ * once per batch via handleMessages(), rather than once per message. Only used by the event loop thread.
+ */
+class ReceivedBatch {
+    private final Message[] _messages;
+    private int _count;
+
+    /**
+     * Constructs an empty batch
+     */
+    ReceivedBatch() {
+        _messages = new Message[IMessageHandler.MAX_BATCH_SIZE];
+    }
+
+    /**
+     * Determines whether there's anything to hand over
+     * @return true if the batch holds no messages, false otherwise
+     */
+    boolean isEmpty() {
+        return _count == 0;
+    }
+
+    /**
+     * Appends a pooled message to the batch. The batch releases it once it's been handed over.
+     * @param message a received message
+     * @return true if the batch is now full, and must be handed over before anything else is appended
+     */
+    boolean add(Message message) {
+        _messages[_count++] = message;
+        return _count == _messages.length;
+    }
+
+    /**
+     * Hands every message to the handler as one batch, unless the handler has shut down, then releases them. The
+     * messages are released and the batch emptied even if the handler fails.
+     * @param handler the object that processes the received messages
+     * @throws IOException if a reply to a message is unable to be sent
+     */
+    void handOver(IMessageHandler handler) throws IOException {
+        try {
+            if (_count > 0 && !handler.mustShutdown()) {
+                handler.handleMessages(_messages, _count);
+            }
+        }
+        finally {
+            for (int i = 0; i < _count; ++i) {
+                _messages[i].release();
+                _messages[i] = null;
+            }
+            _count = 0;
+        }
+    }
+}
@@ -10,6 +10,7 @@
  */
 
 import java.io.IOException;
+import java.util.Arrays;
 
 /**
  * This class provides the ability for a villager to receive messages. Each villager has their own instance of this
@@ -18,16 +19,28 @@ import java.io.IOException;
  * The receiving logic runs in its own thread because the call to receive from the IMessenger reference blocks until a
  * message is received. Therefore, the ability for any villager to avoid starvation is up to the other villagers.
  *
+ * When the messenger is event driven (see IMessenger.startReceiving()) this thread is never started. The messenger's
+ * own thread calls handleMessage() or handleMessages() instead.
+ *
+ * Messages are handled in batches. Every message that's already waiting is taken, then the whole batch is applied to
+ * the villager within one critical region (see IVillager.applyAtomically()), and the villager is woken at most once.
+ * Replies are only sent after the villager's lock has been released. A flood of acknowledgements therefore costs one
+ * lock round-trip and one wakeup, rather than several of each per message.
+ *
  * This behaviour has the side effect that all villagers must stay resident, and active, so that all villagers can
  * finish their 3 shopping sessions.
  *
  * The best example of this is the waitForOtherVillagersToFinishShopping() method within the Receiver class. This only
  * exists to send messages to other villagers that have not finished shopping.
  */
-public class Receiver extends Thread {
+public class Receiver implements Runnable, IMessageHandler {
     private final IMessenger _messenger;
     private final IVillager _villager;
-    private boolean _mustShutdown;
+    private final Message[] _batch;             // only used by whichever thread is handling messages
+    private final boolean[] _mustReply;
+    private final Runnable _applyBatchTask;
+    private int _batchCount;
+    private volatile boolean _mustShutdown;
 
     /**
      * Constructs a Receiver object by saving the passed in references for later use.
@@ -37,31 +50,121 @@ public class Receiver extends Thread {
     public Receiver(IMessenger messenger, IVillager villager) {
         _messenger = messenger;
         _villager = villager;
+        _batch = new Message[MAX_BATCH_SIZE];
+        _mustReply = new boolean[MAX_BATCH_SIZE];
+        _applyBatchTask = this::applyBatch;     // made once, not once per batch
         _mustShutdown = false;
     }
 
     /**
-     * Sets an internal shutdown flag to true. This method is synchronised because the expectation is that the Villager
-     * thread and the Receiver thread will read/write this value concurrently.
+     * Sets an internal shutdown flag to true. The flag is volatile because the expectation is that the Villager thread
+     * and the Receiver thread will read/write this value concurrently.
      */
-    public synchronized void shutdown() {
+    public void shutdown() {
         _mustShutdown = true;
     }
 
     /**
-     * Reads the current value of an internal shutdown flag. This method is synchronised because the expectation is that
-     * the Villager thread and the Receiver thread will read/write this value concurrently.
+     * Reads the current value of an internal shutdown flag. The flag is volatile because the expectation is that the
+     * Villager thread and the Receiver thread will read/write this value concurrently.
      */
-    private synchronized boolean mustShutdown() {
+    @Override
+    public boolean mustShutdown() {
         return _mustShutdown;
     }
 
     /**
-     * This method is the core receiving logic for a villager. All received messages are processed by this method, and
-     * there is no other code in this project receiving messages.
+     * This method is the receiving loop for a villager whose messenger blocks inside receive(). Once a message has been
+     * received, every other message that's already waiting is taken too, up to MAX_BATCH_SIZE. The batch is passed to
+     * handleMessages(), then each message is released back to its pool.
      *
      * This method ends when an exception is thrown, or the Villager thread uses the public shutdown() method. The
      * Villager thread will only call that method when it is certain that all villagers have finished shopping.
+     */
+    @Override
+    public void run() {
+        Message[] received = new Message[MAX_BATCH_SIZE];
+        try {
+            while (!mustShutdown()) {
+                int count = 0;
+                received[count++] = _messenger.receive();     // blocks until a message arrives
+                try {
+                    Message message;
+                    while (count < MAX_BATCH_SIZE && (message = _messenger.receiveNow()) != null) {
+                        received[count++] = message;
+                    }
+                    handleMessages(received, count);
+                }
+                finally {
+                    for (int i = 0; i < count; ++i) {
+                        received[i].release();
+                        received[i] = null;
+                    }
+                }
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Processes one received message, as a batch of one.
+     *
+     * The message may be pooled, so nothing called from here may hold on to it after this method returns.
+     * @param from a message received from another villager
+     * @throws IOException if a reply to the message is unable to be sent
+     */
+    @Override
+    public void handleMessage(Message from) throws IOException {
+        _batch[0] = from;       // copying the batch onto itself costs nothing, and nothing is allocated
+        handleMessages(_batch, 1);
+    }
+
+    /**
+     * Applies a batch of received messages to the villager within one critical region, then sends the replies the
+     * batch calls for. Batches larger than MAX_BATCH_SIZE are split.
+     *
+     * The messages may be pooled, so nothing called from here may hold on to them after this method returns.
+     * @param messages the messages received from other villagers. Only the first count elements are used.
+     * @param count how many messages are in the batch
+     * @throws IOException if a reply to a message is unable to be sent
+     */
+    @Override
+    public void handleMessages(Message[] messages, int count) throws IOException {
+        for (int start = 0; start < count; start += MAX_BATCH_SIZE) {
+            _batchCount = Math.min(MAX_BATCH_SIZE, count - start);
+            System.arraycopy(messages, start, _batch, 0, _batchCount);
+            try {
+                _villager.applyAtomically(_applyBatchTask);     // the villager's lock is held in here
+
+                // the lock has been released, so the villager is never made to wait while we send
+                for (int i = 0; i < _batchCount; ++i) {
+                    if (_mustReply[i]) {
+                        replyToVillagersMessage(_batch[i]);
+                    }
+                }
+            }
+            finally {
+                Arrays.fill(_batch, 0, _batchCount, null);
+                Arrays.fill(_mustReply, 0, _batchCount, false);
+            }
+        }
+    }
+
+    /**
+     * Applies every message within the current batch, in order, and notes which of them must be replied to. Only run
+     * by the villager's applyAtomically() method, i.e. while holding the villager's lock.
+     */
+    private void applyBatch() {
+        for (int i = 0; i < _batchCount; ++i) {
+            _mustReply[i] = applyMessage(_batch[i]);
+        }
+    }
+
+    /**
+     * This method is the core receiving logic for a villager. All received messages are processed by this method, and
+     * there is no other code in this project processing received messages.
      *
      * Roughly half of the Ricart-Agrawala algorithm is implemented here. The other half is within the Villager class.
      *
@@ -69,64 +172,57 @@ public class Receiver extends Thread {
      *
      * The not finished shopping state must perform all Ricart-Agrawala logic provided by this class. It must record
      * acknowledgements, record finished shopping messages, update the largest known ticket number, record other
-     * villager addresses, and send our own acknowledgements.
+     * villager addresses, and decide whether to send our own acknowledgements.
      *
      * When this villager is in the finished shopping state, the only task we need to perform is responding to
      * finished shopping messages from other villagers. This prevents other villagers from becoming starved. If we did
      * any of the other aforementioned tasks, then we would confuse the Ricart-Agrawala algorithm's logic.
+     *
+     * The reply isn't sent from here, because the villager's lock is held. The caller sends it once the lock is free.
+     * @param from a message received from another villager
+     * @return true if the sender must be replied to, false otherwise
      */
-    @Override
-    public void run() {
-        try {
-            while (!mustShutdown()) {
-                Message from = _messenger.receive();        // blocks until a message arrives
+    private boolean applyMessage(Message from) {
+        if (_villager.hasNotFinishedShopping()) {
+            // this code block represents the not finished shopping state
 
-                if (_villager.hasNotFinishedShopping()) {
-                    // this code block represents the not finished shopping state
+            if (from.isAcknowledgement()) {
+                // recording this state allows the Villager thread to enter the mini mart.
+                // do NOT send a response now. we don't want the sender to enter the mini mart yet.
+                _villager.recordAcknowledgement(from);
+            }
+            else if (from.isFinishedShopping()) {
+                // recording this state allows the Villager thread to end.
+                // do NOT send a response now. we don't want the sender to enter the mini mart yet.
+                _villager.recordFinishedShopping(from);
+            }
+            else if (from.isTicketNumber()) {
+                // if this is the largest ticket number we've seen then save it
+                _villager.updateLargestTicket(from);
 
-                    if (from.isAcknowledgement()) {
-                        // recording this state allows the Villager thread to enter the mini mart.
-                        // do NOT send a response now. we don't want the sender to enter the mini mart yet.
-                        _villager.recordAcknowledgement(from);
-                    }
-                    else if (from.isFinishedShopping()) {
-                        // recording this state allows the Villager thread to end.
-                        // do NOT send a response now. we don't want the sender to enter the mini mart yet.
-                        _villager.recordFinishedShopping(from);
-                    }
-                    else if (from.isTicketNumber()) {
-                        // if this is the largest ticket number we've seen then save it
-                        _villager.updateLargestTicket(from);
-
-                        if (_villager.isNotRequestingMiniMartAccess() || _villager.doesVillagerShopBeforeMe(from)) {
-                            // by replying to the sender we're giving our consent for them to enter the mini mart before
-                            // us. if all other villagers do the same, then the sender can happily enter the mini mart.
-                            replyToVillagersMessage(from);
-                        }
-                        else {
-                            // we're either currently requesting mini mart access, or we should enter the mini mart
-                            // before the sender, therefore, do NOT send a response now. we don't want the sender to
-                            // enter the mini mart yet.
-                            _villager.recordVillagersAddress(from.makeReplyToAddress());
-                        }
-                    }
+                if (_villager.isNotRequestingMiniMartAccess() || _villager.doesVillagerShopBeforeMe(from)) {
+                    // by replying to the sender we're giving our consent for them to enter the mini mart before
+                    // us. if all other villagers do the same, then the sender can happily enter the mini mart.
+                    return true;
                 }
-                else {
-                    // this code block represents the finished shopping state
 
-                    if (from.isFinishedShopping()) {
-                        // recording this state allows the Villager thread to end
-                        _villager.recordFinishedShopping(from);
-                    }
-
-                    // provide a message so that the sender is not starved
-                    replyToVillagersMessage(from);
-                }
+                // we're either currently requesting mini mart access, or we should enter the mini mart
+                // before the sender, therefore, do NOT send a response now. we don't want the sender to
+                // enter the mini mart yet.
+                _villager.recordVillagersAddress(from.makeReplyToAddress());
             }
+            return false;
         }
-        catch (Exception e) {
-            e.printStackTrace();
+
+        // this code block represents the finished shopping state
+
+        if (from.isFinishedShopping()) {
+            // recording this state allows the Villager thread to end
+            _villager.recordFinishedShopping(from);
         }
+
+        // provide a message so that the sender is not starved
+        return true;
     }
 
     /**
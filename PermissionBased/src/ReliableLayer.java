@@ -0,0 +1,119 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class makes the transport reliable. There's one instance per JVM.
+ *
+ * Both algorithms assume that a message is never lost. UDP makes no such promise, and when a burst of messages
+ * overflows a socket's receive buffer the kernel quietly drops the rest. One lost acknowledgement leaves a villager
+ * waiting for replies forever, and one lost token leaves nobody able to shop. This class wraps each messenger built by
+ * the transport's factory in a ReliableMessenger, which numbers every message, and sends it again until it's
+ * acknowledged. See ReliableMessenger for the details.
+ *
+ * This class is itself a messenger factory, so it slots in underneath the LocalRouter. Messages between villagers
+ * within this node never touch a socket, therefore they're never numbered.
+ *
+ * One timer thread looks for messages that need sending again on behalf of every messenger. The counters are shared
+ * by every messenger too, so that the Main class can report them for the whole node.
+ */
+public class ReliableLayer implements IMessengerFactory {
+    private static final long TICK_MICROS = 1000;
+    private final IMessengerFactory _socketMessengerFactory;
+    private final CopyOnWriteArrayList<ReliableMessenger> _messengers;
+    private final ScheduledExecutorService _timer;
+    private final AtomicLong _numRetransmits;
+    private final AtomicLong _numDuplicates;
+
+    /**
+     * Constructs the layer and starts its timer. The timer's thread is a daemon so that it never keeps the JVM alive.
+     * @param socketMessengerFactory builds the messengers that carry messages to other nodes
+     */
+    public ReliableLayer(IMessengerFactory socketMessengerFactory) {
+        _socketMessengerFactory = socketMessengerFactory;
+        _messengers = new CopyOnWriteArrayList<>();
+        _numRetransmits = new AtomicLong();
+        _numDuplicates = new AtomicLong();
+        _timer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "ReliableLayer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        _timer.scheduleAtFixedRate(this::retransmitExpired, TICK_MICROS, TICK_MICROS, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Builds a reliable messenger for one villager, around a messenger built by the transport's factory
+     * @param localAddress an address on the local machine to bind to
+     * @param port a port on the local machine to bind to
+     * @return a new messenger object
+     * @throws IOException if the wrapped messenger cannot be bound to the address and port
+     */
+    @Override
+    public IMessenger makeMessenger(InetAddress localAddress, int port) throws IOException {
+        ReliableMessenger messenger = new ReliableMessenger(this, _socketMessengerFactory.makeMessenger(localAddress,
+                port));
+        _messengers.add(messenger);
+        return messenger;
+    }
+
+    /**
+     * Returns how many messages have been sent again because they weren't acknowledged in time
+     * @return the number of retransmissions so far
+     */
+    public long getNumRetransmits() {
+        return _numRetransmits.get();
+    }
+
+    /**
+     * Returns how many messages were received more than once, and dropped
+     * @return the number of duplicates so far
+     */
+    public long getNumDuplicates() {
+        return _numDuplicates.get();
+    }
+
+    /**
+     * Counts one retransmission. Only called by ReliableMessenger.
+     */
+    void countRetransmit() {
+        _numRetransmits.incrementAndGet();
+    }
+
+    /**
+     * Counts one duplicate. Only called by ReliableMessenger.
+     */
+    void countDuplicate() {
+        _numDuplicates.incrementAndGet();
+    }
+
+    /**
+     * Asks every messenger to send again whatever hasn't been acknowledged in time. Only called by the timer thread.
+     */
+    private void retransmitExpired() {
+        long now = System.nanoTime();
+        for (ReliableMessenger messenger : _messengers) {
+            try {
+                messenger.retransmitExpired(now);
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,405 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A concrete implementation of the IMessenger interface that wraps another messenger, and makes it reliable.
+ *
+ * Every message sent to a villager is given the next sequence number for that villager, and is kept until that
+ * villager acknowledges it. Each messenger acknowledges every message it receives straight away. The acknowledgement
+ * names the sequence number that caused it, the highest sequence number below which everything has arrived, and a
+ * bitmap of which of the next 64 sequence numbers have arrived too, i.e. a selective acknowledgement. A message that's
+ * been received before is acknowledged again, in case the first acknowledgement was lost, but it's not passed on.
+ *
+ * A message that isn't acknowledged within the retransmission timeout (RTO) is sent again, and the timeout for that
+ * villager is doubled, up to a limit of one second. A message is never given up on, because the receiver's cumulative
+ * acknowledgement can't pass a sequence number that's missing; giving up on one would stall that villager's window for
+ * good. The timeout adapts to each villager the same way TCP's does (RFC 6298); a smoothed round trip
+ * time plus four times its variance. Round trips of messages that were sent more than once aren't measured, because
+ * there's no knowing which copy was acknowledged (Karn's algorithm).
+ *
+ * The bitmap only reaches 64 sequence numbers above the last one received in order, so no more than 64 messages to a
+ * villager are ever unacknowledged at once. Any more are queued, and sent as acknowledgements make room for them. That
+ * way a receiver never has to give up on a missing sequence number to make room for a later one. A frame that arrives
+ * beyond the receiver's window can only come from a sender whose numbering doesn't match, e.g. one left over from an
+ * earlier run, so it's dropped without being acknowledged.
+ *
+ * Each frame starts with a header in network byte order:
+ *      offset 0    2 bytes     magic number, the characters 'RR'
+ *      offset 2    1 byte      the frame type, DATA or ACK
+ * A DATA frame follows this with:
+ *      offset 3    4 bytes     sequence number
+ *      offset 7    the payload, exactly as it'd be sent without this class
+ * An ACK frame follows this with:
+ *      offset 3    4 bytes     the sequence number being acknowledged
+ *      offset 7    4 bytes     every sequence number up to and including this one has arrived
+ *      offset 11   8 bytes     bit n is set if the sequence number 1 + n above that has arrived
+ *
+ * The magic number can't be mistaken for JSON, which starts with a brace, nor a binary payload, which starts with 'RA'.
+ * Anything received without the magic number is passed on as is.
+ */
+public class ReliableMessenger implements IMessenger {
+    public static final short MAGIC = 0x5252;
+    public static final int NUM_DATA_HEADER_BYTES = 7;
+    private static final int NUM_ACK_BYTES = 19;
+    private static final byte DATA = 0;
+    private static final byte ACK = 1;
+    private static final int WINDOW_SIZE = 64;
+    private static final long INITIAL_RTO_NANOS = 20_000_000;
+    private static final long MIN_RTO_NANOS = 2_000_000;
+    private static final long MAX_RTO_NANOS = 1_000_000_000;
+    private final ReliableLayer _layer;
+    private final IMessenger _messenger;
+    private final ConcurrentHashMap<InetSocketAddress, Peer> _peers;
+
+    /**
+     * A message that's waiting to be acknowledged
+     */
+    private static class Pending {
+        private final Message _frame;
+        private long _sentAtNanos;
+        private int _numRetransmits;
+
+        /**
+         * Constructs a pending message
+         * @param frame the message to send again, already framed
+         * @param sentAtNanos when the message was first sent
+         */
+        private Pending(Message frame, long sentAtNanos) {
+            _frame = frame;
+            _sentAtNanos = sentAtNanos;
+        }
+    }
+
+    /**
+     * Everything this messenger knows about one other villager, in both directions. Every field is guarded by the
+     * peer object's monitor.
+     */
+    private static class Peer {
+        private final TreeMap<Integer, Pending> _unacknowledged = new TreeMap<>();
+        private final ArrayDeque<Message> _unsent = new ArrayDeque<>();    // framed, waiting for room in the window
+        private int _nextSequence = 1;
+        private long _smoothedRttNanos;
+        private long _rttVarianceNanos;
+        private long _rtoNanos = INITIAL_RTO_NANOS;
+        private int _receivedUpTo;          // every sequence number up to and including this one has arrived
+        private long _receivedAbove;        // bit n is set if _receivedUpTo + 1 + n has arrived
+
+        /**
+         * Returns the lowest sequence number that hasn't been acknowledged yet, whether or not it's been sent
+         * @return the start of the send window
+         */
+        private int getWindowStart() {
+            return _unacknowledged.isEmpty() ? _nextSequence - _unsent.size() : _unacknowledged.firstKey();
+        }
+
+        /**
+         * Moves queued frames into the send window, for as long as there's room
+         * @param now the current value of System.nanoTime()
+         * @return the frames that must now be sent, or null if there are none
+         */
+        private ArrayList<Message> takeSendable(long now) {
+            ArrayList<Message> sendable = null;
+            while (!_unsent.isEmpty() && _nextSequence - _unsent.size() - getWindowStart() < WINDOW_SIZE) {
+                int sequence = _nextSequence - _unsent.size();
+                Message frame = _unsent.remove();
+                _unacknowledged.put(sequence, new Pending(frame, now));
+                if (sendable == null) {
+                    sendable = new ArrayList<>();
+                }
+                sendable.add(frame);
+            }
+            return sendable;
+        }
+
+        /**
+         * Determines whether a sequence number fits within the bitmap of what's been received
+         * @param sequence the sequence number of a DATA frame
+         * @return true if the arrival of the sequence number can be recorded, false if it's too far ahead
+         */
+        private boolean isWithinReceiveWindow(int sequence) {
+            return sequence - _receivedUpTo <= WINDOW_SIZE;
+        }
+
+        /**
+         * Records that a sequence number has arrived. It must be within the receive window.
+         * @param sequence the sequence number of a DATA frame
+         * @return true if it's the first time this sequence number has arrived, false if it's a duplicate
+         */
+        private boolean recordReceived(int sequence) {
+            if (sequence <= _receivedUpTo) {
+                return false;
+            }
+            long bit = 1L << (sequence - _receivedUpTo - 1);
+            if ((_receivedAbove & bit) != 0) {
+                return false;
+            }
+            _receivedAbove |= bit;
+            while ((_receivedAbove & 1) != 0) {
+                _receivedAbove >>>= 1;
+                ++_receivedUpTo;
+            }
+            return true;
+        }
+
+        /**
+         * Updates the round trip time estimates with a new measurement, then recalculates the RTO
+         * @param rttNanos the round trip time of a message that was only sent once
+         */
+        private void measureRtt(long rttNanos) {
+            if (_smoothedRttNanos == 0) {
+                _smoothedRttNanos = rttNanos;
+                _rttVarianceNanos = rttNanos / 2;
+            }
+            else {
+                _rttVarianceNanos += (Math.abs(_smoothedRttNanos - rttNanos) - _rttVarianceNanos) / 4;
+                _smoothedRttNanos += (rttNanos - _smoothedRttNanos) / 8;
+            }
+            _rtoNanos = Math.min(MAX_RTO_NANOS, Math.max(MIN_RTO_NANOS, _smoothedRttNanos + 4 * _rttVarianceNanos));
+        }
+    }
+
+    /**
+     * Constructs a reliable messenger. Only called by ReliableLayer.
+     * @param layer owns the timer and the counters
+     * @param messenger the messenger that carries the frames
+     */
+    ReliableMessenger(ReliableLayer layer, IMessenger messenger) {
+        _layer = layer;
+        _messenger = messenger;
+        _peers = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Gives the message the next sequence number for its destination, sends it, and keeps it until it's acknowledged.
+     * If the destination's window is full then the message is queued instead, and sent once there's room.
+     * @param message contains the destination address and the data to send
+     * @throws IOException if the wrapped messenger suffers a communication issue
+     */
+    @Override
+    public void send(Message message) throws IOException {
+        InetSocketAddress to = new InetSocketAddress(message.getAddress(), message.getPort());
+        Peer peer = findPeer(to);
+        byte[] payloadBytes = message.getPayloadBytes();
+        Message frame;
+        synchronized (peer) {
+            int sequence = peer._nextSequence;
+            boolean isWithinWindow = peer._unsent.isEmpty() && sequence - peer.getWindowStart() < WINDOW_SIZE;
+            ++peer._nextSequence;
+            byte[] frameBytes = new byte[NUM_DATA_HEADER_BYTES + payloadBytes.length];
+            ByteBuffer.wrap(frameBytes).putShort(MAGIC).put(DATA).putInt(sequence).put(payloadBytes);
+            frame = Message.makeFrame(to, frameBytes);
+            if (!isWithinWindow) {
+                peer._unsent.add(frame);
+                return;
+            }
+            peer._unacknowledged.put(sequence, new Pending(frame, System.nanoTime()));
+        }
+        _messenger.send(frame);
+    }
+
+    /**
+     * Receives from the wrapped messenger until there's a message to pass on. Acknowledgements are handled, and
+     * duplicates are dropped, along the way.
+     * @return the next message that hasn't been received before
+     * @throws IOException if the wrapped messenger suffers a communication issue
+     */
+    @Override
+    public Message receive() throws IOException {
+        while (true) {
+            Message message = _messenger.receive();
+            if (accept(message)) {
+                return message;
+            }
+            message.release();
+        }
+    }
+
+    /**
+     * Starts the wrapped messenger receiving. If it's event driven then the handler is wrapped, so that
+     * acknowledgements and duplicates never reach it.
+     * @param handler the object that processes received messages
+     * @return true if messages will be delivered to the handler, false if the caller must use receive()
+     * @throws IOException if the wrapped messenger suffers a communication issue
+     */
+    @Override
+    public boolean startReceiving(IMessageHandler handler) throws IOException {
+        return _messenger.startReceiving(new IMessageHandler() {
+            @Override
+            public void handleMessage(Message message) throws IOException {
+                if (accept(message)) {
+                    handler.handleMessage(message);
+                }
+            }
+
+            @Override
+            public boolean mustShutdown() {
+                return handler.mustShutdown();
+            }
+        });
+    }
+
+    /**
+     * Passes the end of a burst on to the wrapped messenger
+     * @throws IOException if the wrapped messenger suffers a communication issue
+     */
+    @Override
+    public void flush() throws IOException {
+        _messenger.flush();
+    }
+
+    /**
+     * The address the villager is bound to.
+     * @return an address on the local machine
+     */
+    @Override
+    public InetAddress getMyAddress() {
+        return _messenger.getMyAddress();
+    }
+
+    /**
+     * Returns the same tiebreaker value as the wrapped messenger
+     * @return a value unique to this villager
+     */
+    @Override
+    public int getTiebreakerValue() {
+        return _messenger.getTiebreakerValue();
+    }
+
+    /**
+     * Sends again every message whose RTO has passed, doubling the RTO of its destination each time. Only called by
+     * the ReliableLayer's timer thread.
+     * @param now the current value of System.nanoTime()
+     * @throws IOException if the wrapped messenger suffers a communication issue
+     */
+    void retransmitExpired(long now) throws IOException {
+        for (Peer peer : _peers.values()) {
+            Message frame = null;
+            synchronized (peer) {
+                // only the oldest expired message is sent each tick. the rest follow on later ticks, which keeps a
+                // villager that has stopped responding from being flooded.
+                for (Pending pending : peer._unacknowledged.values()) {
+                    if (now - pending._sentAtNanos < peer._rtoNanos) {
+                        continue;
+                    }
+                    ++pending._numRetransmits;
+                    pending._sentAtNanos = now;
+                    peer._rtoNanos = Math.min(MAX_RTO_NANOS, peer._rtoNanos * 2);
+                    frame = pending._frame;
+                    break;
+                }
+            }
+            if (frame != null) {
+                _layer.countRetransmit();
+                _messenger.send(frame);
+            }
+        }
+    }
+
+    /**
+     * Handles the reliability part of a received message
+     * @param message a message received by the wrapped messenger
+     * @return true if the message must be passed on, false if it was an acknowledgement or a duplicate
+     * @throws IOException if an acknowledgement cannot be sent
+     */
+    private boolean accept(Message message) throws IOException {
+        ByteBuffer bytes = message.getReceivedBytes();
+        if (bytes == null || bytes.remaining() < NUM_DATA_HEADER_BYTES || bytes.getShort(bytes.position()) != MAGIC) {
+            return true;    // not framed by this class
+        }
+        int start = bytes.position();
+        InetSocketAddress from = new InetSocketAddress(message.getAddress(), message.getPort());
+        Peer peer = findPeer(from);
+        if (bytes.get(start + 2) == ACK) {
+            if (bytes.remaining() >= NUM_ACK_BYTES) {
+                handleAcknowledgement(peer, bytes.getInt(start + 3), bytes.getInt(start + 7),
+                        bytes.getLong(start + 11));
+            }
+            return false;
+        }
+
+        int sequence = bytes.getInt(start + 3);
+        boolean isFirstArrival;
+        byte[] ack = new byte[NUM_ACK_BYTES];
+        synchronized (peer) {
+            if (!peer.isWithinReceiveWindow(sequence)) {
+                return false;   // only possible when the sender's numbering doesn't match, e.g. from an earlier run
+            }
+            isFirstArrival = peer.recordReceived(sequence);
+            ByteBuffer.wrap(ack).putShort(MAGIC).put(ACK).putInt(sequence).putInt(peer._receivedUpTo)
+                    .putLong(peer._receivedAbove);
+        }
+        _messenger.send(Message.makeFrame(from, ack));
+        if (!isFirstArrival) {
+            _layer.countDuplicate();
+            return false;
+        }
+        bytes.position(start + NUM_DATA_HEADER_BYTES);     // the payload is decoded from here
+        return true;
+    }
+
+    /**
+     * Forgets every message the acknowledgement covers, and measures the round trip time of the one that caused it.
+     * Any queued messages that now fit within the window are sent.
+     * @param peer the villager that sent the acknowledgement
+     * @param sequence the sequence number that caused the acknowledgement
+     * @param receivedUpTo every sequence number up to and including this one has arrived
+     * @param receivedAbove bit n is set if the sequence number receivedUpTo + 1 + n has arrived
+     * @throws IOException if the wrapped messenger suffers a communication issue
+     */
+    private void handleAcknowledgement(Peer peer, int sequence, int receivedUpTo, long receivedAbove)
+            throws IOException {
+        long now = System.nanoTime();
+        ArrayList<Message> sendable;
+        synchronized (peer) {
+            Pending pending = peer._unacknowledged.get(sequence);
+            if (pending != null && pending._numRetransmits == 0) {
+                peer.measureRtt(now - pending._sentAtNanos);
+            }
+            peer._unacknowledged.headMap(receivedUpTo, true).clear();
+            for (long bits = receivedAbove; bits != 0; bits &= bits - 1) {
+                peer._unacknowledged.remove(receivedUpTo + 1 + Long.numberOfTrailingZeros(bits));
+            }
+            sendable = peer.takeSendable(now);
+        }
+        sendAll(sendable);
+    }
+
+    /**
+     * Sends frames that were queued until there was room within the window
+     * @param frames the frames to send, or null if there are none
+     * @throws IOException if the wrapped messenger suffers a communication issue
+     */
+    private void sendAll(ArrayList<Message> frames) throws IOException {
+        if (frames != null) {
+            for (Message frame : frames) {
+                _messenger.send(frame);
+            }
+        }
+    }
+
+    /**
+     * Finds what's known about a villager, remembering it for next time
+     * @param address the villager's address and port
+     * @return the villager's peer object
+     */
+    private Peer findPeer(InetSocketAddress address) {
+        return _peers.computeIfAbsent(address, key -> new Peer());
+    }
+}
@@ -0,0 +1,176 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * This class runs one thread that receives messages on behalf of every villager within this node.
+ *
+ * The UdpMessenger needs a Receiver thread per villager, each of which spends its life blocked inside receive(). That's
+ * two threads per villager, and a thread wake-up per datagram. Instead, each SelectorMessenger registers its channel
+ * with the one Selector owned by this class. When the Selector wakes up, every channel that has datagrams waiting is
+ * drained before going back to sleep. The received messages are handed straight to each villager's Receiver object.
+ *
+ * Anything else that wants its channel serviced by this thread, such as the StreamNode, attaches an
+ * ISelectorChannel to its key.
+ *
+ * There should be one instance of this class per JVM. The Main class creates it when the 'selector' transport is
+ * chosen on the command line.
+ *
+ * When a BusyPoller is given, this thread polls the Selector without blocking until the spin budget has passed, and
+ * only then blocks inside select().
+ */
+public class SelectorEventLoop extends Thread implements BusyPoller.Pollable {
+    private static final int MAX_FREE_MESSAGES = 256;   // messages stay held in inboxes until they are drained
+    private final Selector _selector;
+    private final ConcurrentLinkedQueue<Runnable> _tasks;
+    private final MessagePool _messagePool;
+    private final BusyPoller _busyPoller;
+
+    /**
+     * Opens the selector. The thread must be started before any messages can be received.
+     * @throws IOException if the selector cannot be opened
+     */
+    public SelectorEventLoop() throws IOException {
+        this(null);
+    }
+
+    /**
+     * Opens the selector the same way as above, except that the event loop may busy poll it.
+     * @param busyPoller spins before blocking inside select(), or null to block straight away
+     * @throws IOException if the selector cannot be opened
+     */
+    public SelectorEventLoop(BusyPoller busyPoller) throws IOException {
+        super("SelectorEventLoop");
+        _selector = Selector.open();
+        _busyPoller = busyPoller;
+        _tasks = new ConcurrentLinkedQueue<>();
+
+        // only this thread receives, so one pool is shared by all channels
+        _messagePool = new MessagePool(MAX_FREE_MESSAGES, UdpMessenger.NUM_RECEIVE_BUFFER_BYTES);
+    }
+
+    /**
+     * Starts the event loop thread. The thread is a daemon so that it never prevents the JVM from ending.
+     */
+    @Override
+    public synchronized void start() {
+        setDaemon(true);
+        super.start();
+    }
+
+    /**
+     * Builds a messenger whose messages are received by this event loop. This method has the same signature as
+     * IMessengerFactory.makeMessenger() so that it can be used as a factory.
+     * @param localAddress an address on the local machine to bind to
+     * @param port a port on the local machine to bind to
+     * @return a new messenger object
+     * @throws IOException if a datagram channel cannot be bound to the address and port
+     */
+    public IMessenger makeMessenger(InetAddress localAddress, int port) throws IOException {
+        return new SelectorMessenger(this, localAddress, port);
+    }
+
+    /**
+     * Runs the task on the event loop thread. Channels must be registered with the selector, and have their interest
+     * set changed, by the event loop thread itself, otherwise the caller would have to wait for select() to return.
+     * @param task the code to run on the event loop thread
+     */
+    public void execute(Runnable task) {
+        _tasks.add(task);
+        _selector.wakeup();
+    }
+
+    /**
+     * Returns the selector so that messengers can register their channels with it. Only call this from a task passed
+     * to the execute() method.
+     * @return the selector owned by this event loop
+     */
+    public Selector getSelector() {
+        return _selector;
+    }
+
+    /**
+     * The event loop. Blocks until at least one channel is ready, then services every ready channel before blocking
+     * again. Errors are printed for the channel that caused them, the other channels carry on regardless.
+     */
+    @Override
+    public void run() {
+        try {
+            while (_selector.isOpen()) {
+                if (_busyPoller == null) {
+                    _selector.select(this::serviceChannel);
+                }
+                else {
+                    _busyPoller.pollUntilReady(this);
+                }
+                runTasks();
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Services every channel that's ready, without blocking. Only called by the BusyPoller, on the event loop thread.
+     * @return true if a channel was serviced or a task is waiting to run, false otherwise
+     * @throws IOException if the selector cannot be used
+     */
+    @Override
+    public boolean poll() throws IOException {
+        return _selector.selectNow(this::serviceChannel) > 0 || !_tasks.isEmpty();
+    }
+
+    /**
+     * Blocks until a channel is ready, or a task is queued. Only called by the BusyPoller, on the event loop thread.
+     * @throws IOException if the selector cannot be used
+     */
+    @Override
+    public void block() throws IOException {
+        _selector.select();
+        _selector.selectedKeys().clear();
+    }
+
+    /**
+     * Passes the ready key to the object attached to it. A message that can't be handled, e.g. a datagram that isn't a
+     * payload, has already been read off the channel, so it's dropped and the loop carries on.
+     * @param key a key whose channel is ready
+     */
+    private void serviceChannel(SelectionKey key) {
+        try {
+            ((ISelectorChannel)key.attachment()).serviceChannel(key, _messagePool);
+        }
+        catch (IOException | RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Runs each task queued by the execute() method. Tasks queued by these tasks are left for the next pass, otherwise
+     * two villagers handing messages back and forth through memory would stop the selector from ever being serviced.
+     * A task that throws is printed, and the remaining tasks still run.
+     */
+    private void runTasks() {
+        for (int numTasks = _tasks.size(); numTasks > 0; --numTasks) {
+            try {
+                _tasks.poll().run();
+            }
+            catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,139 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * A concrete implementation of the IMessenger interface.
+ *
+ * This class is a villager's view of the StreamNode. Sending hands the message to the node, which frames it and
+ * queues it on the connection for the destination villager's node. Receiving is event driven; the node's connections
+ * are read by the SelectorEventLoop, which hands each message straight to this villager's Receiver.
+ */
+public class StreamMessenger implements IMessenger {
+    private final StreamNode _node;
+    private final InetAddress _localAddress;
+    private final int _localPort;
+    private volatile IMessageHandler _handler;
+    private final ReceivedBatch _receivedBatch;     // only used by the event loop thread
+    private PullingHandler _pullingHandler;
+
+    /**
+     * Constructs a messenger for one villager. Only called by StreamNode.
+     * @param node the node this villager belongs to
+     * @param localAddress the address other villagers use for this villager
+     * @param port the port other villagers use for this villager
+     */
+    StreamMessenger(StreamNode node, InetAddress localAddress, int port) {
+        _node = node;
+        _localAddress = localAddress;
+        _localPort = port;
+        _receivedBatch = new ReceivedBatch();
+    }
+
+    /**
+     * Sends the message to the node its destination villager belongs to.
+     * @param message contains the destination port and the data to send
+     * @throws IOException if the connection suffers a communication issue
+     */
+    @Override
+    public void send(Message message) throws IOException {
+        _node.send(_localPort, message);
+    }
+
+    /**
+     * Takes the next message for this villager, blocking until there is one. On the first call the event loop starts
+     * delivering this villager's messages to a queue that this method then takes from. The caller must release() each
+     * message it receives.
+     * @return a message object containing the read bytes, and the address of the sender
+     * @throws IOException if the calling thread is interrupted while waiting
+     */
+    @Override
+    public Message receive() throws IOException {
+        return startPulling().take();
+    }
+
+    /**
+     * Takes the next message for this villager if there is one, without blocking.
+     * @return a message object containing the read bytes, and the address of the sender, or null if none is waiting
+     * @throws IOException if the channel cannot be registered with the event loop
+     */
+    @Override
+    public Message receiveNow() throws IOException {
+        return startPulling().poll();
+    }
+
+    /**
+     * Records the handler. From then on, each message for this villager is passed to the handler by the event loop
+     * thread. Messages that arrive before this are dropped.
+     * @param handler the object that processes received messages
+     * @return true, always
+     */
+    @Override
+    public boolean startReceiving(IMessageHandler handler) {
+        _handler = handler;
+        return true;
+    }
+
+    /**
+     * The address the villager uses.
+     * @return an address on the local machine
+     */
+    @Override
+    public InetAddress getMyAddress() {
+        return _localAddress;
+    }
+
+    /**
+     * Returns a value unique to this villager. This value can be used to break ties when different villagers happen
+     * to generate the same random number. I chose to use the port this villager is known by.
+     * @return a value unique to this villager
+     */
+    @Override
+    public int getTiebreakerValue() {
+        return _localPort;
+    }
+
+    /**
+     * Returns the handler passed to startReceiving()
+     * @return the handler, or null if this villager isn't receiving yet
+     */
+    IMessageHandler getHandler() {
+        return _handler;
+    }
+
+    /**
+     * Returns the messages the event loop has read for this villager, but not yet handed to its handler. Only called
+     * by the event loop thread.
+     * @return the batch of received messages
+     */
+    ReceivedBatch getReceivedBatch() {
+        return _receivedBatch;
+    }
+
+    /**
+     * Starts the event loop delivering this villager's messages to a queue, unless it's already doing so.
+     * @return the handler that queues this villager's messages
+     * @throws IOException if the channel cannot be registered with the event loop
+     * @throws IllegalStateException if the messages are already being delivered to another handler
+     */
+    private synchronized PullingHandler startPulling() throws IOException {
+        if (_pullingHandler == null) {
+            if (_handler != null) {
+                throw new IllegalStateException("Messages are already delivered to another handler");
+            }
+            _pullingHandler = new PullingHandler();
+            startReceiving(_pullingHandler);
+        }
+        return _pullingHandler;
+    }
+}
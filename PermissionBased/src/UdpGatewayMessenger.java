@@ -0,0 +1,152 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * A concrete implementation of the IMessenger interface.
+ *
+ * This class is a villager's view of the UdpGateway. Sending hands the message to the gateway, which sends it to the
+ * gateway of the destination villager's node. Receiving is event driven; the gateway's channel is read by the
+ * SelectorEventLoop, which hands each message straight to this villager's Receiver.
+ */
+public class UdpGatewayMessenger implements IMessenger {
+    private final UdpGateway _gateway;
+    private final InetAddress _localAddress;
+    private final int _localPort;
+    private volatile IMessageHandler _handler;
+    private final ReceivedBatch _receivedBatch;     // only used by the event loop thread
+    private PullingHandler _pullingHandler;
+
+    /**
+     * Constructs a messenger for one villager. Only called by UdpGateway.
+     * @param gateway the gateway of the node this villager belongs to
+     * @param localAddress the address other villagers use for this villager
+     * @param port the port other villagers use for this villager
+     */
+    UdpGatewayMessenger(UdpGateway gateway, InetAddress localAddress, int port) {
+        _gateway = gateway;
+        _localAddress = localAddress;
+        _localPort = port;
+        _receivedBatch = new ReceivedBatch();
+    }
+
+    /**
+     * Sends the message to the gateway of the node its destination villager belongs to.
+     * @param message contains the destination address and port, and the data to send
+     * @throws IOException if the gateway suffers a communication issue
+     */
+    @Override
+    public void send(Message message) throws IOException {
+        _gateway.send(_localPort, message);
+    }
+
+    /**
+     * Sends the payload to every villager within the table, with one datagram per node rather than one per villager.
+     * @param payload the data to send to every other villager
+     * @param peers the addresses of villagers
+     * @param skip the index within the table of the villager to leave out
+     * @throws IOException if the gateway suffers a communication issue
+     */
+    @Override
+    public void broadcast(Payload payload, InetSocketAddress[] peers, int skip) throws IOException {
+        _gateway.broadcast(_localPort, payload, peers, skip);
+    }
+
+    /**
+     * Takes the next message for this villager, blocking until there is one. On the first call the event loop starts
+     * delivering this villager's messages to a queue that this method then takes from. The caller must release() each
+     * message it receives.
+     * @return a message object containing the read bytes, and the address of the sender
+     * @throws IOException if the calling thread is interrupted while waiting
+     */
+    @Override
+    public Message receive() throws IOException {
+        return startPulling().take();
+    }
+
+    /**
+     * Takes the next message for this villager if there is one, without blocking.
+     * @return a message object containing the read bytes, and the address of the sender, or null if none is waiting
+     * @throws IOException if the channel cannot be registered with the event loop
+     */
+    @Override
+    public Message receiveNow() throws IOException {
+        return startPulling().poll();
+    }
+
+    /**
+     * Records the handler. From then on, each message for this villager is passed to the handler by the event loop
+     * thread. Messages that arrive before this are dropped.
+     * @param handler the object that processes received messages
+     * @return true, always
+     */
+    @Override
+    public boolean startReceiving(IMessageHandler handler) {
+        _handler = handler;
+        return true;
+    }
+
+    /**
+     * The address the villager uses.
+     * @return an address on the local machine
+     */
+    @Override
+    public InetAddress getMyAddress() {
+        return _localAddress;
+    }
+
+    /**
+     * Returns a value unique to this villager. This value can be used to break ties when different villagers happen
+     * to generate the same random number. I chose to use the port this villager is known by.
+     * @return a value unique to this villager
+     */
+    @Override
+    public int getTiebreakerValue() {
+        return _localPort;
+    }
+
+    /**
+     * Returns the handler passed to startReceiving()
+     * @return the handler, or null if this villager isn't receiving yet
+     */
+    IMessageHandler getHandler() {
+        return _handler;
+    }
+
+    /**
+     * Returns the messages the event loop has read for this villager, but not yet handed to its handler. Only called
+     * by the event loop thread.
+     * @return the batch of received messages
+     */
+    ReceivedBatch getReceivedBatch() {
+        return _receivedBatch;
+    }
+
+    /**
+     * Starts the event loop delivering this villager's messages to a queue, unless it's already doing so.
+     * @return the handler that queues this villager's messages
+     * @throws IOException if the channel cannot be registered with the event loop
+     * @throws IllegalStateException if the messages are already being delivered to another handler
+     */
+    private synchronized PullingHandler startPulling() throws IOException {
+        if (_pullingHandler == null) {
+            if (_handler != null) {
+                throw new IllegalStateException("Messages are already delivered to another handler");
+            }
+            _pullingHandler = new PullingHandler();
+            startReceiving(_pullingHandler);
+        }
+        return _pullingHandler;
+    }
+}
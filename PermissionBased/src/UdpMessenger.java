@@ -10,10 +10,12 @@
  */
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetAddress;
-import java.net.SocketException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 
 /**
  * A concrete implementation of the IMessenger interface.
@@ -25,10 +27,21 @@ import java.net.SocketException;
  * Due to UDP using datagrams there is no need to 'connect' villagers together. This simplifies things greatly. UDP
  * basically 'throws' packets at an IP address, regardless of the state of the IP connection between the source and the
  * destination, and regardless of the state of the software that's bound to that IP address.
+ *
+ * When a BusyPoller is given, the channel is non-blocking. receive() polls it until the spin budget has passed, and
+ * only then blocks, on a Selector of its own.
  */
-public class UdpMessenger implements IMessenger {
-    private static final int NUM_RECEIVE_BUFFER_BYTES = 128;    // should be plenty
-    private final DatagramSocket _socket;
+public class UdpMessenger implements IMessenger, BusyPoller.Pollable {
+    public static final int NUM_RECEIVE_BUFFER_BYTES = 512;     // room for a batch of payloads
+    private static final int MAX_FREE_MESSAGES = 4;             // only one thread sits inside receive()
+    private final DatagramChannel _channel;
+    private final InetAddress _localAddress;
+    private final int _localPort;
+    private final MessagePool _messagePool;
+    private final BusyPoller _busyPoller;
+    private final Selector _selector;           // only made when busy polling
+    private ByteBuffer _pollBuffer;             // only used by the thread inside receive()
+    private InetSocketAddress _polledSender;
 
     /**
      * Creates a UDP socket using the given address and port. After this call, the villager is 'bound' to this address.
@@ -38,12 +51,39 @@ public class UdpMessenger implements IMessenger {
      * I deliberately left the choice of IP address and port up to the user so that any IP address on the local
      * machine can be used. It doesn't have to be 127.0.0.1, any valid IP address will do.
      *
+     * The socket is a blocking DatagramChannel rather than a DatagramSocket so that datagrams can be read straight
+     * into the pooled direct buffers of the MessagePool.
+     *
      * @param localAddress an address on the local machine to bind to
      * @param port a port on the local machine to bind to
-     * @throws SocketException if a UDP socket cannot be created and bound to the IP address and port
+     * @throws IOException if a UDP socket cannot be created and bound to the IP address and port
      */
-    public UdpMessenger(InetAddress localAddress, int port) throws SocketException {
-        _socket = new DatagramSocket(port, localAddress);
+    public UdpMessenger(InetAddress localAddress, int port) throws IOException {
+        this(localAddress, port, null);
+    }
+
+    /**
+     * Creates a UDP socket the same way as above, except that receive() may busy poll it.
+     * @param localAddress an address on the local machine to bind to
+     * @param port a port on the local machine to bind to
+     * @param busyPoller spins inside receive() before blocking, or null to block straight away
+     * @throws IOException if a UDP socket cannot be created and bound to the IP address and port
+     */
+    public UdpMessenger(InetAddress localAddress, int port, BusyPoller busyPoller) throws IOException {
+        _channel = DatagramChannel.open();
+        _channel.bind(new InetSocketAddress(localAddress, port));
+        _localAddress = localAddress;
+        _localPort = port;
+        _messagePool = new MessagePool(MAX_FREE_MESSAGES, NUM_RECEIVE_BUFFER_BYTES);
+        _busyPoller = busyPoller;
+        if (_busyPoller == null) {
+            _selector = null;
+        }
+        else {
+            _channel.configureBlocking(false);
+            _selector = Selector.open();
+            _channel.register(_selector, SelectionKey.OP_READ);
+        }
     }
 
     /**
@@ -54,24 +94,103 @@ public class UdpMessenger implements IMessenger {
      */
     @Override
     public void send(Message message) throws IOException {
-        byte[] bytes = message.getPayloadBytes();
-        _socket.send(new DatagramPacket(bytes, bytes.length, message.getAddress(), message.getPort()));
+        ByteBuffer bytes = ByteBuffer.wrap(message.getPayloadBytes());
+        sendDatagram(bytes, new InetSocketAddress(message.getAddress(), message.getPort()));
     }
 
     /**
-     * Copies bytes from the UDP socket to a new message object. The sender's address is also copied into the message.
+     * Encodes the payload once, then sends the same datagram to every villager within the table. Nothing is allocated
+     * per villager; the one buffer is rewound before each send.
+     * @param payload the data to send to every other villager
+     * @param peers the addresses of villagers
+     * @param skip the index within the table of the villager to leave out
+     * @throws IOException if the UDP socket suffers a communication issue
+     */
+    @Override
+    public void broadcast(Payload payload, InetSocketAddress[] peers, int skip) throws IOException {
+        ByteBuffer bytes = ByteBuffer.wrap(payload.encode());
+        for (int i = 0; i < peers.length; ++i) {
+            if (i != skip) {
+                sendDatagram(bytes.rewind(), peers[i]);
+            }
+        }
+    }
+
+    /**
+     * Reads bytes from the UDP socket into a pooled message object. The sender's address is also recorded in the
+     * message. The caller must release() the message once it has been handled.
      * @return a message object containing the received bytes and the sender's address
      * @throws IOException if the UDP socket suffers a communication issue
      */
     @Override
     public Message receive() throws IOException {
-        // the packets I'm sending are small. 128 bytes will be more than enough.
-        byte[] bytes = new byte[NUM_RECEIVE_BUFFER_BYTES];
+        // the DatagramCoalescer never sends a batch of payloads larger than NUM_RECEIVE_BUFFER_BYTES
+        Message message = _messagePool.acquire();
+        try {
+            message.wrapReceived(receiveDatagram(message.getReceiveBuffer()));
+            return message;
+        }
+        catch (IOException e) {
+            message.release();
+            throw e;
+        }
+    }
 
-        DatagramPacket datagramPacket = new DatagramPacket(bytes, bytes.length);
-        _socket.receive(datagramPacket);
+    /**
+     * Takes a datagram if one is waiting, without blocking. Only called by the BusyPoller, on the thread inside
+     * receive().
+     * @return true if a datagram was taken, false otherwise
+     * @throws IOException if the UDP socket suffers a communication issue
+     */
+    @Override
+    public boolean poll() throws IOException {
+        _polledSender = (InetSocketAddress)_channel.receive(_pollBuffer);
+        return _polledSender != null;
+    }
+
+    /**
+     * Blocks until a datagram is waiting. Only called by the BusyPoller, on the thread inside receive().
+     * @throws IOException if the selector cannot be used
+     */
+    @Override
+    public void block() throws IOException {
+        _selector.select();
+        _selector.selectedKeys().clear();
+    }
 
-        return Message.fromDatagramPacket(datagramPacket);
+    /**
+     * Receives one datagram into the buffer, blocking until one arrives. When busy polling, the BusyPoller decides
+     * how much of the wait is spent spinning.
+     * @param buffer where the datagram is copied to
+     * @return the address of the datagram's sender
+     * @throws IOException if the UDP socket suffers a communication issue
+     */
+    private InetSocketAddress receiveDatagram(ByteBuffer buffer) throws IOException {
+        if (_busyPoller == null) {
+            return (InetSocketAddress)_channel.receive(buffer);
+        }
+        _pollBuffer = buffer;
+        try {
+            _busyPoller.pollUntilReady(this);
+            return _polledSender;
+        }
+        finally {
+            _pollBuffer = null;
+            _polledSender = null;
+        }
+    }
+
+    /**
+     * Sends one datagram. A non-blocking channel sends nothing at all while the socket's send buffer is full, in
+     * which case this spins until there's room.
+     * @param datagram the bytes to send
+     * @param to the address to send them to
+     * @throws IOException if the UDP socket suffers a communication issue
+     */
+    private void sendDatagram(ByteBuffer datagram, InetSocketAddress to) throws IOException {
+        while (_channel.send(datagram, to) == 0 && datagram.hasRemaining()) {
+            Thread.onSpinWait();
+        }
     }
 
     /**
@@ -80,7 +199,7 @@ public class UdpMessenger implements IMessenger {
      */
     @Override
     public InetAddress getMyAddress() {
-        return _socket.getLocalAddress();
+        return _localAddress;
     }
 
     /**
@@ -90,6 +209,6 @@ public class UdpMessenger implements IMessenger {
      */
     @Override
     public int getTiebreakerValue() {
-        return _socket.getLocalPort();
+        return _localPort;
     }
 }
@@ -13,9 +13,12 @@ import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.util.ArrayDeque;
-import java.util.Arrays;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 
 /**
  * This class provides the ability for a villager to enter the mini mart mutually exclusively.
@@ -31,7 +34,7 @@ import java.util.concurrent.CountDownLatch;
  * will starve if all other villagers are not acknowledging its messages. Essentially, they'll be stuck in a call to
  * _messenger.receive() with no message source to break them out of it.
  */
-public class Villager extends Thread implements IVillager, IRequestsMiniMartAccess {
+public class Villager implements Runnable, IVillager, IRequestsMiniMartAccess {
     public static final int NUM_VILLAGERS_PER_NODE = 5;
     public static final int MAX_NUM_TIMES_SHOPPED = 3;
     private static final int MIN_SHOPPING_TIME = 1000; // just to keep it interesting
@@ -43,51 +46,98 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
     private final IMessenger _messenger;
     private final ArrayDeque<VillagerAddress> _replyList;
     private final Random _random;
-    private final int _portStart;
     private final int _totalVillagers;
     private final VillagerAddress _myId;
-    private final boolean[] _villagerHasReplied;
-    private final boolean[] _villagerHasFinishedShopping;
+    private final NodeTables _nodeTables;   // shared by every villager within this node
+    private final int[] _villagerRepliedInRound;    // the round each villager last replied in
 
     private boolean _requestingMiniMartAccess; // essentially it means 'are we in the critical section?'
     private int _ticket;
     private int _largestTicket;
     private int _numTimesShopped;
+    private int _round;                     // bumped every time we tell other villagers our ticket
+    private volatile int _numRepliesOutstanding;    // how many other villagers are yet to reply within this round
+    private boolean _isApplyingBatch;   // wakeups are held back until the batch has been applied
+    private boolean _isWakeupPending;
 
     private final Receiver _receiver;
+    private final ReentrantLock _lock;
+    private final Condition _stateChanged;
+    private final Condition _allReplied;    // only signalled once a round's last reply arrives
+    private volatile PublishedState _published;     // what the Receiver reads, without taking the lock
+    private final WaitStrategy _waitStrategy;
+    private final BooleanSupplier _haveOtherVillagersReplied;  // made once, not once per wait
 
     /**
-     * Constructs an instance of a villager. Villager objects within a node don't share any data via memory. They're
-     * intentionally self-contained. 
+     * The part of this villager's state that the Receiver bases its decisions upon, as one object that's never changed
+     * once made. The Villager thread makes a new one, while holding the lock, every time any of these values change.
+     * The Receiver reads whichever one was published last, through a volatile reference, so it never waits for the
+     * lock, however long the Villager thread holds it. Because the values are published together, the Receiver can
+     * never see one of them changed and the others not.
+     */
+    private static final class PublishedState {
+        private final boolean _requestingMiniMartAccess;
+        private final int _ticket;
+        private final boolean _hasFinishedShopping;
+
+        /**
+         * Constructs a snapshot of the Villager's state
+         * @param requestingMiniMartAccess whether the villager is requesting mini mart access
+         * @param ticket the villager's current ticket
+         * @param hasFinishedShopping whether the villager has shopped MAX_NUM_TIMES_SHOPPED times
+         */
+        PublishedState(boolean requestingMiniMartAccess, int ticket, boolean hasFinishedShopping) {
+            _requestingMiniMartAccess = requestingMiniMartAccess;
+            _ticket = ticket;
+            _hasFinishedShopping = hasFinishedShopping;
+        }
+    }
+
+    /**
+     * Constructs an instance of a villager. Villager objects within a node only share the node's tables, which hold
+     * facts that are the same whichever villager learns them. Otherwise they're intentionally self-contained.
      * @param done an object to signal when this villager is finished
+     * @param executor runs the Receiver, if the messenger needs one
+     * @param waitStrategy how the Villager thread waits for other villagers to reply
+     * @param nodeTables the tables shared by every villager within this node
+     * @param messengerFactory builds the messenger this villager uses to talk to the other villagers
      * @param ipAddress an address on the local machine to bind to
      * @param portStart the first value in a contiguous range of port values
      * @param totalVillagers how many villagers are part of the simulation
      * @param id the unique index of this villager
      * @throws IOException if the passed in IP address is unable to be bound to
      */
-    public Villager(CountDownLatch done, String ipAddress, int portStart, int totalVillagers, int id) throws IOException {
+    public Villager(CountDownLatch done, Executor executor, WaitStrategy waitStrategy, NodeTables nodeTables,
+                    IMessengerFactory messengerFactory, String ipAddress, int portStart, int totalVillagers, int id)
+            throws IOException {
         _done = done;
-        _portStart = portStart;
+        _lock = new ReentrantLock();
+        _stateChanged = _lock.newCondition();
+        _allReplied = _lock.newCondition();
+        _waitStrategy = waitStrategy;
+        _haveOtherVillagersReplied = this::haveOtherVillagersReplied;
         _random = new Random();
 
         _requestingMiniMartAccess = false;
         _replyList = new ArrayDeque<>();
 
         _totalVillagers = totalVillagers;
-        _villagerHasReplied = new boolean[totalVillagers]; // initialised via clearOtherVillagersReplies() below
-        _villagerHasFinishedShopping = new boolean[totalVillagers];
-        Arrays.fill(_villagerHasFinishedShopping, false);
+        _villagerRepliedInRound = new int[totalVillagers];  // round 0 is never used, see clearOtherVillagersReplies()
+        _round = 0;
+        _nodeTables = nodeTables;
 
         int ticketNumber = _random.nextInt(4 * totalVillagers);  // the x4 will help reduce clashes
         _largestTicket = _ticket = ticketNumber;
         _numTimesShopped = 0;
+        publishState();
 
         _myId = new VillagerAddress(InetAddress.getByName(ipAddress), portStart + id, id);
-        _messenger = new UdpMessenger(InetAddress.getByName(ipAddress), portStart + id);
+        _messenger = messengerFactory.makeMessenger(InetAddress.getByName(ipAddress), portStart + id);
 
         _receiver = new Receiver(_messenger, this);
-        _receiver.start();
+        if (!_messenger.startReceiving(_receiver)) {
+            executor.execute(_receiver);    // this messenger needs a thread to sit inside its receive() method
+        }
     }
 
     /**
@@ -111,8 +161,7 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
                 // this is achieved by the constructor + close methods of the MiniMartAccess class calling back into the
                 // Villager class, which in turn sets the value of the _requestingMiniMartAccess variable.
                 try (MiniMartAccess ignored = new MiniMartAccess(this)) {
-                    // _requestingMiniMartAccess is true at this point
-                    takeTheNextTicket();
+                    // _requestingMiniMartAccess is true at this point, and we hold our next ticket
                     clearOtherVillagersReplies();
                     tellOtherVillagersMyTicket();
                     waitForOtherVillagersToReply(); // implements the Monitor pattern inside
@@ -139,22 +188,28 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
      * Updates the internal knowledge of the largest ticket.
      *
      * Only called by the Receiver thread, but the Villager thread reads the value of _largestTicket, hence this method
-     * is synchronised.
+     * holds the lock.
      */
     @Override
-    public synchronized void updateLargestTicket(Message message) {
-        _largestTicket = message.getLargerTicket(_largestTicket);
+    public void updateLargestTicket(Message message) {
+        _lock.lock();
+        try {
+            _largestTicket = message.getLargerTicket(_largestTicket);
+        }
+        finally {
+            _lock.unlock();
+        }
     }
 
     /**
      * Retrieves the address of this villager.
      *
-     * Only called by the Payload class. The Payload class is used by the Receiver thread and the Villager thread, hence
-     * this method is synchronised.
+     * Only called by the Payload class. The Payload class is used by the Receiver thread and the Villager thread, but
+     * the address never changes once constructed, so there's nothing to lock.
      * @return the address of this villager
      */
     @Override
-    public synchronized VillagerAddress getMyId() {
+    public VillagerAddress getMyId() {
         return _myId;
     }
 
@@ -162,50 +217,67 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
      * Retrieves the ticket number of this villager.
      *
      * Only called by the Payload class. The Payload class is used by the Receiver thread and the Villager thread, hence
-     * this method is synchronised.
+     * the ticket is read from the published state rather than taking the lock.
      * @return the ticket of this villager
      */
     @Override
-    public synchronized int getTicket() {
-        return _ticket;
+    public int getTicket() {
+        return _published._ticket;
     }
 
     /**
      * Copies the supplied villager address into internal storage.
      *
-     * Only called by the Receiver thread, but the Villager thread reads the values of _replyList, hence this method is
-     * synchronised.
+     * Only called by the Receiver thread, but the Villager thread reads the values of _replyList, hence this method
+     * holds the lock.
      */
     @Override
-    public synchronized void recordVillagersAddress(VillagerAddress villagerAddress) {
-        _replyList.push(villagerAddress);
+    public void recordVillagersAddress(VillagerAddress villagerAddress) {
+        _lock.lock();
+        try {
+            _replyList.push(villagerAddress);
+        }
+        finally {
+            _lock.unlock();
+        }
     }
 
     /**
      * Determines if the villager that sent the message must go before this Villager. The test also solves ties by using
      * a tiebreaker value.
      *
-     * Only called by the Receiver thread, but the Villager thread reads the values of _ticket, hence this method is
-     * synchronised.
+     * Only called by the Receiver thread, but the Villager thread writes the value of _ticket, hence the ticket is read
+     * from the published state rather than taking the lock.
      * @return true if the passed in villager shops before this villager
      */
     @Override
-    public synchronized boolean doesVillagerShopBeforeMe(Message message) {
-        return message.isFewerThan(_ticket, _messenger.getTiebreakerValue());
+    public boolean doesVillagerShopBeforeMe(Message message) {
+        return message.isFewerThan(_published._ticket, _messenger.getTiebreakerValue());
     }
 
     /**
-     * Updates internal storage to indicate that a villager has acknowledged a message sent by this Villager. This
-     * method also nudges the monitor within the waitForOtherVillagersToReply() method.
+     * Updates internal storage to indicate that a villager has acknowledged a message sent by this Villager. Each
+     * villager is stamped with the round it replied in, so a second reply within the same round isn't counted twice.
+     * Only the reply that brings the outstanding count to zero wakes the waitForOtherVillagersToReply() method, and it
+     * wakes nobody but the Villager thread.
      *
-     * Only called by the Receiver thread, but the Villager thread reads the values of _villagerHasReplied, hence this
-     * method is synchronised.
+     * Only called by the Receiver thread, but the Villager thread reads the value of _numRepliesOutstanding, hence this
+     * method holds the lock.
      */
     @Override
-    public synchronized void recordAcknowledgement(Message message) {
-        if (message.getVillagerIndex() >= 0 && message.getVillagerIndex() < _totalVillagers) {
-            _villagerHasReplied[message.getVillagerIndex()] = true;
-            notifyAll();        // Unblock waiting threads
+    public void recordAcknowledgement(Message message) {
+        _lock.lock();
+        try {
+            int i = message.getVillagerIndex();
+            if (i >= 0 && i < _totalVillagers && i != _myId.getIndex() && _villagerRepliedInRound[i] != _round) {
+                _villagerRepliedInRound[i] = _round;
+                if (--_numRepliesOutstanding == 0) {
+                    _allReplied.signal();   // the Villager thread is the only one that waits for this
+                }
+            }
+        }
+        finally {
+            _lock.unlock();
         }
     }
 
@@ -213,61 +285,118 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
      * Updates internal storage to indicate that a villager has finished shopping. This method also nudges the monitor
      * within the waitForOtherVillagersToFinishShopping() method.
      *
-     * Only called by the Receiver thread, but the Villager thread reads the values of _villagerHasFinishedShopping,
-     * hence this method is synchronised.
+     * Only called by the Receiver thread. The finished shopping set is shared by the node and has a lock of its own,
+     * but the Villager thread must be woken while holding our lock, hence this method holds the lock.
+     */
+    @Override
+    public void recordFinishedShopping(Message message) {
+        _lock.lock();
+        try {
+            if (message.getVillagerIndex() >= 0 && message.getVillagerIndex() < _totalVillagers) {
+                _nodeTables.recordFinishedShopping(message.getVillagerIndex());
+                wakeUpVillagerThread();
+            }
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Runs the updates while holding the lock. The calls the updates make to the locking methods above re-enter
+     * the lock this thread already holds, so a batch of N messages costs one lock round-trip rather than four per
+     * message. Any wakeups the updates ask for are held back, then given as one signalAll() at the end.
+     *
+     * Only called by the Receiver thread, but every piece of state the updates touch is read by the Villager thread,
+     * hence this method holds the lock.
+     * @param updates calls to the methods of the IVillager interface
      */
     @Override
-    public synchronized void recordFinishedShopping(Message message) {
-        if (message.getVillagerIndex() >= 0 && message.getVillagerIndex() < _totalVillagers) {
-            _villagerHasFinishedShopping[message.getVillagerIndex()] = true;
-            notifyAll();        // Unblock waiting threads
+    public void applyAtomically(Runnable updates) {
+        _lock.lock();
+        try {
+            _isApplyingBatch = true;
+            try {
+                updates.run();
+            }
+            finally {
+                _isApplyingBatch = false;
+                if (_isWakeupPending) {
+                    _isWakeupPending = false;
+                    _stateChanged.signalAll();    // Unblock waiting threads, once per batch
+                }
+            }
+        }
+        finally {
+            _lock.unlock();
         }
     }
 
     /**
      * Determines if this villager has NOT finished shopping.
      *
-     * Only called by the Receiver thread, but the Villager thread writes the value of _numTimesShopped, hence this
-     * method is synchronised.
+     * Only called by the Receiver thread, but the Villager thread writes the value of _numTimesShopped, hence the
+     * answer is read from the published state rather than taking the lock.
      * @return true if this villager has finished shopping, false otherwise
      */
     @Override
-    public synchronized boolean hasNotFinishedShopping() {
-        return _numTimesShopped < MAX_NUM_TIMES_SHOPPED;
+    public boolean hasNotFinishedShopping() {
+        return !_published._hasFinishedShopping;
     }
 
     /**
      * Determines if this villager is NOT requesting mini mart access.
      *
      * Only called by the Receiver thread, but the Villager thread writes the value of _requestingMiniMartAccess, hence
-     * this method is synchronised.
+     * the answer is read from the published state rather than taking the lock.
      * @return true if this villager is NOT requesting mini mart access, false otherwise
      */
     @Override
-    public synchronized boolean isNotRequestingMiniMartAccess() {
-        return !_requestingMiniMartAccess;
+    public boolean isNotRequestingMiniMartAccess() {
+        return !_published._requestingMiniMartAccess;
     }
 
     /**
-     * Updates internal storage to indicate that this villager has started to request mini mart access.
+     * Updates internal storage to indicate that this villager has started to request mini mart access, and takes the
+     * next ticket.
      *
      * Only called by the MiniMartAccess class as part of the core loop above. The Receiver thread will read the value
-     * of _requestingMiniMartAccess via the call to isNotRequestingMiniMartAccess(), hence this method is synchronised.
+     * of _requestingMiniMartAccess via the call to isNotRequestingMiniMartAccess(), hence this method holds the lock.
+     *
+     * Both changes must be published together. If the Receiver thread saw _requestingMiniMartAccess as true while
+     * _ticket still held the previous ticket, then it would defer a villager whose ticket is larger than our old ticket
+     * but smaller than our next ticket. That villager would then defer us too, and neither of us would ever enter the
+     * mini mart.
      */
     @Override
-    public synchronized void startRequestingMiniMartAccess() {
-        _requestingMiniMartAccess = true;
+    public void startRequestingMiniMartAccess() {
+        _lock.lock();
+        try {
+            _requestingMiniMartAccess = true;
+            takeTheNextTicket();
+            publishState();
+        }
+        finally {
+            _lock.unlock();
+        }
     }
 
     /**
      * Updates internal storage to indicate that this villager has stopped requesting mini mart access.
      *
      * Only called by the MiniMartAccess class as part of the core loop above. The Receiver thread will read the value
-     * of _requestingMiniMartAccess via the call to isNotRequestingMiniMartAccess(), hence this method is synchronised.
+     * of _requestingMiniMartAccess via the call to isNotRequestingMiniMartAccess(), hence this method holds the lock.
      */
     @Override
-    public synchronized void stopRequestingMiniMartAccess() {
-        _requestingMiniMartAccess = false;
+    public void stopRequestingMiniMartAccess() {
+        _lock.lock();
+        try {
+            _requestingMiniMartAccess = false;
+            publishState();
+        }
+        finally {
+            _lock.unlock();
+        }
     }
 
     /**
@@ -292,57 +421,82 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
      * which this application ends.
      *
      * Only called by the above core loop, but the Receiver thread reads the value of _numTimesShopped via the
-     * hasNotFinishedShopping() method, hence this method is synchronised.
+     * hasNotFinishedShopping() method, hence this method holds the lock.
      * @throws IOException if the 'finished shopping' message was unable to be sent to all other villagers
      */
-    private synchronized void incrementShoppingCount() throws IOException {
-        if (++_numTimesShopped >= MAX_NUM_TIMES_SHOPPED) {
-            System.out.println(_myId.getDisplayString() + "finished all their shopping.");
-            _villagerHasFinishedShopping[_myId.getIndex()] = true;
-
-            // we must let other villagers know that we're finished shopping. this will allow them to exit their calls
-            // to the waitForOtherVillagersToFinishShopping() method and end their process.
-            tellOtherVillagersIveFinishedShopping();
+    private void incrementShoppingCount() throws IOException {
+        _lock.lock();
+        try {
+            if (++_numTimesShopped >= MAX_NUM_TIMES_SHOPPED) {
+                publishState();
+                System.out.println(_myId.getDisplayString() + "finished all their shopping.");
+                _nodeTables.recordFinishedShopping(_myId.getIndex());
+
+                // we must let other villagers know that we're finished shopping. this will allow them to exit their
+                // calls to the waitForOtherVillagersToFinishShopping() method and end their process.
+                tellOtherVillagersIveFinishedShopping();
+            }
+        }
+        finally {
+            _lock.unlock();
         }
     }
 
+    /**
+     * Publishes the current values of _requestingMiniMartAccess, _ticket and _numTimesShopped for the Receiver to read.
+     * Called whenever one of them changes, while holding the lock, so that snapshots are published in the same order
+     * the changes were made.
+     */
+    private void publishState() {
+        _published = new PublishedState(_requestingMiniMartAccess, _ticket, _numTimesShopped >= MAX_NUM_TIMES_SHOPPED);
+    }
+
     /**
      * Updates internal state to use a new ticket number.
      *
-     * Only called above by the core loop. The Receiver thread reads the value of the _ticket variable, hence this
-     * method is synchronised.
+     * Only called by startRequestingMiniMartAccess() above. The Receiver thread reads the value of the _ticket
+     * variable, hence this method holds the lock.
      */
-    private synchronized void takeTheNextTicket() {
-        _ticket = _largestTicket + 1;
+    private void takeTheNextTicket() {
+        _lock.lock();
+        try {
+            _ticket = _largestTicket + 1;
+        }
+        finally {
+            _lock.unlock();
+        }
     }
 
     /**
      * For each iteration of the core loop, this method is called to reset the knowledge of other villagers replying to
      * our messages. This must happen so that we can track whether our most recent message has been acknowledged.
      *
-     * The _villagerHasReplied array is accessed by the Receiver thread, hence this method is synchronised.
+     * Nothing is cleared. Starting a new round makes every villager's stamp out of date at once, so this costs the same
+     * however many villagers there are.
+     *
+     * The _villagerRepliedInRound array is accessed by the Receiver thread, hence this method holds the lock.
      */
-    private synchronized void clearOtherVillagersReplies() {
-        for (int i = 0; i < _totalVillagers; ++i) {
-            _villagerHasReplied[i] = false;
+    private void clearOtherVillagersReplies() {
+        _lock.lock();
+        try {
+            ++_round;
+            _numRepliesOutstanding = _totalVillagers - 1;   // everybody but ourselves
+        }
+        finally {
+            _lock.unlock();
         }
     }
 
     /**
      * For each iteration of the core loop, this method is called to block the Villager thread until its current message
-     * has been acknowledged by all other villagers. This is a core part of the Ricart-Agrawala algorithm. This method
-     * implements the Monitor pattern.
+     * has been acknowledged by all other villagers. This is a core part of the Ricart-Agrawala algorithm. How it waits
+     * is up to the wait strategy, which implements the Monitor pattern once it has stopped spinning.
      *
-     * The _villagerHasReplied array is accessed by the Receiver thread, hence this method is synchronised.
+     * The _numRepliesOutstanding count is written by the Receiver thread while holding the lock, and it signals
+     * _allReplied once the count reaches zero.
      */
-    private synchronized void waitForOtherVillagersToReply() {
-        // Monitor the _villagerHasReplied array
-        while (haveOtherVillagersNotReplied()) {
-            try {
-                wait();
-            }
-            catch (InterruptedException ignored) { }
-        }
+    private void waitForOtherVillagersToReply() {
+        _waitStrategy.waitUntil(_haveOtherVillagersReplied, _lock, _allReplied);
     }
 
     /**
@@ -350,51 +504,63 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
      * villagers have also finished their core loops, i.e. have finished their 3 shopping sessions. This method
      * implements the Monitor pattern.
      *
-     * The _villagerHasFinishedShopping array is accessed by the Receiver thread, hence this method is synchronised.
+     * The node's finished shopping set is written by the Receiver thread, which wakes us while holding the lock, hence
+     * this method holds the lock.
      */
-    private synchronized void waitForOtherVillagersToFinishShopping() {
-        System.out.println(_myId.getDisplayString() +
-                "waiting for other villagers to finish shopping (they need me to reply)");
+    private void waitForOtherVillagersToFinishShopping() {
+        _lock.lock();
+        try {
+            System.out.println(_myId.getDisplayString() +
+                    "waiting for other villagers to finish shopping (they need me to reply)");
 
-        // Monitor the _villagerHasFinishedShopping array
-        while (haveOtherVillagersNotFinishedShopping()) {
-            try {
-                wait();
+            // Monitor the node's finished shopping set
+            while (haveOtherVillagersNotFinishedShopping()) {
+                try {
+                    _stateChanged.await();
+                }
+                catch (InterruptedException ignored) { }
             }
-            catch (InterruptedException ignored) { }
+        }
+        finally {
+            _lock.unlock();
         }
     }
 
     /**
-     * Determines whether all other villagers have NOT replied to this villager's most recent message.
+     * Determines whether all other villagers have replied to this villager's most recent message.
      *
-     * The Receiver thread writes to the _villagerHasReplied array, and the Villager thread reads from it, hence this
-     * method is synchronised.
-     * @return true if all other villagers have NOT replied, false otherwise
+     * The Receiver thread writes to the _numRepliesOutstanding count, and the Villager thread reads from it, but the
+     * count is volatile so that the wait strategy can check it while spinning, without taking the lock.
+     * @return true if all other villagers have replied, false otherwise
      */
-    private synchronized boolean haveOtherVillagersNotReplied() {
-        for (int i = 0; i < _totalVillagers; ++i) {
-            if (i != _myId.getIndex() && !_villagerHasReplied[i]) { // be sure to skip ourselves when looping
-                return true;
-            }
-        }
-        return false;
+    private boolean haveOtherVillagersReplied() {
+        return _numRepliesOutstanding == 0;
     }
 
     /**
      * Determines whether all other villagers have NOT finished shopping.
      *
-     * The Receiver thread writes to the _villagerHasFinishedShopping array, and the Villager thread reads from it,
-     * hence this method is synchronised.
+     * The Receiver threads of every villager within the node write to the finished shopping set, and the Villager
+     * thread reads from it, but the set is protected by the node's tables rather than our lock.
      * @return true if all other villagers have NOT finished shopping, false otherwise
      */
-    private synchronized boolean haveOtherVillagersNotFinishedShopping() {
-        for (int i = 0; i < _totalVillagers; ++i) {
-            if (!_villagerHasFinishedShopping[i]) {
-                return true;
-            }
+    private boolean haveOtherVillagersNotFinishedShopping() {
+        return !_nodeTables.hasEveryVillagerFinishedShopping();
+    }
+
+    /**
+     * Nudges the monitors within the wait methods above. While a batch is being applied, the nudge is held back until
+     * the batch is done, so that the Villager thread is woken once per batch rather than once per message.
+     *
+     * Only called by the locking methods above, so the lock is already held.
+     */
+    private void wakeUpVillagerThread() {
+        if (_isApplyingBatch) {
+            _isWakeupPending = true;
+        }
+        else {
+            _stateChanged.signalAll();    // Unblock waiting threads
         }
-        return false;
     }
 
     /**
@@ -404,16 +570,23 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
      * These other villagers can now be woken up from their wait loops. They will check to see if they've received this
      * wake-up message from all villagers.
      *
-     * The Receiver thread writes to the _replyList array, and the Villager thread reads from it, hence this method is
-     * synchronised.
+     * The Receiver thread writes to the _replyList array, and the Villager thread reads from it, hence this method
+     * holds the lock.
      */
-    private synchronized void tellOtherVillagersIveExitedTheMiniMart() throws IOException {
-        System.out.println(_myId.getDisplayString() + "exited the Mini Mart " +
-                _numTimesShopped + "/" + MAX_NUM_TIMES_SHOPPED + ". Letting the next villager in.");
+    private void tellOtherVillagersIveExitedTheMiniMart() throws IOException {
+        _lock.lock();
+        try {
+            System.out.println(_myId.getDisplayString() + "exited the Mini Mart " +
+                    _numTimesShopped + "/" + MAX_NUM_TIMES_SHOPPED + ". Letting the next villager in.");
 
-        Payload payload = Payload.makeAcknowledgement(this);
-        while (!_replyList.isEmpty()) {
-            sendMessageToVillager(_replyList.pop(), payload);
+            Payload payload = Payload.makeAcknowledgement(this);
+            while (!_replyList.isEmpty()) {
+                sendMessageToVillager(_replyList.pop(), payload);
+            }
+            _messenger.flush();     // the end of a burst
+        }
+        finally {
+            _lock.unlock();
         }
     }
 
@@ -434,8 +607,9 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
     }
 
     /**
-     * Uses the messenger object to physically put bytes on the wire for another villager to read. All socket errors are
-     * swallowed, but printed to the console window.
+     * Uses the messenger object to physically put bytes on the wire for another villager to read. The messenger only
+     * queues the message, so this is cheap enough to call while holding the lock. All socket errors are swallowed, but
+     * printed to the console window.
      */
     private void sendMessageToVillager(VillagerAddress to, Payload payload) throws IOException {
         try {
@@ -452,11 +626,14 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
      * console window.
      */
     private void sendMessageToOtherVillagers(Payload payload) throws IOException {
-        for (int i = 0; i < _totalVillagers; ++i) {
-            if (i != _myId.getIndex()) { // be sure to skip ourselves when looping
-                VillagerAddress to = new VillagerAddress(_messenger.getMyAddress(), _portStart + i, i);
-                sendMessageToVillager(to, payload);
-            }
+        try {
+            // encodes the payload once, not once per villager, and leaves us out
+            _messenger.broadcast(payload, _nodeTables.getVillagerAddresses(), _myId.getIndex());
+            _messenger.flush();     // the end of a burst
+        }
+        catch (SocketException e) {
+            System.out.println("Caught exception [" + e.getLocalizedMessage() +
+                    "] when sending a message to the other villagers");
         }
     }
 }
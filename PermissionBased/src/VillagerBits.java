@@ -0,0 +1,55 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+/**
+ * This class holds one bit per villager, packed 64 to a long. A villager uses it in place of a boolean array, which
+ * takes a byte per villager, so a villager's state for every other villager takes an eighth of the memory.
+ *
+ * More importantly, questions about every villager at once are answered a word at a time rather than a villager at a
+ * time. Asking whether every villager's bit is set compares 64 of them with each comparison.
+ *
+ * This class isn't thread safe. Its owner protects it with its own lock.
+ */
+public class VillagerBits {
+    private final long[] _words;
+    private final long _lastWordMask;   // the bits of the last word that belong to a villager
+
+    /**
+     * Constructs a set with every bit clear
+     * @param numBits how many villagers there are
+     */
+    public VillagerBits(int numBits) {
+        _words = new long[(numBits + 63) >>> 6];
+        _lastWordMask = numBits % 64 == 0 ? -1L : (1L << numBits) - 1;
+    }
+
+    /**
+     * Sets a villager's bit
+     * @param i the index of the villager
+     */
+    public void set(int i) {
+        _words[i >>> 6] |= 1L << i;
+    }
+
+    /**
+     * Determines whether every villager's bit is set
+     * @return true if every bit is set, false otherwise
+     */
+    public boolean isEveryBitSet() {
+        int last = _words.length - 1;
+        for (int w = 0; w < last; ++w) {
+            if (_words[w] != -1L) {
+                return false;
+            }
+        }
+        return last < 0 || (_words[last] & _lastWordMask) == _lastWordMask;
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class runs one thread that drives the VillagerStateMachine of many villagers.
+ *
+ * Every event for a state machine, whether it's a received message or one of its own timers, runs on the thread of
+ * the event loop the state machine was given to. So a state machine's state is only ever touched by one thread, and
+ * needs no lock at all.
+ *
+ * Other threads hand events over with execute(). The queue is lock free, and the loop's thread is only unparked when
+ * it may be asleep. Timers are only set by the loop's own thread, so they're kept in an ordinary priority queue.
+ *
+ * The Main class makes one instance per core when villagers are asked to run on event loops, and shares the villagers
+ * between them.
+ */
+public class VillagerEventLoop extends Thread implements Executor {
+    private final ConcurrentLinkedQueue<Runnable> _tasks;
+    private final PriorityQueue<Timer> _timers;     // only used by this thread
+    private long _numTimersSet;                     // breaks ties between timers due at the same time
+    private volatile boolean _isParked;
+
+    /**
+     * A task that runs once its time has come
+     */
+    private static class Timer implements Comparable<Timer> {
+        private final long _dueNanos;
+        private final long _order;
+        private final Runnable _task;
+
+        /**
+         * Constructs a timer
+         * @param dueNanos the System.nanoTime() at which the task runs
+         * @param order the number of timers set before this one
+         * @param task the task to run
+         */
+        Timer(long dueNanos, long order, Runnable task) {
+            _dueNanos = dueNanos;
+            _order = order;
+            _task = task;
+        }
+
+        /**
+         * Orders timers by when they're due, then by when they were set
+         * @param other another timer
+         * @return a negative number if this timer runs first, otherwise a positive number
+         */
+        @Override
+        public int compareTo(Timer other) {
+            int compare = Long.compare(_dueNanos - other._dueNanos, 0);
+            return compare != 0 ? compare : Long.compare(_order, other._order);
+        }
+    }
+
+    /**
+     * Constructs an event loop. Tasks may be queued straight away, but none are run until it's started.
+     * @param index which of the node's event loops this is, used to name the thread
+     */
+    public VillagerEventLoop(int index) {
+        super("VillagerEventLoop" + index);
+        _tasks = new ConcurrentLinkedQueue<>();
+        _timers = new PriorityQueue<>();
+    }
+
+    /**
+     * Starts the event loop thread. The thread is a daemon so that it never prevents the JVM from ending.
+     */
+    @Override
+    public synchronized void start() {
+        setDaemon(true);
+        super.start();
+    }
+
+    /**
+     * Queues a task to be run by this event loop's thread, and wakes the thread if it's asleep. May be called by any
+     * thread.
+     * @param task the task to run
+     */
+    @Override
+    public void execute(Runnable task) {
+        _tasks.add(task);
+        if (_isParked && Thread.currentThread() != this) {
+            LockSupport.unpark(this);
+        }
+    }
+
+    /**
+     * Runs a task on this event loop's thread once the delay has passed. Only called by this event loop's thread.
+     * @param delayMillis how long to wait before running the task
+     * @param task the task to run
+     */
+    public void schedule(long delayMillis, Runnable task) {
+        _timers.add(new Timer(System.nanoTime() + delayMillis * 1_000_000L, _numTimersSet++, task));
+    }
+
+    /**
+     * The loop itself. Runs every queued task, then every timer that's due, then sleeps until the next timer is due or
+     * another thread queues a task. Never ends.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            Runnable task;
+            while ((task = _tasks.poll()) != null) {
+                runTask(task);
+            }
+
+            long nowNanos = System.nanoTime();
+            while (!_timers.isEmpty() && _timers.peek()._dueNanos - nowNanos <= 0) {
+                runTask(_timers.remove()._task);
+            }
+
+            _isParked = true;
+            if (_tasks.isEmpty()) {     // a task queued before _isParked was set wouldn't have unparked us
+                if (_timers.isEmpty()) {
+                    LockSupport.park(this);
+                }
+                else {
+                    LockSupport.parkNanos(this, _timers.peek()._dueNanos - System.nanoTime());
+                }
+            }
+            _isParked = false;
+        }
+    }
+
+    /**
+     * Runs one task. An exception is printed rather than allowed to end the loop, because the loop is shared by many
+     * villagers.
+     * @param task the task to run
+     */
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,413 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+
+/**
+ * This class is an alternative to the Villager class. It takes part in exactly the same Ricart-Agrawala algorithm, and
+ * the two can be mixed freely between nodes, but it has no thread of its own and no locks.
+ *
+ * The Villager class splits the algorithm between the Villager thread and the Receiver thread, which share the
+ * villager's state through the locking methods of the IVillager interface and wake each other through a Condition.
+ * This class instead keeps all of that state in one place, and changes it only in response to events:
+ *      a message arrives           the Receiver logic is run, exactly as it is for the Villager class
+ *      want to shop                we take the next ticket and tell the other villagers
+ *      the last reply arrives      we enter the mini mart
+ *      done shopping               we leave the mini mart, and reply to the villagers we deferred
+ *
+ * Every event runs on the thread of the VillagerEventLoop this villager was given, so only one thread ever touches
+ * this villager's state. That's why none of the methods below lock. Only the node's tables are shared with villagers
+ * on other event loops, and they lock for themselves. The time spent shopping is a timer on the event loop rather than
+ * a sleeping thread, so one event loop can drive many villagers.
+ *
+ * Just like the Villager class, this villager stays resident after it has finished shopping, replying to the other
+ * villagers until every one of them has finished too.
+ */
+public class VillagerStateMachine implements IVillager {
+    private static final int MIN_SHOPPING_TIME = 1000; // just to keep it interesting
+    private static final int MAX_SHOPPING_TIME = 2750;
+    private static final int MIN_SHOPPING_MSGS = 2; // just to keep it interesting
+    private static final int MAX_SHOPPING_MSGS = 5;
+
+    private final CountDownLatch _done;
+    private final VillagerEventLoop _eventLoop;
+    private final IMessenger _messenger;
+    private final ArrayDeque<VillagerAddress> _replyList;
+    private final Random _random;
+    private final int _totalVillagers;
+    private final VillagerAddress _myId;
+    private final NodeTables _nodeTables;               // shared by every villager within this node
+    private final int[] _villagerRepliedInRound;        // the round each villager last replied in
+    private final Executor _executor;
+    private Receiver _receiver;
+
+    private boolean _requestingMiniMartAccess; // essentially it means 'are we in the critical section?'
+    private boolean _isShopping;
+    private int _ticket;
+    private int _largestTicket;
+    private int _numTimesShopped;
+    private int _round;                     // bumped every time we tell other villagers our ticket
+    private int _numRepliesOutstanding;     // how many other villagers are yet to reply within this round
+    private int _numShoppingMsgsLeft;
+
+    /**
+     * Constructs an instance of a villager. The villager neither receives nor sends until start() is called.
+     * @param done an object to signal when this villager is finished
+     * @param eventLoop the event loop that runs every event for this villager
+     * @param executor runs a task that receives for this villager, if the messenger can't deliver messages itself
+     * @param nodeTables the tables shared by every villager within this node
+     * @param messengerFactory builds the messenger this villager uses to talk to the other villagers
+     * @param ipAddress an address on the local machine to bind to
+     * @param portStart the first value in a contiguous range of port values
+     * @param totalVillagers how many villagers are part of the simulation
+     * @param id the unique index of this villager
+     * @throws IOException if the passed in IP address is unable to be bound to
+     */
+    public VillagerStateMachine(CountDownLatch done, VillagerEventLoop eventLoop, Executor executor,
+                                NodeTables nodeTables, IMessengerFactory messengerFactory, String ipAddress,
+                                int portStart, int totalVillagers, int id) throws IOException {
+        _done = done;
+        _eventLoop = eventLoop;
+        _executor = executor;
+        _random = new Random();
+        _replyList = new ArrayDeque<>();
+
+        _totalVillagers = totalVillagers;
+        _villagerRepliedInRound = new int[totalVillagers];  // round 0 is never used, see wantToShop()
+        _nodeTables = nodeTables;
+
+        int ticketNumber = _random.nextInt(4 * totalVillagers);  // the x4 will help reduce clashes
+        _largestTicket = _ticket = ticketNumber;
+
+        _myId = new VillagerAddress(InetAddress.getByName(ipAddress), portStart + id, id);
+        _messenger = messengerFactory.makeMessenger(InetAddress.getByName(ipAddress), portStart + id);
+    }
+
+    /**
+     * Starts receiving, then queues this villager's first shopping session on its event loop. Every villager within
+     * the node must be started before their event loops are, so that none of them is sent a ticket before it's
+     * receiving. Only called once, by the main thread.
+     * @throws IOException if the messenger is unable to start receiving
+     */
+    public void start() throws IOException {
+        _receiver = new Receiver(_messenger, this);
+        IMessageHandler toEventLoop = new IMessageHandler() {
+            @Override
+            public void handleMessage(Message message) {
+                handleMessages(new Message[] { message }, 1);
+            }
+
+            @Override
+            public void handleMessages(Message[] messages, int count) {
+                // the pooled messages are held rather than detached, and the event loop releases them
+                Message[] batch = new Message[count];
+                for (int i = 0; i < count; ++i) {
+                    messages[i].hold();
+                    batch[i] = messages[i];
+                }
+                _eventLoop.execute(() -> handleOnEventLoop(batch));
+            }
+
+            @Override
+            public boolean mustShutdown() {
+                return _receiver.mustShutdown();
+            }
+        };
+        if (!_messenger.startReceiving(toEventLoop)) {
+            // this messenger needs a thread to sit inside its receive() method. it only moves messages to the loop.
+            _executor.execute(() -> receiveOnExecutor(toEventLoop));
+        }
+        _eventLoop.execute(this::wantToShop);
+    }
+
+    /**
+     * Retrieves the address of this villager
+     * @return the address of this villager
+     */
+    @Override
+    public VillagerAddress getMyId() {
+        return _myId;
+    }
+
+    /**
+     * Retrieves the ticket number of this villager
+     * @return the ticket of this villager
+     */
+    @Override
+    public int getTicket() {
+        return _ticket;
+    }
+
+    /**
+     * Updates the internal knowledge of the largest ticket
+     * @param message a message received from another villager
+     */
+    @Override
+    public void updateLargestTicket(Message message) {
+        _largestTicket = message.getLargerTicket(_largestTicket);
+    }
+
+    /**
+     * Remembers a villager that will enter the mini mart AFTER us, so that we reply to them when we leave
+     * @param villagerAddress the address of another villager
+     */
+    @Override
+    public void recordVillagersAddress(VillagerAddress villagerAddress) {
+        _replyList.push(villagerAddress);
+    }
+
+    /**
+     * Counts a villager's reply to our ticket, unless it has already replied within this round. The last reply of the
+     * round lets us into the mini mart.
+     * @param message a message received from another villager
+     */
+    @Override
+    public void recordAcknowledgement(Message message) {
+        int i = message.getVillagerIndex();
+        if (i >= 0 && i < _totalVillagers && i != _myId.getIndex() && _villagerRepliedInRound[i] != _round) {
+            _villagerRepliedInRound[i] = _round;
+            if (--_numRepliesOutstanding == 0 && _requestingMiniMartAccess && !_isShopping) {
+                enterMiniMart();
+            }
+        }
+    }
+
+    /**
+     * Records that a villager has finished shopping. If we've finished too, and we were only waiting for them, then
+     * this villager is done.
+     * @param message a message received from another villager
+     */
+    @Override
+    public void recordFinishedShopping(Message message) {
+        if (message.getVillagerIndex() >= 0 && message.getVillagerIndex() < _totalVillagers) {
+            _nodeTables.recordFinishedShopping(message.getVillagerIndex());
+            endIfEveryoneHasFinished();
+        }
+    }
+
+    /**
+     * Determines if this villager is NOT requesting mini mart access
+     * @return true if this villager is NOT requesting mini mart access, false otherwise
+     */
+    @Override
+    public boolean isNotRequestingMiniMartAccess() {
+        return !_requestingMiniMartAccess;
+    }
+
+    /**
+     * Determines if the villager that sent the message must go before this villager
+     * @param message a message received from another villager
+     * @return true if the passed in villager shops before this villager
+     */
+    @Override
+    public boolean doesVillagerShopBeforeMe(Message message) {
+        return message.isFewerThan(_ticket, _messenger.getTiebreakerValue());
+    }
+
+    /**
+     * Determines if this villager has NOT finished shopping
+     * @return true if this villager has NOT finished shopping, false otherwise
+     */
+    @Override
+    public boolean hasNotFinishedShopping() {
+        return _numTimesShopped < Villager.MAX_NUM_TIMES_SHOPPED;
+    }
+
+    /**
+     * Runs the updates straight away. Only the event loop's thread ever touches this villager, so there's nothing to
+     * lock.
+     * @param updates calls to the methods of the IVillager interface
+     */
+    @Override
+    public void applyAtomically(Runnable updates) {
+        updates.run();
+    }
+
+    /**
+     * The receiving loop for a villager whose messenger blocks inside receive(). It only moves messages to the event
+     * loop, taking every message that's already waiting along with the first, so that they're moved as one batch.
+     * Runs on the executor until this villager's Receiver is shut down.
+     * @param toEventLoop the handler that moves each batch to the event loop
+     */
+    private void receiveOnExecutor(IMessageHandler toEventLoop) {
+        Message[] received = new Message[Receiver.MAX_BATCH_SIZE];
+        try {
+            while (!_receiver.mustShutdown()) {
+                int count = 0;
+                received[count++] = _messenger.receive();     // blocks until a message arrives
+                try {
+                    Message message;
+                    while (count < Receiver.MAX_BATCH_SIZE && (message = _messenger.receiveNow()) != null) {
+                        received[count++] = message;
+                    }
+                    toEventLoop.handleMessages(received, count);
+                }
+                finally {
+                    for (int i = 0; i < count; ++i) {
+                        received[i].release();
+                        received[i] = null;
+                    }
+                }
+            }
+        }
+        catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Passes a batch of received messages to the Receiver logic, then releases them. Runs on the event loop.
+     * @param batch messages received from other villagers, each held for this method to release
+     */
+    private void handleOnEventLoop(Message[] batch) {
+        try {
+            _receiver.handleMessages(batch, batch.length);
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        finally {
+            for (Message message : batch) {
+                message.release();
+            }
+        }
+    }
+
+    /**
+     * The 'want to shop' event. Takes the next ticket and tells every other villager about it. Runs on the event loop.
+     */
+    private void wantToShop() {
+        _requestingMiniMartAccess = true;
+        _ticket = _largestTicket + 1;
+
+        // starting a new round makes every villager's reply stamp out of date at once
+        ++_round;
+        _numRepliesOutstanding = _totalVillagers - 1;   // everybody but ourselves
+        sendMessageToOtherVillagers(Payload.makeTicketNumber(this));
+
+        if (_numRepliesOutstanding == 0) {
+            enterMiniMart();    // we're the only villager in the simulation
+        }
+    }
+
+    /**
+     * Enters the mini mart, then spends some time doing nothing at all, really. The time is a chain of timers on the
+     * event loop rather than a sleep, so that the event loop is free to run other villagers meanwhile. Runs on the
+     * event loop.
+     */
+    private void enterMiniMart() {
+        _isShopping = true;
+        System.out.println(_myId.getDisplayString() + "entered the Mini Mart.");
+        _numShoppingMsgsLeft = MIN_SHOPPING_MSGS + _random.nextInt(MAX_SHOPPING_MSGS - MIN_SHOPPING_MSGS);
+        keepShopping();
+    }
+
+    /**
+     * One step of the time spent within the mini mart. Runs on the event loop.
+     */
+    private void keepShopping() {
+        if (_numShoppingMsgsLeft-- == 0) {
+            doneShopping();
+            return;
+        }
+        System.out.println(_myId.getDisplayString() + "is shopping...");
+        _eventLoop.schedule(MIN_SHOPPING_TIME + _random.nextInt(MAX_SHOPPING_TIME - MIN_SHOPPING_TIME),
+                this::keepShopping);
+    }
+
+    /**
+     * The 'done shopping' event. Leaves the mini mart, lets in the villagers we deferred, then either asks to shop
+     * again or waits for the other villagers to finish. Runs on the event loop.
+     */
+    private void doneShopping() {
+        _isShopping = false;
+        if (++_numTimesShopped >= Villager.MAX_NUM_TIMES_SHOPPED) {
+            System.out.println(_myId.getDisplayString() + "finished all their shopping.");
+            _nodeTables.recordFinishedShopping(_myId.getIndex());
+            sendMessageToOtherVillagers(Payload.makeFinishedShopping(this));
+        }
+        _requestingMiniMartAccess = false;
+
+        System.out.println(_myId.getDisplayString() + "exited the Mini Mart " +
+                _numTimesShopped + "/" + Villager.MAX_NUM_TIMES_SHOPPED + ". Letting the next villager in.");
+        Payload payload = Payload.makeAcknowledgement(this);
+        while (!_replyList.isEmpty()) {
+            sendMessageToVillager(_replyList.pop(), payload);
+        }
+        flush();
+
+        if (hasNotFinishedShopping()) {
+            wantToShop();
+        }
+        else {
+            System.out.println(_myId.getDisplayString() +
+                    "waiting for other villagers to finish shopping (they need me to reply)");
+            endIfEveryoneHasFinished();
+        }
+    }
+
+    /**
+     * Signals that this villager is done, once it and every other villager has finished shopping. Runs on the event
+     * loop.
+     */
+    private void endIfEveryoneHasFinished() {
+        if (!hasNotFinishedShopping() && !_receiver.mustShutdown() && _nodeTables.hasEveryVillagerFinishedShopping()) {
+            _receiver.shutdown();
+            _done.countDown();
+        }
+    }
+
+    /**
+     * Sends a message to one villager. All socket errors are swallowed, but printed to the console window.
+     */
+    private void sendMessageToVillager(VillagerAddress to, Payload payload) {
+        try {
+            _messenger.send(Message.makeMessage(to, payload));
+        }
+        catch (IOException e) {
+            System.out.println("Caught exception [" + e.getLocalizedMessage() +
+                    "] when sending a message to " + to.getDisplayString());
+        }
+    }
+
+    /**
+     * Sends the passed in payload data to all other villagers. All socket errors are swallowed, but printed to the
+     * console window.
+     */
+    private void sendMessageToOtherVillagers(Payload payload) {
+        try {
+            // encodes the payload once, not once per villager, and leaves us out
+            _messenger.broadcast(payload, _nodeTables.getVillagerAddresses(), _myId.getIndex());
+        }
+        catch (IOException e) {
+            System.out.println("Caught exception [" + e.getLocalizedMessage() +
+                    "] when sending a message to the other villagers");
+        }
+        flush();    // the end of a burst
+    }
+
+    /**
+     * Signals the end of a burst of messages. Socket errors are swallowed, but printed to the console window.
+     */
+    private void flush() {
+        try {
+            _messenger.flush();
+        }
+        catch (IOException e) {
+            System.out.println("Caught exception [" + e.getLocalizedMessage() + "] when flushing messages");
+        }
+    }
+}
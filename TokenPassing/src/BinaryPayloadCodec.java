@@ -0,0 +1,242 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A concrete implementation of the IPayloadCodec interface.
+ *
+ * This class formats payloads using a compact binary layout. Every payload starts with the same 8 byte header, in
+ * network byte order:
+ *      offset 0    2 bytes     magic number, the characters 'RA'
+ *      offset 2    1 byte      version of this layout
+ *      offset 3    1 byte      payload type, the ordinal of Payload.Type
+ *      offset 4    4 bytes     villager index
+ *
+ * TOKEN_REQUEST payloads follow the header with the request count then the sender's last seen token hop, both 4 bytes.
+ * FINISHED_SHOPPING payloads are just the header.
+ *
+ * TOKEN payloads follow the header with:
+ *      varint      length of the token in bytes, followed by the token as utf8 text
+ *      4 bytes     token hop
+ *      4 bytes     base hop, or -1 if the whole granted list follows
+ *      varint      number of granted list entries that follow
+ *      then either a varint per entry of the whole granted list, or a pair of varints per changed entry: the distance
+ *      from the previous changed index (the first is the index itself), and the entry's value
+ *
+ * Varints are unsigned LEB128, i.e. 7 bits per byte with the top bit set on every byte but the last. Granted counts
+ * never exceed the number of times a villager shops, so each entry is a single byte.
+ */
+public class BinaryPayloadCodec implements IPayloadCodec {
+    public static final short MAGIC = 0x5241;
+    public static final byte VERSION = 1;
+    private static final int NUM_HEADER_BYTES = 8;
+    private static final Payload.Type[] TYPES = Payload.Type.values();
+
+    /**
+     * Converts the payload to the compact binary layout
+     * @param payload the payload to convert
+     * @return an array of bytes representing the payload
+     */
+    @Override
+    public byte[] encode(Payload payload) {
+        byte[] token = payload._token == null ? new byte[0] : payload._token.getBytes(StandardCharsets.UTF_8);
+
+        ByteBuffer buffer = ByteBuffer.allocate(measure(payload, token));
+        buffer.putShort(MAGIC)
+                .put(VERSION)
+                .put((byte)payload._type.ordinal())
+                .putInt(payload._villagerIndex);
+
+        switch (payload._type) {
+            case TOKEN_REQUEST:
+                buffer.putInt(payload._requestCount).putInt(payload._tokenHop);
+                break;
+            case TOKEN:
+                putVarint(buffer, token.length);
+                buffer.put(token).putInt(payload._tokenHop).putInt(payload._baseHop);
+                if (payload.hasWholeGrantedList()) {
+                    putVarint(buffer, payload._grantedList.length);
+                    for (int granted : payload._grantedList) {
+                        putVarint(buffer, granted);
+                    }
+                }
+                else {
+                    putVarint(buffer, payload._changedIndexes.length);
+                    int previousIndex = 0;
+                    for (int i = 0; i < payload._changedIndexes.length; ++i) {
+                        putVarint(buffer, payload._changedIndexes[i] - previousIndex);
+                        putVarint(buffer, payload._changedValues[i]);
+                        previousIndex = payload._changedIndexes[i];
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+        return buffer.array();
+    }
+
+    /**
+     * Fills a payload object from bytes in the compact binary layout. Requests and finished shopping messages allocate
+     * nothing. The token allocates its string and granted list, but it's only received once per shop.
+     * @param buffer a buffer containing the received bytes
+     * @param payload the payload object to fill
+     * @throws IllegalArgumentException if the bytes are truncated or corrupt, or have the wrong magic number or version
+     */
+    @Override
+    public void decode(ByteBuffer buffer, Payload payload) {
+        if (buffer.remaining() < NUM_HEADER_BYTES || buffer.getShort() != MAGIC) {
+            throw new IllegalArgumentException("Received bytes are not a binary payload");
+        }
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported binary payload version " + version);
+        }
+        int type = buffer.get();
+        if (type < 0 || type >= TYPES.length) {
+            throw new IllegalArgumentException("Unknown binary payload type " + type);
+        }
+
+        try {
+            payload.reset(buffer.getInt(), TYPES[type]);
+            switch (payload._type) {
+                case TOKEN_REQUEST:
+                    payload._requestCount = buffer.getInt();
+                    payload._tokenHop = buffer.getInt();
+                    break;
+                case TOKEN:
+                    byte[] token = new byte[getLength(buffer)];
+                    buffer.get(token);
+                    payload._token = new String(token, StandardCharsets.UTF_8);
+                    payload._tokenHop = buffer.getInt();
+                    payload._baseHop = buffer.getInt();
+                    if (payload.hasWholeGrantedList()) {
+                        payload._grantedList = new int[getLength(buffer)];
+                        for (int i = 0; i < payload._grantedList.length; ++i) {
+                            payload._grantedList[i] = getVarint(buffer);
+                        }
+                    }
+                    else {
+                        int count = getLength(buffer);
+                        payload._changedIndexes = new int[count];
+                        payload._changedValues = new int[count];
+                        int previousIndex = 0;
+                        for (int i = 0; i < count; ++i) {
+                            previousIndex += getVarint(buffer);
+                            payload._changedIndexes[i] = previousIndex;
+                            payload._changedValues[i] = getVarint(buffer);
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        catch (RuntimeException e) {    // BufferUnderflowException, or an invalid length
+            throw new IllegalArgumentException("Truncated or corrupt binary payload", e);
+        }
+    }
+
+    /**
+     * Calculates exactly how many bytes the encoded payload will need, so that only one buffer is allocated
+     * @param payload the payload to measure
+     * @param token the payload's token as utf8 text
+     * @return the number of bytes needed to encode the payload
+     */
+    private static int measure(Payload payload, byte[] token) {
+        switch (payload._type) {
+            case TOKEN_REQUEST:
+                return NUM_HEADER_BYTES + 8;
+            case TOKEN:
+                int size = NUM_HEADER_BYTES + varintSize(token.length) + token.length + 8;
+                if (payload.hasWholeGrantedList()) {
+                    size += varintSize(payload._grantedList.length);
+                    for (int granted : payload._grantedList) {
+                        size += varintSize(granted);
+                    }
+                }
+                else {
+                    size += varintSize(payload._changedIndexes.length);
+                    int previousIndex = 0;
+                    for (int i = 0; i < payload._changedIndexes.length; ++i) {
+                        size += varintSize(payload._changedIndexes[i] - previousIndex);
+                        size += varintSize(payload._changedValues[i]);
+                        previousIndex = payload._changedIndexes[i];
+                    }
+                }
+                return size;
+            default:
+                return NUM_HEADER_BYTES;
+        }
+    }
+
+    /**
+     * Writes a non-negative value as an unsigned LEB128 varint
+     * @param buffer the buffer to write to
+     * @param value the value to write
+     */
+    private static void putVarint(ByteBuffer buffer, int value) {
+        while ((value & ~0x7F) != 0) {
+            buffer.put((byte)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        buffer.put((byte)value);
+    }
+
+    /**
+     * Reads the length of an array that follows. Every element takes at least one byte, so a length larger than the
+     * bytes remaining can only come from a corrupt payload, and is rejected before anything is allocated for it.
+     * @param buffer the buffer to read from
+     * @return the length read
+     * @throws IllegalArgumentException if the length is negative, or larger than the bytes remaining
+     */
+    private static int getLength(ByteBuffer buffer) {
+        int length = getVarint(buffer);
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("A binary payload holds an invalid length of " + length);
+        }
+        return length;
+    }
+
+    /**
+     * Reads an unsigned LEB128 varint
+     * @param buffer the buffer to read from
+     * @return the value read
+     * @throws IllegalArgumentException if the varint is longer than 5 bytes
+     */
+    private static int getVarint(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint");
+    }
+
+    /**
+     * Determines how many bytes a value needs when written as a varint
+     * @param value a non-negative value
+     * @return the number of bytes, between 1 and 5
+     */
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            ++size;
+            value >>>= 7;
+        }
+        return size;
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class lets a messenger send payloads that are larger than the receiver's buffer. Without it, UDP would silently
+ * truncate the datagram, which for the token means a granted list with entries missing off the end.
+ *
+ * A payload that fits within one datagram is sent as is. A larger payload is split into fragments, each of which
+ * starts with an 11 byte header in network byte order:
+ *      offset 0    2 bytes     magic number, the characters 'RF'
+ *      offset 2    1 byte      version of this layout
+ *      offset 3    4 bytes     frame id, unique per sending messenger
+ *      offset 7    2 bytes     fragment index
+ *      offset 9    2 bytes     fragment count
+ *
+ * The magic number can't be mistaken for JSON, which starts with a brace, nor a binary payload, which starts with 'RA'.
+ *
+ * The receiving side keeps one partially received frame per sender. Only the token is ever large enough to be split, and
+ * a villager never sends a second token before the first has arrived, so that's all we need. A fragment from a newer
+ * frame replaces whatever was left of an older frame.
+ */
+public class DatagramFragmenter {
+    public static final short MAGIC = 0x5246;
+    public static final byte VERSION = 1;
+    private static final int NUM_HEADER_BYTES = 11;
+
+    private final int _maxDatagramBytes;
+    private final AtomicInteger _nextFrameId;
+    private final HashMap<InetSocketAddress, PartialFrame> _partialFrames;
+
+    /**
+     * A frame whose fragments have not all arrived yet
+     */
+    private static class PartialFrame {
+        final int _frameId;
+        final byte[][] _fragments;
+        int _numReceived;
+        int _numBytes;
+
+        PartialFrame(int frameId, int numFragments) {
+            _frameId = frameId;
+            _fragments = new byte[numFragments][];
+        }
+    }
+
+    /**
+     * Constructs a fragmenter for datagrams of the given size
+     * @param maxDatagramBytes the size of the receiver's buffer, no datagram will be larger than this
+     */
+    public DatagramFragmenter(int maxDatagramBytes) {
+        _maxDatagramBytes = maxDatagramBytes;
+        _nextFrameId = new AtomicInteger();
+        _partialFrames = new HashMap<>();
+    }
+
+    /**
+     * Splits the payload into datagrams that each fit within the receiver's buffer. This method is thread safe.
+     * @param payload the encoded payload
+     * @return the payload itself if it fits, otherwise a list of fragments
+     */
+    public List<byte[]> split(byte[] payload) {
+        if (payload.length <= _maxDatagramBytes) {
+            return List.of(payload);
+        }
+
+        int numFragmentBytes = _maxDatagramBytes - NUM_HEADER_BYTES;
+        int numFragments = (payload.length + numFragmentBytes - 1) / numFragmentBytes;
+        int frameId = _nextFrameId.getAndIncrement();
+
+        List<byte[]> fragments = new ArrayList<>(numFragments);
+        for (int i = 0; i < numFragments; ++i) {
+            int offset = i * numFragmentBytes;
+            int length = Math.min(numFragmentBytes, payload.length - offset);
+            byte[] fragment = new byte[NUM_HEADER_BYTES + length];
+            ByteBuffer.wrap(fragment)
+                    .putShort(MAGIC)
+                    .put(VERSION)
+                    .putInt(frameId)
+                    .putShort((short)i)
+                    .putShort((short)numFragments)
+                    .put(payload, offset, length);
+            fragments.add(fragment);
+        }
+        return fragments;
+    }
+
+    /**
+     * Determines whether the received bytes are a fragment of a larger payload
+     * @param buffer a buffer containing the received bytes
+     * @return true if the bytes are a fragment, false otherwise
+     */
+    public static boolean isFragment(ByteBuffer buffer) {
+        return buffer.remaining() >= NUM_HEADER_BYTES && buffer.getShort(buffer.position()) == MAGIC;
+    }
+
+    /**
+     * Records a received fragment. When the last fragment of a payload arrives, the whole payload is returned. Only
+     * call this from the thread that receives for this messenger.
+     * @param sender the address the fragment came from
+     * @param buffer a buffer containing the received fragment
+     * @return a buffer containing the whole payload, or null if there are fragments yet to arrive
+     * @throws IllegalArgumentException if the fragment's header is malformed
+     */
+    public ByteBuffer reassemble(InetSocketAddress sender, ByteBuffer buffer) {
+        buffer.getShort();      // magic number, already checked by isFragment()
+        byte version = buffer.get();
+        if (version != VERSION) {
+            throw new IllegalArgumentException("Unsupported fragment version " + version);
+        }
+        int frameId = buffer.getInt();
+        int index = buffer.getShort();
+        int numFragments = buffer.getShort();
+        if (numFragments <= 0 || index < 0 || index >= numFragments) {
+            throw new IllegalArgumentException("Malformed fragment " + index + " of " + numFragments);
+        }
+
+        PartialFrame frame = _partialFrames.get(sender);
+        if (frame == null || frame._frameId != frameId || frame._fragments.length != numFragments) {
+            frame = new PartialFrame(frameId, numFragments);
+            _partialFrames.put(sender, frame);
+        }
+        if (frame._fragments[index] != null) {
+            return null;        // a duplicate
+        }
+
+        byte[] fragment = new byte[buffer.remaining()];
+        buffer.get(fragment);
+        frame._fragments[index] = fragment;
+        frame._numBytes += fragment.length;
+        if (++frame._numReceived < numFragments) {
+            return null;
+        }
+
+        _partialFrames.remove(sender);
+        ByteBuffer payload = ByteBuffer.allocate(frame._numBytes);
+        for (byte[] f : frame._fragments) {
+            payload.put(f);
+        }
+        return payload.flip();
+    }
+}
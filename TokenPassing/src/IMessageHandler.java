@@ -0,0 +1,35 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+
+/**
+ * This interface represents the contract between a messenger and the code that processes the messages it receives.
+ *
+ * Most messengers are happy for a thread to sit inside their receive() method. Event driven messengers, such as the
+ * SelectorMessenger, instead read the message themselves then hand it over through this interface. This means a villager
+ * does not need a thread of its own just to wait for messages.
+ */
+public interface IMessageHandler {
+    /**
+     * Processes one received message. This is called by whichever thread received the message.
+     * @param message a message received from another villager
+     * @throws IOException if a message sent in response is unable to be sent
+     */
+    void handleMessage(Message message) throws IOException;
+
+    /**
+     * Returns whether the handler no longer wants to receive messages. Messengers stop delivering messages to the
+     * handler once this returns true.
+     * @return true if the handler no longer wants to receive messages, false otherwise
+     */
+    boolean mustShutdown();
+}
@@ -11,6 +11,7 @@
 
 import java.io.IOException;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 
 /**
  * This interface represents the message passing contract between the villagers. It enables them to communicate
@@ -20,6 +21,8 @@ import java.net.InetAddress;
  * method -- it's used to construct other villager addresses from this villager's address. See ReadMe.md for more info.
  */
 public interface IMessenger {
+    int SKIP_NOBODY = -1;   // a broadcast that leaves nobody within the table out
+
     /**
      * Sends the message to its destination. The payload within the message is the data that are transferred to a
      * villager. The address contained within the message is the destination. Blocks until all bytes are sent.
@@ -36,6 +39,46 @@ public interface IMessenger {
      */
     Message receive() throws IOException;
 
+    /**
+     * Asks the messenger to deliver received messages to the handler by itself. Messengers that are driven by an event
+     * loop do this so that a villager doesn't need a thread of its own. Most messengers don't, in which case false is
+     * returned and the caller must loop over receive() instead.
+     * @param handler the object that processes received messages
+     * @return true if the messenger will deliver messages to the handler, false if the caller must use receive()
+     * @throws IOException if the underlying IP transport suffers a communication issue
+     */
+    default boolean startReceiving(IMessageHandler handler) throws IOException {
+        return false;
+    }
+
+    /**
+     * Sends the payload to every villager within the table but one. The payload is encoded once, then the same bytes
+     * are sent to each villager, rather than encoding the payload once per villager. Messengers that can send the bytes
+     * more cheaply than one message at a time override this.
+     * @param payload the data to send to every other villager
+     * @param peers the addresses of villagers. Every villager within a node passes the same table, which holds every
+     *              villager including the sender, so that the node only keeps one. The same array object is passed
+     *              every time, so that messengers may cache whatever they work out from it.
+     * @param skip the index within the table of the villager to leave out, usually the sender, or SKIP_NOBODY
+     * @throws IOException if the underlying IP transport suffers a communication issue
+     */
+    default void broadcast(Payload payload, InetSocketAddress[] peers, int skip) throws IOException {
+        byte[] bytes = payload.encode();
+        for (int i = 0; i < peers.length; ++i) {
+            if (i != skip) {
+                send(Message.makeEncodedMessage(peers[i], payload, bytes));
+            }
+        }
+    }
+
+    /**
+     * Signals the end of a burst of messages. Messengers that hold messages back, so that several can be sent together,
+     * send them now. Most messengers send every message straight away, so there's nothing to do.
+     * @throws IOException if the underlying IP transport suffers a communication issue
+     */
+    default void flush() throws IOException {
+    }
+
     /**
      * Returns the address of this villager. This method is only here so that a villager can construct the address of
      * all other villagers. This is because all villagers share the same IP address, but differ by their port. See
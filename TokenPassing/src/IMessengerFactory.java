@@ -0,0 +1,28 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+
+/**
+ * This interface lets the Main class choose HOW messages are transferred without the Villager class needing to know.
+ * Each villager asks the factory for its own messenger, bound to its own address and port.
+ */
+public interface IMessengerFactory {
+    /**
+     * Builds a messenger that is bound to the given address and port.
+     * @param localAddress an address on the local machine to bind to
+     * @param port a port on the local machine to bind to
+     * @return a new messenger object
+     * @throws IOException if the messenger cannot be bound to the address and port
+     */
+    IMessenger makeMessenger(InetAddress localAddress, int port) throws IOException;
+}
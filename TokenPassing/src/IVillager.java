@@ -16,7 +16,7 @@ import java.io.IOException;
  * receiving thread has very little state for itself. It delegates almost all state reading/writing decisions through
  * this interface.
  *
- * The trade-off, therefore, is the implementation of this interface will need to use synchronised methods so that the
+ * The trade-off, therefore, is the implementation of this interface will need to lock within its methods so that the
  * receiving thread can make a meaningful contribution to the Ricart-Agrawala algorithm.
  */
 public interface IVillager {
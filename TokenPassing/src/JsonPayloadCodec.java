@@ -0,0 +1,62 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import com.google.gson.Gson;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A concrete implementation of the IPayloadCodec interface.
+ *
+ * This class formats payloads as minified JSON. It's far slower and larger than the BinaryPayloadCodec, but the bytes
+ * on the wire are human-readable, which makes it the better choice when debugging with a packet sniffer.
+ */
+public class JsonPayloadCodec implements IPayloadCodec {
+    private final Gson _jsonParser;
+
+    /**
+     * Constructs the JSON parser once. Gson objects are thread safe so there's no need to make one per message.
+     */
+    public JsonPayloadCodec() {
+        _jsonParser = new Gson();
+    }
+
+    /**
+     * Converts the payload to minified JSON, encoded as utf8 text
+     * @param payload the payload to convert
+     * @return an array of bytes representing the payload
+     */
+    @Override
+    public byte[] encode(Payload payload) {
+        return _jsonParser.toJson(payload).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Fills a payload object from utf8 text formatted as JSON. Gson always builds a new object, so its fields are
+     * copied across. Unlike the binary codec, this allocates for every message.
+     * @param buffer a buffer containing the received bytes
+     * @param into the payload object to fill
+     */
+    @Override
+    public void decode(ByteBuffer buffer, Payload into) {
+        into.copyFrom(_jsonParser.fromJson(StandardCharsets.UTF_8.decode(buffer).toString(), Payload.class));
+    }
+
+    /**
+     * Determines whether the received bytes look like JSON. All JSON payloads are objects, so they start with a brace.
+     * @param buffer a buffer containing the received bytes
+     * @return true if the bytes look like JSON, false otherwise
+     */
+    public static boolean isJSON(ByteBuffer buffer) {
+        return buffer.hasRemaining() && buffer.get(buffer.position()) == '{';
+    }
+}
@@ -0,0 +1,252 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+/**
+ * This class knows about every villager within this node, so that messages between them never touch a socket.
+ *
+ * All villagers within a node share one JVM, but before this class existed they still sent each other datagrams over
+ * the loopback interface. That's a system call to send, another to receive, plus an encode and a decode, just to move
+ * an object from one thread to another. Now each villager's messenger is wrapped in a LocalRoutingMessenger. When the
+ * destination of a message is a villager within this node, the message is handed straight to that villager's in-memory
+ * queue instead. Only messages for villagers within other nodes are passed on to the wrapped messenger.
+ *
+ * This class is itself a messenger factory. It wraps whichever factory the Main class chose for the transport, and
+ * registers every messenger it builds. There should be one instance of this class per JVM.
+ *
+ * If there's a MulticastGroup then broadcasts are also handled here. The other villagers within this node are told
+ * through memory, and every other node is told with one multicast datagram. Broadcasts received from other nodes are
+ * decoded once, then handed to every villager within this node.
+ *
+ * If there's a DatagramCoalescer then messages for villagers within other nodes are handed to it, rather than sent
+ * straight away by the sending villager's wrapped messenger.
+ */
+public class LocalRouter implements IMessengerFactory {
+    private final IMessengerFactory _socketMessengerFactory;
+    private final Executor _receivingThread;
+    private final Executor _villagerExecutor;
+    private final BusyPoller _busyPoller;
+    private final ConcurrentHashMap<InetSocketAddress, LocalRoutingMessenger> _messengers;
+    private final MulticastGroup _multicastGroup;
+    private final DatagramCoalescer _coalescer;
+    private volatile LocalRoutingMessenger.PeerTable _lastSplit;   // of the table every villager shares
+
+    /**
+     * Constructs an empty router.
+     * @param socketMessengerFactory builds the messengers that carry messages to other nodes
+     * @param receivingThread runs tasks on the thread that delivers received messages, if the messengers built by the
+     *                        factory are event driven, otherwise null. Local messages are handled by the same thread so
+     *                        that a villager's Receiver never handles two messages at once.
+     * @param villagerExecutor runs a task per villager that moves datagrams into its inbox, if the messengers built by
+     *                         the factory aren't event driven
+     * @param busyPoller spins on each villager's inbox before its Receiver waits on it, or null to wait straight away
+     * @param multicastGroup the group to broadcast to, or null to send broadcasts to each villager one at a time
+     * @param coalescer packs payloads for the same node into one datagram, or null to send one datagram per payload
+     */
+    public LocalRouter(IMessengerFactory socketMessengerFactory, Executor receivingThread, Executor villagerExecutor,
+                       BusyPoller busyPoller, MulticastGroup multicastGroup, DatagramCoalescer coalescer) {
+        _socketMessengerFactory = socketMessengerFactory;
+        _receivingThread = receivingThread;
+        _villagerExecutor = villagerExecutor;
+        _busyPoller = busyPoller;
+        _messengers = new ConcurrentHashMap<>();
+        _multicastGroup = multicastGroup;
+        _coalescer = coalescer;
+    }
+
+    /**
+     * Starts the multicast group delivering broadcasts from other nodes to this router, if there is a group. Must be
+     * called once the router is constructed, before any villager starts receiving.
+     */
+    public void start() {
+        if (_multicastGroup != null) {
+            _multicastGroup.startDelivering(this);
+        }
+    }
+
+    /**
+     * Builds a messenger for one villager within this node, and remembers it so that other villagers within this node
+     * can find it.
+     * @param localAddress an address on the local machine to bind to
+     * @param port a port on the local machine to bind to
+     * @return a new messenger object
+     * @throws IOException if the wrapped messenger cannot be bound to the address and port
+     */
+    @Override
+    public IMessenger makeMessenger(InetAddress localAddress, int port) throws IOException {
+        LocalRoutingMessenger messenger = new LocalRoutingMessenger(this,
+                _socketMessengerFactory.makeMessenger(localAddress, port), localAddress, port, _receivingThread,
+                _villagerExecutor, _busyPoller);
+        _messengers.put(new InetSocketAddress(localAddress, port), messenger);
+        return messenger;
+    }
+
+    /**
+     * Returns the most messages that have ever waited at once in one lane of any villager's inbox within this node
+     * @param lane the lane to ask about
+     * @return the highest high water mark of that lane
+     */
+    public int getMaxInboxDepth(PriorityInbox.Lane lane) {
+        int maxDepth = 0;
+        for (LocalRoutingMessenger messenger : _messengers.values()) {
+            maxDepth = Math.max(maxDepth, messenger.getInbox().getMaxDepth(lane));
+        }
+        return maxDepth;
+    }
+
+    /**
+     * Returns how many requests for the token were dropped from the inboxes of every villager within this node,
+     * because a newer request from the same villager superseded them
+     * @return the number of coalesced requests so far
+     */
+    public int getNumCoalescedRequests() {
+        int numCoalesced = 0;
+        for (LocalRoutingMessenger messenger : _messengers.values()) {
+            numCoalesced += messenger.getInbox().getNumCoalescedRequests();
+        }
+        return numCoalesced;
+    }
+
+    /**
+     * Finds the messenger of a villager within this node
+     * @param address the villager's IP address
+     * @param port the villager's port
+     * @return the villager's messenger, or null if the villager is within another node
+     */
+    LocalRoutingMessenger find(InetAddress address, int port) {
+        return _messengers.get(new InetSocketAddress(address, port));
+    }
+
+    /**
+     * Splits a table of villager addresses into the villagers within this node and the villagers within other nodes.
+     * Every villager within the node passes the node's shared table, so the last split is kept and handed to them all,
+     * rather than each villager keeping a split of its own.
+     * @param peers the addresses of villagers
+     * @return the two halves of the table
+     */
+    LocalRoutingMessenger.PeerTable split(InetSocketAddress[] peers) {
+        LocalRoutingMessenger.PeerTable lastSplit = _lastSplit;
+        if (lastSplit != null && lastSplit.isSplitOf(peers)) {
+            return lastSplit;
+        }
+
+        ArrayList<LocalRoutingMessenger> local = new ArrayList<>();
+        ArrayList<InetSocketAddress> remote = new ArrayList<>();
+        for (InetSocketAddress peer : peers) {
+            LocalRoutingMessenger messenger = _messengers.get(peer);
+            if (messenger == null) {
+                remote.add(peer);
+            }
+            else {
+                local.add(messenger);
+            }
+        }
+        lastSplit = new LocalRoutingMessenger.PeerTable(peers, local.toArray(new LocalRoutingMessenger[0]),
+                remote.toArray(new InetSocketAddress[0]));
+        _lastSplit = lastSplit;
+        return lastSplit;
+    }
+
+    /**
+     * Sends a message to a villager within another node. It's added to a batch if there's a coalescer, otherwise the
+     * sending villager's wrapped messenger sends it straight away.
+     * @param sender the messenger of the sending villager
+     * @param message contains the destination address and the data to send
+     * @throws IOException if the wrapped messenger suffers a communication issue
+     */
+    void sendToOtherNode(LocalRoutingMessenger sender, Message message) throws IOException {
+        if (_coalescer == null || !_coalescer.add(sender, message)) {
+            sender.sendThroughSocket(message);
+        }
+    }
+
+    /**
+     * Sends a payload to villagers within other nodes. The payload is encoded once whether or not there's a coalescer.
+     * @param sender the messenger of the sending villager
+     * @param payload the data to send
+     * @param peers the addresses of villagers within other nodes
+     * @throws IOException if the wrapped messenger suffers a communication issue
+     */
+    void broadcastToOtherNodes(LocalRoutingMessenger sender, Payload payload, InetSocketAddress[] peers)
+            throws IOException {
+        if (_coalescer == null) {
+            sender.broadcastThroughSocket(payload, peers);
+            return;
+        }
+        byte[] bytes = payload.encode();
+        for (InetSocketAddress peer : peers) {
+            sendToOtherNode(sender, Message.makeEncodedMessage(peer, payload, bytes));
+        }
+    }
+
+    /**
+     * Sends every batch of payloads that's waiting, if there's a coalescer
+     * @throws IOException if a batch cannot be sent
+     */
+    void flush() throws IOException {
+        if (_coalescer != null) {
+            _coalescer.flushAll();
+        }
+    }
+
+    /**
+     * Sends the payload to every villager except the sender, if there's a multicast group to send it with
+     * @param sender the messenger of the sending villager
+     * @param payload the data to send
+     * @return true if the payload was broadcast, false if there's no multicast group
+     * @throws IOException if the multicast datagram cannot be sent
+     */
+    boolean broadcast(LocalRoutingMessenger sender, Payload payload) throws IOException {
+        if (_multicastGroup == null) {
+            return false;
+        }
+        for (LocalRoutingMessenger messenger : _messengers.values()) {
+            if (messenger != sender) {
+                messenger.deliver(Message.makeReceivedMessage(sender.getMyAddress(), sender.getLocalPort(), payload));
+            }
+        }
+        _multicastGroup.send(sender.getLocalPort(), payload.encode());
+        return true;
+    }
+
+    /**
+     * Determines whether a villager is within this node
+     * @param port the villager's port
+     * @return true if the villager is within this node, false otherwise
+     */
+    boolean isLocalVillager(int port) {
+        for (LocalRoutingMessenger messenger : _messengers.values()) {
+            if (messenger.getLocalPort() == port) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Hands a broadcast received from another node to every villager within this node. Only called by the
+     * MulticastGroup's thread.
+     * @param senderAddress the address of the node that sent the broadcast
+     * @param senderPort the port of the villager that sent the broadcast
+     * @param payload the decoded payload, which is shared by every villager because it's never changed
+     */
+    void deliverBroadcast(InetAddress senderAddress, int senderPort, Payload payload) {
+        for (LocalRoutingMessenger messenger : _messengers.values()) {
+            messenger.deliver(Message.makeReceivedMessage(senderAddress, senderPort, payload));
+        }
+    }
+}
@@ -11,7 +11,11 @@
 
 import org.apache.commons.cli.*;
 
+import java.io.IOException;
+import java.net.InetAddress;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 /**
  * The entry point for the application
@@ -22,6 +26,18 @@ public class Main {
     private static int _portStart;
     private static int _numNodes;
     private static int _idStart;
+    private static String _transport;
+    private static String _codec;
+    private static boolean _socketsOnly;
+    private static String _multicastAddress;
+    private static long _flushWindowMicros;
+    private static boolean _reliable;
+    private static long _spinBudgetMicros;
+    private static String _threads;
+    private static String _waitStrategyName;
+    private static ReliableLayer _reliableLayer;    // only made when _reliable is true
+    private static BusyPoller _busyPoller;          // only made when a spin budget is given
+    private static LocalRouter _localRouter;        // only made when _socketsOnly is false
 
     /**
      * The entry point for the application
@@ -29,16 +45,36 @@ public class Main {
      */
     public static void main(String[] args) {
         try {
-            // all command line arguments are mandatory. this will throw a ParseException if the user has not supplied a
-            // valid value for each argument.
+            // the address, port, node count, and id start arguments are mandatory. this will throw a ParseException if
+            // the user has not supplied a valid value for each argument.
             parseCommandLine(args);
+            Payload.useJSON(chooseCodec());
+            if (_spinBudgetMicros > 0) {
+                _busyPoller = new BusyPoller(_spinBudgetMicros);
+            }
 
+            Executor villagerExecutor = chooseVillagerExecutor();
+            WaitStrategy waitStrategy = chooseWaitStrategy();
             CountDownLatch villagersDone = new CountDownLatch(Villager.NUM_VILLAGERS_PER_NODE);
 
+            // every villager within this node shares one copy of the tables sized by the number of villagers
+            NodeTables nodeTables = new NodeTables(InetAddress.getByName(_ipAddress), _portStart,
+                    _numNodes * Villager.NUM_VILLAGERS_PER_NODE);
+
+            // every villager hands its messages to one queue, so that none of them sends while holding its monitor
+            OutboundQueue messengerFactory = new OutboundQueue(makeMessengerFactory(villagerExecutor));
+            messengerFactory.start();
+
+            // every villager within this node is bound to its port before any of them start sending. otherwise the
+            // first villager's request could be sent to a port that nobody is bound to yet, and be lost.
+            Villager[] villagers = new Villager[Villager.NUM_VILLAGERS_PER_NODE];
             for (int i = 0; i < Villager.NUM_VILLAGERS_PER_NODE; ++i) {
-                Villager villager = new Villager(villagersDone, _ipAddress, _portStart,
-                        _numNodes * Villager.NUM_VILLAGERS_PER_NODE, _idStart + i);
-                villager.start();
+                villagers[i] = new Villager(villagersDone, villagerExecutor, waitStrategy, nodeTables,
+                        messengerFactory, _ipAddress, _portStart, _numNodes * Villager.NUM_VILLAGERS_PER_NODE,
+                        _idStart + i);
+            }
+            for (Villager villager : villagers) {
+                villagerExecutor.execute(villager);
             }
 
             // a node will exit after the last villager within the node has finished shopping. before villagers leave
@@ -49,6 +85,28 @@ public class Main {
 
             System.out.println("\nAll villagers within this node have shopped " + Villager.MAX_NUM_TIMES_SHOPPED +
                     " times each. Exiting...");
+            if (_reliableLayer != null) {
+                System.out.println("Reliable layer: " + _reliableLayer.getNumRetransmits() + " retransmits, " +
+                        _reliableLayer.getNumDuplicates() + " duplicates dropped.");
+            }
+            if (_localRouter != null) {
+                System.out.println("Inbox high water marks: " +
+                        _localRouter.getMaxInboxDepth(PriorityInbox.Lane.GRANT) + " grants, " +
+                        _localRouter.getMaxInboxDepth(PriorityInbox.Lane.REQUEST) + " requests, " +
+                        _localRouter.getNumCoalescedRequests() + " superseded requests for the token dropped.");
+            }
+            if (_busyPoller != null) {
+                System.out.println("Busy polling: " + _busyPoller.getSpinningNanos() / 1_000_000 + " ms spinning, " +
+                        _busyPoller.getIdleNanos() / 1_000_000 + " ms blocked, " + _busyPoller.getNumSpinningPolls() +
+                        " polls found something while spinning, " + _busyPoller.getNumBlockingPolls() +
+                        " had to block.");
+            }
+            if (!_waitStrategyName.equals("block")) {
+                System.out.println("Waits for the token: " + waitStrategy.getNumAlreadySatisfied() + " never waited, " +
+                        waitStrategy.getNumSatisfiedSpinning() + " ended while spinning, " +
+                        waitStrategy.getNumSatisfiedYielding() + " while yielding, " +
+                        waitStrategy.getNumSatisfiedBlocked() + " had to block.");
+            }
             Thread.sleep(5000);
         }
         catch (ParseException pe) {
@@ -60,6 +118,174 @@ public class Main {
         }
     }
 
+    /**
+     * Chooses how villagers within this node will transfer messages, based upon the transport command line argument.
+     * @param villagerExecutor runs any task that sits inside a blocking transport's receive() method
+     * @return a factory that builds one messenger per villager
+     * @throws IOException if the chosen transport cannot be set up
+     * @throws ParseException if the transport command line argument is not recognised
+     */
+    private static IMessengerFactory makeMessengerFactory(Executor villagerExecutor)
+            throws IOException, ParseException {
+        switch (_transport) {
+            case "udp":
+                return routeLocally((localAddress, port) -> new UdpMessenger(localAddress, port, _busyPoller), null,
+                        villagerExecutor);
+            case "selector":
+                // one event loop thread receives messages for every villager within this node
+                SelectorEventLoop eventLoop = new SelectorEventLoop(_busyPoller);
+                eventLoop.start();
+                return routeLocally(eventLoop::makeMessenger, eventLoop::execute, villagerExecutor);
+            case "shm":
+                // memory mapped rings instead of sockets. only works when every node is on this machine.
+                return routeLocally((localAddress, port) -> new ShmRingMessenger(localAddress, port, _busyPoller),
+                        null, villagerExecutor);
+            case "unix":
+                // one Unix domain socket connection per pair of nodes, serviced by one event loop thread
+                SelectorEventLoop unixEventLoop = new SelectorEventLoop(_busyPoller);
+                unixEventLoop.start();
+                StreamNode unixNode = StreamNode.makeUnixNode(unixEventLoop, _portStart, _portStart + _idStart);
+                return routeLocally(unixNode::makeMessenger, unixNode::execute, villagerExecutor);
+            case "tcp":
+                // one TCP connection per pair of nodes, serviced by one event loop thread
+                SelectorEventLoop tcpEventLoop = new SelectorEventLoop(_busyPoller);
+                tcpEventLoop.start();
+                StreamNode tcpNode = StreamNode.makeTcpNode(tcpEventLoop, InetAddress.getByName(_ipAddress),
+                        _portStart, _portStart + _idStart);
+                return routeLocally(tcpNode::makeMessenger, tcpNode::execute, villagerExecutor);
+            case "gateway":
+                // one UDP endpoint per node instead of one per villager, serviced by one event loop thread
+                SelectorEventLoop gatewayEventLoop = new SelectorEventLoop(_busyPoller);
+                gatewayEventLoop.start();
+                UdpGateway gateway = new UdpGateway(gatewayEventLoop, InetAddress.getByName(_ipAddress), _portStart,
+                        _portStart + _idStart);
+                gateway.start();
+                return routeLocally(gateway::makeMessenger, gateway::execute, villagerExecutor);
+            default:
+                throw new ParseException("Unknown transport '" + _transport + "'");
+        }
+    }
+
+    /**
+     * Wraps the transport's factory in a LocalRouter, so that messages between villagers within this node are passed
+     * through memory instead of a socket. This is skipped if the user asked for sockets only.
+     * @param socketMessengerFactory the transport's factory
+     * @param receivingThread runs tasks on the transport's receiving thread if it's event driven, otherwise null
+     * @param villagerExecutor runs a task per villager that sits inside the transport's receive() method, if it isn't
+     *                         event driven
+     * @return a factory that builds one messenger per villager
+     * @throws IOException if the multicast group cannot be joined
+     * @throws ParseException if a multicast group or a flush window was asked for along with an option it can't use
+     */
+    private static IMessengerFactory routeLocally(IMessengerFactory socketMessengerFactory, Executor receivingThread,
+                                                  Executor villagerExecutor) throws IOException, ParseException {
+        if (_reliable) {
+            // underneath the LocalRouter, so that only messages that touch a socket are numbered and acknowledged
+            _reliableLayer = new ReliableLayer(socketMessengerFactory);
+            socketMessengerFactory = _reliableLayer;
+        }
+
+        MulticastGroup multicastGroup = null;
+        if (_multicastAddress != null) {
+            if (_socketsOnly) {
+                throw new ParseException("The multicast group relies upon routing through memory, so it can't be " +
+                        "used with sockets only");
+            }
+            if (_reliable) {
+                throw new ParseException("Broadcasts sent to the multicast group aren't numbered or acknowledged, so " +
+                        "it can't be used with the reliable layer");
+            }
+            // the group's port is the one just below the first villager's port, so that it never clashes
+            multicastGroup = new MulticastGroup(InetAddress.getByName(_multicastAddress), _portStart - 1,
+                    InetAddress.getByName(_ipAddress));
+        }
+
+        DatagramCoalescer coalescer = null;
+        if (_flushWindowMicros > 0) {
+            if (_socketsOnly) {
+                throw new ParseException("Batches of payloads are unpacked by routing through memory, so they can't " +
+                        "be used with sockets only");
+            }
+            coalescer = new DatagramCoalescer(_portStart, _flushWindowMicros);
+        }
+
+        if (_socketsOnly) {
+            return socketMessengerFactory;
+        }
+        _localRouter = new LocalRouter(socketMessengerFactory, receivingThread, villagerExecutor, _busyPoller,
+                multicastGroup, coalescer);
+        _localRouter.start();
+        return _localRouter;
+    }
+
+    /**
+     * Chooses how payloads sent by this node are formatted, based upon the codec command line argument.
+     * @return true if payloads should be formatted as JSON, false if they should use the compact binary layout
+     * @throws ParseException if the codec command line argument is not recognised
+     */
+    private static boolean chooseCodec() throws ParseException {
+        switch (_codec) {
+            case "json":
+                return true;  // far slower, but readable when debugging, and understood by older nodes
+            case "binary":
+                return false;
+            default:
+                throw new ParseException("Unknown codec '" + _codec + "'");
+        }
+    }
+
+    /**
+     * Chooses what the villagers and their Receivers run on, based upon the threads command line argument.
+     *
+     * Virtual threads are only found in Java 21 and later, so the executor is looked up by name rather than called
+     * directly. That way this still builds with an older JDK, where asking for virtual threads is reported as an error.
+     * Villagers and the inbox wait upon a ReentrantLock rather than a monitor, so a waiting virtual thread never pins
+     * the platform thread that carries it.
+     * @return an executor that starts each task on a thread of its own
+     * @throws ParseException if the threads command line argument is not recognised, or this JDK has no virtual threads
+     */
+    private static Executor chooseVillagerExecutor() throws ParseException {
+        switch (_threads) {
+            case "platform":
+                // one platform thread per task, just as before. they're daemons, as virtual threads always are, so
+                // that a task still blocked inside receive() never keeps the JVM running once main() returns.
+                return task -> {
+                    Thread thread = new Thread(task);
+                    thread.setDaemon(true);
+                    thread.start();
+                };
+            case "virtual":
+                try {
+                    return (Executor)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                }
+                catch (ReflectiveOperationException e) {
+                    throw new ParseException("Virtual threads need Java 21 or later, this is Java " +
+                            System.getProperty("java.version"));
+                }
+            default:
+                throw new ParseException("Unknown thread kind '" + _threads + "'");
+        }
+    }
+
+    /**
+     * Chooses how each Villager thread waits to be granted the token, based upon the wait strategy command line
+     * argument.
+     * @return the wait strategy shared by every villager within this node
+     * @throws ParseException if the wait strategy command line argument is not recognised
+     */
+    private static WaitStrategy chooseWaitStrategy() throws ParseException {
+        switch (_waitStrategyName) {
+            case "block":
+                return WaitStrategy.makeBlocking();
+            case "adaptive":
+                return WaitStrategy.makeAdaptive();    // spins, then yields, then blocks
+            case "spin":
+                return WaitStrategy.makeBusySpinning();     // a core per waiting villager
+            default:
+                throw new ParseException("Unknown wait strategy '" + _waitStrategyName + "'");
+        }
+    }
+
     /**
      * Extracts required run-time configuration from the supplied command line. We need to know the IP address to use,
      * the port, the number of nodes, and the first port to start counting from.
@@ -93,6 +319,49 @@ public class Main {
         option.setRequired(true);
         options.addOption(option);
 
+        option = new Option("t", "transport", true,
+                "How messages are transferred: udp (default), selector, shm, unix, tcp, or gateway");
+        option.setType(String.class);
+        options.addOption(option);
+
+        option = new Option("c", "codec", true,
+                "How payloads are formatted: json (default), or binary");
+        option.setType(String.class);
+        options.addOption(option);
+
+        option = new Option("s", "socketsOnly", false,
+                "Send messages between villagers within this node over the transport too, instead of through memory");
+        options.addOption(option);
+
+        option = new Option("m", "multicast", true,
+                "A multicast group address, e.g. 239.255.0.1, to broadcast to other nodes with");
+        option.setType(String.class);
+        options.addOption(option);
+
+        option = new Option("w", "flushWindow", true,
+                "Microseconds a payload may wait to share a datagram with others for the same node. 0 (default) is off");
+        option.setType(long.class);
+        options.addOption(option);
+
+        option = new Option("r", "reliable", false,
+                "Number, acknowledge, and if need be send again, every message that touches a socket");
+        options.addOption(option);
+
+        option = new Option("b", "busyPoll", true,
+                "Microseconds to spin polling for a message before blocking. 0 (default) blocks straight away");
+        option.setType(long.class);
+        options.addOption(option);
+
+        option = new Option("v", "threads", true,
+                "What villagers and their receivers run on: platform (default), or virtual");
+        option.setType(String.class);
+        options.addOption(option);
+
+        option = new Option("y", "waitStrategy", true,
+                "How villagers wait for the token: block (default), adaptive (spin, yield, then block), or spin");
+        option.setType(String.class);
+        options.addOption(option);
+
         CommandLineParser parser = new PosixParser();
         CommandLine commandLine = parser.parse(options, args);
 
@@ -100,5 +369,14 @@ public class Main {
         _portStart = Integer.parseInt(commandLine.getOptionValue("p"));
         _numNodes = Integer.parseInt(commandLine.getOptionValue("n"));
         _idStart = Integer.parseInt(commandLine.getOptionValue("i"));
+        _transport = commandLine.getOptionValue("t", "udp");
+        _codec = commandLine.getOptionValue("c", "json");
+        _socketsOnly = commandLine.hasOption("s");
+        _multicastAddress = commandLine.getOptionValue("m");
+        _flushWindowMicros = Long.parseLong(commandLine.getOptionValue("w", "0"));
+        _reliable = commandLine.hasOption("r");
+        _spinBudgetMicros = Long.parseLong(commandLine.getOptionValue("b", "0"));
+        _threads = commandLine.getOptionValue("v", "platform");
+        _waitStrategyName = commandLine.getOptionValue("y", "block");
     }
 }
@@ -9,17 +9,21 @@
  *
  */
 
-import java.net.DatagramPacket;
 import java.net.InetAddress;
-import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 
 /**
  * This class represents a message received from another villager, or it represents a message we want to send to another
  * villager.
  *
- * A message object is simply an address and a payload. The payload is utf8 text formatted as JSON. The address is an
- * IP address and a port.
+ * A message object is simply an address and a payload. The payload is formatted by an IPayloadCodec. The address is
+ * an IP address and a port.
+ *
+ * Received messages are usually pooled, see MessagePool. A pooled message is a view over the bytes it was received
+ * into. The payload isn't decoded until a field is first asked for, and it's decoded into a payload object that's
+ * reused for every datagram. Once handled, the message is released back to its pool, so a received message must never
+ * be held on to after the handler returns, unless the handler calls hold(). Copy whatever's needed out of it instead.
  */
 public class Message {
     /**
@@ -33,23 +37,97 @@ public class Message {
     }
 
     /**
-     * Builds a message from a datagram packet received via the underlying IP transport
-     * @param datagramPacket a received packet of data
+     * Builds a message from bytes that were reassembled from several fragments. The buffer must be flipped, i.e. its
+     * position and limit must surround the received bytes. Fragmented payloads are rare, so this message isn't pooled.
+     * Like a pooled message, the payload is decoded the first time one of its fields is asked for.
+     * @param sender the address of the villager that sent the bytes
+     * @param buffer a buffer containing the received bytes
+     * @return a new message object
+     */
+    public static Message fromByteBuffer(InetSocketAddress sender, ByteBuffer buffer) {
+        Message message = new Message(sender.getAddress(), sender.getPort(), Payload.makeEmpty());
+        message._buffer = buffer;
+        message._isDecoded = false;
+        return message;
+    }
+
+    /**
+     * Builds the message a villager within this node receives when another villager within this node sends it a
+     * message. The payload object is shared rather than encoded and decoded, which is safe because a payload is never
+     * changed once it's been sent.
+     * @param fromAddress the address of the sending villager
+     * @param fromPort the port of the sending villager
+     * @param sent the message as it was sent, i.e. addressed to the receiving villager
+     * @return a new message object
+     */
+    public static Message makeLocalMessage(InetAddress fromAddress, int fromPort, Message sent) {
+        return new Message(fromAddress, fromPort, sent.payload());
+    }
+
+    /**
+     * Builds a message around a payload that has already been decoded, e.g. a broadcast that's shared by every
+     * villager within this node.
+     * @param fromAddress the address of the sending villager
+     * @param fromPort the port of the sending villager
+     * @param payload the payload, which must never be changed
+     * @return a new message object
+     */
+    public static Message makeReceivedMessage(InetAddress fromAddress, int fromPort, Payload payload) {
+        return new Message(fromAddress, fromPort, payload);
+    }
+
+    /**
+     * Builds a message whose payload has already been encoded, e.g. one of many messages that carry the same broadcast.
+     * The bytes are sent as is rather than encoding the payload again.
+     * @param to the address of a villager to send this message to
+     * @param payload the payload data, which is handed over as is to villagers within this node
+     * @param payloadBytes the payload data, already encoded
      * @return a new message object
      */
-    public static Message fromDatagramPacket(DatagramPacket datagramPacket) {
-        // the datagram packet will have a large buffer of bytes, copy only the bytes we need
-        byte[] receivedBytes = Arrays.copyOfRange(datagramPacket.getData(), 0, datagramPacket.getLength());
+    public static Message makeEncodedMessage(InetSocketAddress to, Payload payload, byte[] payloadBytes) {
+        if (payload == null) {
+            throw new IllegalArgumentException("An encoded message needs its payload, use makeFrame() for other bytes");
+        }
+        Message message = new Message(to.getAddress(), to.getPort(), payload);
+        message._payloadBytes = payloadBytes;
+        return message;
+    }
 
-        // JSON must be utf8 text, therefore convert the bytes to utf8 text, then build a payload from it
-        Payload payload = Payload.fromJSON(new String(receivedBytes, StandardCharsets.UTF_8));
+    /**
+     * Builds a message whose bytes aren't one payload, e.g. a batch of payloads or a frame of the reliable layer. The
+     * bytes are sent as is. Such a message has no payload, so it can only be sent; asking for any of its payload's
+     * fields is an error.
+     * @param to the address to send this message to
+     * @param frameBytes the bytes to send
+     * @return a new message object
+     */
+    public static Message makeFrame(InetSocketAddress to, byte[] frameBytes) {
+        Message message = new Message(to.getAddress(), to.getPort(), null);
+        message._payloadBytes = frameBytes;
+        return message;
+    }
 
-        return new Message(datagramPacket.getAddress(), datagramPacket.getPort(), payload);
+    /**
+     * Builds an empty message that datagrams can be read into over and over again. Only called by MessagePool.
+     * @param pool the pool the message is released back to
+     * @param numBufferBytes the size of the message's receive buffer
+     * @return a new message object
+     */
+    static Message makePooledMessage(MessagePool pool, int numBufferBytes) {
+        Message message = new Message(null, 0, Payload.makeEmpty());
+        message._buffer = ByteBuffer.allocateDirect(numBufferBytes);
+        message._pool = pool;
+        return message;
     }
 
-    private final InetAddress _address;
-    private final int _port;
-    private final Payload _payload;
+    private InetAddress _address;
+    private int _port;
+    private final Payload _payload;     // null for a frame built by makeFrame()
+    private ByteBuffer _buffer;         // only received messages have a buffer
+    private MessagePool _pool;
+    private boolean _isHeld;            // the next release() leaves the message out of its pool
+    private boolean _isDecoded;
+    private byte[] _payloadBytes;       // only set when the payload was encoded before the message was built
 
     /**
      * This is private to force usage of the above public static methods. Their names dictate my intentions, a
@@ -62,6 +140,103 @@ public class Message {
         _address = address;
         _port = port;
         _payload = payload;
+        _isDecoded = true;
+    }
+
+    /**
+     * Clears this pooled message's buffer so that a datagram can be read into it.
+     * @return the cleared buffer
+     */
+    public ByteBuffer getReceiveBuffer() {
+        _buffer.clear();
+        return _buffer;
+    }
+
+    /**
+     * Records who sent the datagram that was read into this pooled message's buffer. The payload is decoded later, the
+     * first time one of its fields is asked for.
+     * @param sender the address of the villager that sent the datagram
+     */
+    public void wrapReceived(InetSocketAddress sender) {
+        wrapReceived(sender.getAddress(), sender.getPort());
+    }
+
+    /**
+     * Records who sent the bytes that were read into this pooled message's buffer. This is for transports that don't
+     * hand out socket addresses.
+     * @param address the address of the villager that sent the bytes
+     * @param port the port of the villager that sent the bytes
+     */
+    public void wrapReceived(InetAddress address, int port) {
+        _buffer.flip();
+        _address = address;
+        _port = port;
+        _isDecoded = false;
+    }
+
+    /**
+     * Returns the bytes received into this pooled message, before they're decoded. The messengers use this to spot
+     * fragments, which must be reassembled before they can be decoded.
+     * @return the flipped receive buffer
+     */
+    public ByteBuffer getReceivedBytes() {
+        return _buffer;
+    }
+
+    /**
+     * Copies a pooled message into one that isn't pooled, so that it can be kept after the pooled message has been
+     * released. The payload is decoded, if it hasn't been already, then copied. A message that isn't pooled is
+     * returned as is.
+     * @return a message that's safe to keep
+     */
+    public Message detach() {
+        if (_pool == null) {
+            return this;
+        }
+        Payload payload = Payload.makeEmpty();
+        payload.copyFrom(payload());
+        return new Message(_address, _port, payload);
+    }
+
+    /**
+     * Keeps a pooled message out of its pool when the code that received it releases it, so that the handler can queue
+     * it rather than detach() it. The handler must release() it again once it's finished with. Only the thread that
+     * received the message may hold it, because nothing here is synchronised.
+     */
+    public void hold() {
+        _isHeld = true;
+    }
+
+    /**
+     * Gives a pooled message back to its pool, unless it's being held, in which case the hold is let go instead. Does
+     * nothing for a message that isn't pooled.
+     */
+    public void release() {
+        if (_pool == null) {
+            return;
+        }
+        if (_isHeld) {
+            _isHeld = false;
+        }
+        else {
+            _pool.release(this);
+        }
+    }
+
+    /**
+     * Decodes the received bytes the first time the payload is needed
+     * @return the decoded payload
+     * @throws IllegalStateException if this message was built by makeFrame(), and so has no payload
+     */
+    private Payload payload() {
+        if (_payload == null) {
+            throw new IllegalStateException("A frame built by makeFrame() has no payload");
+        }
+        if (!_isDecoded) {
+            Payload.decode(_buffer, _payload);
+            _isDecoded = true;
+        }
+        return _payload;
     }
 
     /**
@@ -85,7 +260,10 @@ public class Message {
      * @return an array of bytes representing the message payload
      */
     public byte[] getPayloadBytes() {
-        return _payload.toJSON().getBytes(StandardCharsets.UTF_8);
+        if (_payloadBytes != null) {
+            return _payloadBytes;
+        }
+        return payload().encode();
     }
 
     /**
@@ -94,7 +272,7 @@ public class Message {
      * @return a villager's unique index value
      */
     public int getVillagerIndex() {
-        return _payload._villagerIndex;
+        return payload()._villagerIndex;
     }
 
     /**
@@ -102,15 +280,48 @@ public class Message {
      * @return the token as a string if there is one, null otherwise
      */
     public String getToken() {
-        return _payload._token;
+        return payload()._token;
     }
 
     /**
-     * Retrieves the granted list within the message's payload
-     * @return the array of grants if there is one, null otherwise
+     * Retrieves the hop of the token within the message's payload. For a request for the token, this is the hop of the
+     * last token the sender received.
+     * @return the token hop, or Payload.NO_TOKEN_HOP if there isn't one
      */
-    public int[] getGrantedList() {
-        return _payload._grantedList;
+    public int getTokenHop() {
+        return payload()._tokenHop;
+    }
+
+    /**
+     * Copies the granted list within the message's payload into the passed in granted list. Only the entries that
+     * differ are copied, and each copied entry has its hop set to this token's hop. This way the receiver knows which
+     * entries to send the next time it passes on the token.
+     * @param grantedList the receiver's granted list, which is updated in place
+     * @param grantedChangedAtHop for each entry in the granted list, the hop at which it last changed
+     * @param changed has the bit of every copied entry set, so that the receiver needn't look at the others
+     */
+    public void mergeGrantedListInto(int[] grantedList, int[] grantedChangedAtHop, VillagerBits changed) {
+        if (payload().hasWholeGrantedList()) {
+            int count = Math.min(grantedList.length, payload()._grantedList.length);
+            for (int i = 0; i < count; ++i) {
+                if (grantedList[i] != payload()._grantedList[i]) {
+                    grantedList[i] = payload()._grantedList[i];
+                    grantedChangedAtHop[i] = payload()._tokenHop;
+                    changed.set(i);
+                }
+            }
+        }
+        else {
+            for (int j = 0; j < payload()._changedIndexes.length; ++j) {
+                int i = payload()._changedIndexes[j];
+                if (i >= 0 && i < grantedList.length) {
+                    // grants only ever go up, so never go backwards if this villager already knows of a later grant
+                    grantedList[i] = Math.max(grantedList[i], payload()._changedValues[j]);
+                    grantedChangedAtHop[i] = payload()._tokenHop;
+                    changed.set(i);
+                }
+            }
+        }
     }
 
     /**
@@ -118,7 +329,7 @@ public class Message {
      * @return the request count within the message's payload
      */
     public int getRequestCount() {
-        return _payload._requestCount;
+        return payload()._requestCount;
     }
 
     /**
@@ -126,7 +337,7 @@ public class Message {
      * @return true if this message is a request for the token, false otherwise
      */
     public boolean isRequestForToken() {
-        return _payload._type == Payload.Type.TOKEN_REQUEST;
+        return payload()._type == Payload.Type.TOKEN_REQUEST;
     }
 
     /**
@@ -134,7 +345,16 @@ public class Message {
      * @return true if this message is transmitting the one and only one token, false otherwise
      */
     public boolean isToken() {
-        return _payload._type == Payload.Type.TOKEN;
+        return payload()._type == Payload.Type.TOKEN;
+    }
+
+    /**
+     * Determines whether this message can let a villager into the Mini Mart, i.e. it's the token. The PriorityInbox
+     * hands these to the Receiver ahead of everything else.
+     * @return true if this message is a grant, false otherwise
+     */
+    public boolean isGrant() {
+        return isToken();
     }
 
     /**
@@ -142,6 +362,6 @@ public class Message {
      * @return true if this message is communicating that a villager has finished shopping, false otherwise
      */
     public boolean isFinishedShopping() {
-        return _payload._type == Payload.Type.FINISHED_SHOPPING;
+        return payload()._type == Payload.Type.FINISHED_SHOPPING;
     }
 }
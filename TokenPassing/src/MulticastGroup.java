@@ -0,0 +1,122 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * This class sends a message to every other node with one datagram, using an IP multicast group. There's one instance
+ * per JVM, owned by the LocalRouter.
+ *
+ * Without it, every ticket request and every finished shopping message costs one datagram per villager, i.e. one
+ * system call per villager. With it, the villagers within this node are told through memory by the LocalRouter, and
+ * every other node is told with a single datagram sent to the group.
+ *
+ * Every node joins the group on the interface of the address given on the command line. Multicast over the loopback
+ * interface works fine, so no network is needed. A thread receives each datagram sent to the group, and hands it to
+ * the LocalRouter, which passes it on to each villager within this node. The datagrams this node sent itself come back
+ * too, because of multicast loopback, but they're ignored because those villagers were already told through memory.
+ *
+ * Each datagram is a short magic number, the sender's port, then the payload.
+ */
+public class MulticastGroup extends Thread {
+    private static final short MAGIC = 0x524D;              // 'RM'
+    private static final int NUM_HEADER_BYTES = 6;
+    private static final int NUM_RECEIVE_BUFFER_BYTES = 2048;
+    private final InetSocketAddress _groupAddress;
+    private final DatagramChannel _sendChannel;
+    private final DatagramChannel _receiveChannel;
+    private LocalRouter _router;
+
+    /**
+     * Joins the multicast group. Nothing is received until startDelivering() is called.
+     * @param groupAddress the multicast address, e.g. 239.255.0.1
+     * @param groupPort the port every node receives the group's datagrams on
+     * @param localAddress the address villagers bind to, which decides the interface the group is joined on
+     * @throws IOException if the group cannot be joined
+     */
+    public MulticastGroup(InetAddress groupAddress, int groupPort, InetAddress localAddress) throws IOException {
+        super("MulticastGroup");
+        NetworkInterface networkInterface = NetworkInterface.getByInetAddress(localAddress);
+        if (networkInterface == null) {
+            throw new IOException("There's no network interface with the address " + localAddress);
+        }
+        _groupAddress = new InetSocketAddress(groupAddress, groupPort);
+
+        // every node on this machine binds the same port, hence the reuse of the address
+        _receiveChannel = DatagramChannel.open(StandardProtocolFamily.INET)
+                .setOption(StandardSocketOptions.SO_REUSEADDR, true)
+                .bind(new InetSocketAddress(groupPort));
+        _receiveChannel.join(groupAddress, networkInterface);
+
+        _sendChannel = DatagramChannel.open(StandardProtocolFamily.INET)
+                .setOption(StandardSocketOptions.IP_MULTICAST_IF, networkInterface)
+                .setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+    }
+
+    /**
+     * Starts the thread that receives the group's datagrams. The thread is a daemon so that it never prevents the JVM
+     * from ending.
+     * @param router the router that passes received messages on to the villagers within this node
+     */
+    public void startDelivering(LocalRouter router) {
+        _router = router;
+        setDaemon(true);
+        start();
+    }
+
+    /**
+     * Sends one datagram to every node in the group. Safe to call from any thread.
+     * @param senderPort the port of the sending villager
+     * @param payload the encoded payload
+     * @throws IOException if the datagram cannot be sent
+     */
+    public void send(int senderPort, byte[] payload) throws IOException {
+        ByteBuffer datagram = ByteBuffer.allocate(NUM_HEADER_BYTES + payload.length);
+        datagram.putShort(MAGIC).putInt(senderPort).put(payload).flip();
+        _sendChannel.send(datagram, _groupAddress);
+    }
+
+    /**
+     * Receives the group's datagrams until the JVM ends. Each payload is decoded once, then handed to the router.
+     * Datagrams that aren't from this project are ignored.
+     */
+    @Override
+    public void run() {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(NUM_RECEIVE_BUFFER_BYTES);
+        while (_receiveChannel.isOpen()) {
+            try {
+                buffer.clear();
+                InetSocketAddress sender = (InetSocketAddress)_receiveChannel.receive(buffer);
+                buffer.flip();
+                if (buffer.remaining() < NUM_HEADER_BYTES || buffer.getShort() != MAGIC) {
+                    continue;
+                }
+                int senderPort = buffer.getInt();
+                if (_router.isLocalVillager(senderPort)) {
+                    continue;   // already delivered through memory
+                }
+                Payload payload = Payload.makeEmpty();
+                Payload.decode(buffer, payload);
+                _router.deliverBroadcast(sender.getAddress(), senderPort, payload);
+            }
+            catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class holds the tables that every villager within a node would otherwise keep a copy of. There's one instance
+ * per JVM, shared by every villager within the node.
+ *
+ * A table sized by the number of villagers within the simulation, kept by each villager within the node, takes memory
+ * in proportion to both numbers multiplied together. Kept once per node, it only takes memory in proportion to the
+ * number of villagers within the simulation. That's possible because every table holds facts that are the same
+ * whichever villager learns them, and that only ever go up:
+ *
+ *      where every villager lives
+ *      which villagers have finished shopping
+ *      how many times each villager has requested the token
+ *      how many times each villager has been granted the token, and the hop of the token that granted it
+ *      the hop of the last token each villager told us they received
+ *
+ * A villager learning any of these facts teaches every other villager within the node at the same time. The granted
+ * list is only ever changed by whichever villager holds the token, and there's only one token, so the node's copy is
+ * never behind what any of its villagers would have known on their own.
+ *
+ * The address table is never changed once built, so it's read without a lock. Everything else is written by every
+ * villager's Receiver, so it's protected by a lock of its own. A villager may hold its own lock while it takes this
+ * one, but never the other way around, so the two can't deadlock.
+ */
+public class NodeTables {
+    private final InetSocketAddress[] _villagerAddresses;
+    private final int[] _villagerRequestList;
+    private final int[] _villagerGrantedList;
+    private final int[] _grantedChangedAtHop;   // lets us send only the granted entries a villager doesn't have
+    private final int[] _villagerLastTokenHop;  // the hop of the last token each villager told us they received
+    private final VillagerBits _villagerHasFinishedShopping;
+    private final VillagerBits _villagerIsWaiting;      // set while a villager has more requests than grants
+    private final VillagerBits _grantsChanged;          // only used while merging a received granted list
+    private final ReentrantLock _lock;
+
+    /**
+     * Constructs the tables, with nobody having requested the token, nor finished shopping
+     * @param address the IP address every villager is bound to
+     * @param portStart the first value in a contiguous range of port values
+     * @param totalVillagers how many villagers are part of the simulation
+     */
+    public NodeTables(InetAddress address, int portStart, int totalVillagers) {
+        _villagerAddresses = new InetSocketAddress[totalVillagers];
+        for (int i = 0; i < totalVillagers; ++i) {
+            _villagerAddresses[i] = new InetSocketAddress(address, portStart + i);
+        }
+        _villagerRequestList = new int[totalVillagers];
+        _villagerGrantedList = new int[totalVillagers];
+        _grantedChangedAtHop = new int[totalVillagers];
+        _villagerLastTokenHop = new int[totalVillagers];
+        Arrays.fill(_villagerLastTokenHop, Payload.NO_TOKEN_HOP);
+        _villagerHasFinishedShopping = new VillagerBits(totalVillagers);
+        _villagerIsWaiting = new VillagerBits(totalVillagers);
+        _grantsChanged = new VillagerBits(totalVillagers);
+        _lock = new ReentrantLock();
+    }
+
+    /**
+     * Returns the address of every villager, including the caller. Villagers pass the table to
+     * IMessenger.broadcast() along with their own index, so that they're left out.
+     * @return the address of every villager, indexed by villager
+     */
+    public InetSocketAddress[] getVillagerAddresses() {
+        return _villagerAddresses;
+    }
+
+    /**
+     * Records a villager's request for the token, keeping the larger request count and the later token hop
+     * @param i the index of the villager
+     * @param requestCount how many times the villager has requested the token
+     * @param tokenHop the hop of the last token the villager received
+     */
+    public void recordRequest(int i, int requestCount, int tokenHop) {
+        _lock.lock();
+        try {
+            _villagerRequestList[i] = Math.max(_villagerRequestList[i], requestCount);
+            _villagerLastTokenHop[i] = Math.max(_villagerLastTokenHop[i], tokenHop);
+            updateWaiting(i);
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many times a villager has requested the token, as far as this node knows
+     * @param i the index of the villager
+     * @return the villager's request count
+     */
+    public int getRequestCount(int i) {
+        _lock.lock();
+        try {
+            return _villagerRequestList[i];
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Adds one to a villager's request count. Only called by the villager itself.
+     * @param i the index of the villager
+     */
+    public void incrementRequestCount(int i) {
+        _lock.lock();
+        try {
+            ++_villagerRequestList[i];
+            updateWaiting(i);
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Grants every request a villager has made. Only called by the villager itself, while it holds the token.
+     * @param i the index of the villager
+     * @param tokenHop the hop of the next token the villager sends
+     */
+    public void recordGrant(int i, int tokenHop) {
+        _lock.lock();
+        try {
+            _villagerGrantedList[i] = _villagerRequestList[i];
+            _grantedChangedAtHop[i] = tokenHop;
+            updateWaiting(i);
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Merges the granted list carried by a token into the node's granted list
+     * @param message a message containing the token
+     */
+    public void mergeGrantedList(Message message) {
+        _lock.lock();
+        try {
+            message.mergeGrantedListInto(_villagerGrantedList, _grantedChangedAtHop, _grantsChanged);
+            for (int i = _grantsChanged.takeLowest(); i >= 0; i = _grantsChanged.takeLowest()) {
+                updateWaiting(i);
+            }
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Builds the payload that passes the token to a villager, holding only the granted entries it doesn't have yet
+     * @param sender the villager sending the token
+     * @param tokenHop the hop of the token being sent
+     * @param to the index of the villager receiving the token
+     * @return the payload
+     */
+    public Payload makeTokenAndGrantedList(IVillager sender, int tokenHop, int to) {
+        _lock.lock();
+        try {
+            return Payload.makeTokenAndGrantedList(sender, _villagerGrantedList, _grantedChangedAtHop, tokenHop,
+                    _villagerLastTokenHop[to]);
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Chooses one of the villagers that is waiting for the token, and hasn't finished shopping, with every one of them
+     * equally likely
+     * @param self the index of the villager choosing, who's never chosen
+     * @param random the source of randomness
+     * @return the index of the chosen villager, or -1 if there's nobody to choose
+     */
+    public int chooseWaitingVillager(int self, Random random) {
+        _lock.lock();
+        try {
+            return _villagerIsWaiting.chooseRandomly(_villagerHasFinishedShopping, self, random);
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Records that a villager has finished shopping. Called by any villager's Receiver, and by a villager that has
+     * just finished.
+     * @param i the index of the villager
+     */
+    public void recordFinishedShopping(int i) {
+        _lock.lock();
+        try {
+            _villagerHasFinishedShopping.set(i);
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Brings a villager's bit within _villagerIsWaiting up to date. Called whenever its request count or granted count
+     * changes, while holding the lock.
+     * @param i the index of the villager
+     */
+    private void updateWaiting(int i) {
+        _villagerIsWaiting.set(i, _villagerRequestList[i] > _villagerGrantedList[i]);   // more requests than grants?
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.SocketException;
+import java.util.ArrayDeque;
+
+/**
+ * This class takes sending off the villagers' hands. There's one instance per JVM, and one thread that does the sending.
+ *
+ * A villager often sends while it holds its own monitor, e.g. acknowledging every deferred villager as it exits the
+ * Mini Mart, or telling every other villager it's finished shopping. Those sends are system calls, and for as long as
+ * they take the villager's Receiver is blocked on the same monitor, unable to record a single acknowledgement. Now a
+ * send only appends a task to this queue, which takes nanoseconds, and the thread within this class performs the
+ * system calls once the villager has let go of its monitor.
+ *
+ * This class is itself a messenger factory, and it wraps whichever factory the Main class chose, the same way the
+ * LocalRouter does. Every messenger it builds is a QueuedMessenger. There's one queue for the whole node rather than
+ * one per villager, because all the queue has to do is make sure that no villager makes a system call while holding
+ * its own lock, and one thread is enough for that. A thread per villager would only add threads to be scheduled.
+ *
+ * A payload is never modified once it has been made, so it's safe for this thread to encode it later on.
+ */
+public class OutboundQueue extends Thread implements IMessengerFactory {
+    /**
+     * One send, or one flush, for this queue's thread to perform
+     */
+    interface Task {
+        void run() throws IOException;
+    }
+
+    private final IMessengerFactory _messengerFactory;
+    private ArrayDeque<Task> _tasks;
+    private ArrayDeque<Task> _spareTasks;
+
+    /**
+     * Constructs the queue. Nothing is sent until start() is called.
+     * @param messengerFactory builds the messengers that actually send the messages
+     */
+    public OutboundQueue(IMessengerFactory messengerFactory) {
+        super("OutboundQueue");
+        _messengerFactory = messengerFactory;
+        _tasks = new ArrayDeque<>();
+        _spareTasks = new ArrayDeque<>();
+    }
+
+    /**
+     * Starts the queue's thread. The thread is a daemon so that it never keeps the JVM alive.
+     */
+    @Override
+    public synchronized void start() {
+        setDaemon(true);
+        super.start();
+    }
+
+    /**
+     * Builds a queued messenger for one villager, around a messenger built by the wrapped factory
+     * @param localAddress an address on the local machine to bind to
+     * @param port a port on the local machine to bind to
+     * @return a new messenger object
+     * @throws IOException if the wrapped messenger cannot be bound to the address and port
+     */
+    @Override
+    public IMessenger makeMessenger(InetAddress localAddress, int port) throws IOException {
+        return new QueuedMessenger(this, _messengerFactory.makeMessenger(localAddress, port));
+    }
+
+    /**
+     * Appends a task to the queue, and wakes this queue's thread if it's waiting. Called by any thread that sends.
+     * @param task the send to perform
+     */
+    public synchronized void enqueue(Task task) {
+        _tasks.add(task);
+        if (_tasks.size() == 1) {
+            notifyAll();        // Unblock the waiting thread
+        }
+    }
+
+    /**
+     * Performs the queued tasks in the order they were queued. Every task that's waiting is taken in one go, so that
+     * the monitor is only held long enough to swap two queues, never while sending. All socket errors are swallowed,
+     * but printed to the console window.
+     */
+    @Override
+    public void run() {
+        while (true) {
+            ArrayDeque<Task> tasks = takeTasks();
+            while (!tasks.isEmpty()) {
+                try {
+                    tasks.remove().run();
+                }
+                catch (SocketException e) {
+                    System.out.println("Caught exception [" + e.getLocalizedMessage() + "] when sending a message");
+                }
+                catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Blocks until at least one task is queued, then takes every queued task. The queue that was emptied the last time
+     * becomes the new queue, so that nothing is allocated. This method implements the Monitor pattern.
+     * @return the queued tasks, in the order they were queued
+     */
+    private synchronized ArrayDeque<Task> takeTasks() {
+        // Monitor the _tasks queue
+        while (_tasks.isEmpty()) {
+            try {
+                wait();
+            }
+            catch (InterruptedException ignored) { }
+        }
+        ArrayDeque<Task> tasks = _tasks;
+        _tasks = _spareTasks;
+        _spareTasks = tasks;
+        return tasks;
+    }
+}
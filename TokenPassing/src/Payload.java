@@ -9,11 +9,13 @@
  *
  */
 
-import com.google.gson.Gson;
+import java.nio.ByteBuffer;
 
 /**
- * This class represents the data that are sent from villager to villager within a message. So that parsing of the data
- * is unambiguous, I'm formatting the data as JSON.
+ * This class represents the data that are sent from villager to villager within a message. How the data are formatted
+ * on the wire is decided by an IPayloadCodec. The JsonPayloadCodec is used by default because it's human-readable,
+ * which helps when debugging. The far cheaper BinaryPayloadCodec can be chosen on the command line. Received data are
+ * decoded with whichever codec matches them, so villagers using different codecs can still talk to each other.
  *
  * To give the data some context, the following types were created:
  *      TOKEN_REQUEST
@@ -30,34 +32,96 @@ import com.google.gson.Gson;
  *          Each villager shops 3 times. Receipt of this message means the sender has completed all 3 shops. You should
  *          record the fact that this villager is finished. Never send the token to a villager that has finished
  *          shopping, they won't send it on to someone else.
+ *
+ * Every time the token is sent its hop number goes up by one. A villager's request for the token carries the hop of
+ * the last token it received, which tells the token holder exactly which granted list that villager already has. The
+ * holder then only sends the entries that changed since that hop. If the holder doesn't know that hop, or if most of
+ * the entries have changed anyway, then the whole granted list is sent instead.
  */
 public class Payload {
     // These are public because of a Gson requirement
     public int _villagerIndex;
     public String _token;
-    public int[] _grantedList;
+    public int[] _grantedList;      // the whole granted list, or null if only the changed entries are sent
+    public int[] _changedIndexes;   // the indexes of the changed entries, in ascending order
+    public int[] _changedValues;
+    public int _tokenHop;           // the token's hop, or for a request, the hop of the last token the sender received
+    public int _baseHop;            // the hop the changed entries are relative to, or NO_TOKEN_HOP for the whole list
     public int _requestCount;
     public enum Type { TOKEN_REQUEST, TOKEN, FINISHED_SHOPPING }
     public Type _type;
 
+    public static final int NO_TOKEN_HOP = -1;
+
+    private static final IPayloadCodec BINARY_CODEC = new BinaryPayloadCodec();
+    private static final IPayloadCodec JSON_CODEC = new JsonPayloadCodec();
+    private static volatile IPayloadCodec _codec = JSON_CODEC;
+
+    /**
+     * Chooses the format used for all payloads sent by this node. This is expected to be called once, at startup.
+     * @param useJSON true to format payloads as JSON, false to use the compact binary layout
+     */
+    public static void useJSON(boolean useJSON) {
+        _codec = useJSON ? JSON_CODEC : BINARY_CODEC;
+    }
+
     /**
      * Builds a payload that informs the receiver of a request for the token
      * @param sender the villager whose details are packed into the payload
      * @param requestCount the count to write into the payload
+     * @param lastTokenHop the hop of the last token the sender received, or NO_TOKEN_HOP if it never has
      * @return a new payload object
      */
-    public static Payload makeRequestForToken(IVillager sender, int requestCount) {
-        return new Payload(sender.getMyId().getIndex(), requestCount, Type.TOKEN_REQUEST);
+    public static Payload makeRequestForToken(IVillager sender, int requestCount, int lastTokenHop) {
+        Payload payload = new Payload(sender.getMyId().getIndex(), Type.TOKEN_REQUEST);
+        payload._requestCount = requestCount;
+        payload._tokenHop = lastTokenHop;
+        return payload;
     }
 
     /**
-     * Builds a payload that transmits the token to another villager
+     * Builds a payload that transmits the token to another villager. Only the entries of the granted list that changed
+     * after the base hop are packed into the payload, unless the base hop is unknown, or sending the whole list is
+     * cheaper.
      * @param sender the villager whose details are packed into the payload
      * @param grantedList the list of grants to write into the payload
+     * @param grantedChangedAtHop for each entry in the granted list, the hop at which it last changed (or later)
+     * @param tokenHop the hop of the token being sent
+     * @param baseHop the hop of the last token the receiver received, or NO_TOKEN_HOP if unknown
      * @return a new payload object
      */
-    public static Payload makeTokenAndGrantedList(IVillager sender, int[] grantedList) {
-        return new Payload(sender.getMyId().getIndex(), sender.getToken(), grantedList, Type.TOKEN);
+    public static Payload makeTokenAndGrantedList(IVillager sender, int[] grantedList, int[] grantedChangedAtHop,
+                                                  int tokenHop, int baseHop) {
+        Payload payload = new Payload(sender.getMyId().getIndex(), Type.TOKEN);
+        payload._token = sender.getToken();
+        payload._tokenHop = tokenHop;
+        payload._baseHop = NO_TOKEN_HOP;
+
+        if (baseHop != NO_TOKEN_HOP) {
+            int numChanged = 0;
+            for (int hop : grantedChangedAtHop) {
+                if (hop > baseHop) {
+                    ++numChanged;
+                }
+            }
+
+            // a changed entry costs an index and a value, whereas the whole list costs a value per entry
+            if (2 * numChanged < grantedList.length) {
+                payload._baseHop = baseHop;
+                payload._changedIndexes = new int[numChanged];
+                payload._changedValues = new int[numChanged];
+                for (int i = 0, j = 0; i < grantedList.length; ++i) {
+                    if (grantedChangedAtHop[i] > baseHop) {
+                        payload._changedIndexes[j] = i;
+                        payload._changedValues[j++] = grantedList[i];
+                    }
+                }
+                return payload;
+            }
+        }
+
+        payload._grantedList = grantedList.clone(); // copy the values, not the ref
+        return payload;
     }
 
     /**
@@ -70,45 +134,81 @@ public class Payload {
     }
 
     /**
-     * These are private to force usage of the above public static methods. Their names dictate my intentions, a
+     * Builds an empty payload for an IPayloadCodec to fill in with the fields it decodes
+     * @return a new payload object
+     */
+    public static Payload makeEmpty() {
+        return new Payload(0, null);
+    }
+
+    /**
+     * This is private to force usage of the above public static methods. Their names dictate my intentions, a
      * constructor does not.
      * @param villagerIndex the index of the villager
      * @param type the type of payload to construct
      */
     private Payload(int villagerIndex, Type type) {
+        reset(villagerIndex, type);
+    }
+
+    /**
+     * Clears every field, ready for an IPayloadCodec to fill in the fields it decodes. Payloads are reused by pooled
+     * messages, so nothing from the previous message may be left behind.
+     * @param villagerIndex the index of the villager
+     * @param type the type of payload
+     */
+    public void reset(int villagerIndex, Type type) {
         _villagerIndex = villagerIndex;
+        _token = null;
+        _grantedList = null;
+        _changedIndexes = null;
+        _changedValues = null;
+        _tokenHop = NO_TOKEN_HOP;
+        _baseHop = NO_TOKEN_HOP;
         _requestCount = 0;
         _type = type;
     }
-    private Payload(int villagerIndex, int requestCount, Type type) {
-        _villagerIndex = villagerIndex;
-        _requestCount = requestCount;
-        _type = type;
+
+    /**
+     * Overwrites every field of this payload with the fields of another
+     * @param other the payload to copy
+     */
+    public void copyFrom(Payload other) {
+        _villagerIndex = other._villagerIndex;
+        _token = other._token;
+        _grantedList = other._grantedList;
+        _changedIndexes = other._changedIndexes;
+        _changedValues = other._changedValues;
+        _tokenHop = other._tokenHop;
+        _baseHop = other._baseHop;
+        _requestCount = other._requestCount;
+        _type = other._type;
     }
-    private Payload(int villagerIndex, String token, int[] grantedList, Type type) {
-        _villagerIndex = villagerIndex;
-        _token = token;
-        _grantedList = grantedList.clone(); // copy the values, not the ref
-        _requestCount = 0;
-        _type = type;
+
+    /**
+     * Determines whether this payload carries the whole granted list, or just the entries that changed
+     * @return true if the whole granted list is carried, false otherwise
+     */
+    public boolean hasWholeGrantedList() {
+        return _baseHop == NO_TOKEN_HOP;
     }
 
     /**
-     * Converts the payload to minified JSON
-     * @return a minified JSON string representing the payload
+     * Converts the payload to bytes using the format chosen by useJSON()
+     * @return an array of bytes representing the payload
      */
-    public String toJSON() {
-        Gson jsonParser = new Gson();
-        return jsonParser.toJson(this);
+    public byte[] encode() {
+        return _codec.encode(this);
     }
 
     /**
-     * Builds a payload object from text formatted as JSON
-     * @param jsonText the text to parse as JSON
-     * @return a new payload object
+     * Fills an existing payload object from received bytes. JSON always starts with a brace, and binary payloads never
+     * do, so the format is detected from the first byte. Filling an existing object is how pooled messages avoid
+     * allocating a payload per datagram.
+     * @param buffer a buffer containing the received bytes
+     * @param into the payload object to fill
      */
-    public static Payload fromJSON(String jsonText) {
-        Gson jsonParser = new Gson();
-        return jsonParser.fromJson(jsonText, Payload.class);
+    public static void decode(ByteBuffer buffer, Payload into) {
+        (JsonPayloadCodec.isJSON(buffer) ? JSON_CODEC : BINARY_CODEC).decode(buffer, into);
     }
 }
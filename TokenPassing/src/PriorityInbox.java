@@ -0,0 +1,284 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class is the queue of messages waiting for one villager's Receiver. Each villager has their own instance, owned
+ * by its LocalRoutingMessenger.
+ *
+ * A plain queue hands messages to the Receiver strictly in the order they arrived. During a burst of token requests,
+ * e.g. just after the token has been passed on, the token that would let this villager in waits behind every request
+ * that arrived before it. So the messages are split into two lanes instead:
+ *      GRANT       messages that can let this villager into the Mini Mart, i.e. see Message.isGrant()
+ *      REQUEST     everything else
+ *
+ * The grant lane is always taken from first, except that a waiting request is never passed over more than
+ * MAX_NUM_CONSECUTIVE_GRANTS times in a row. That stops a steady stream of grants from starving requests, which other
+ * villagers are waiting on a reply to. Each lane is still in arrival order.
+ *
+ * To the Receiver, taking a grant ahead of an earlier request looks exactly as if the request had spent a little longer
+ * in the network. The algorithm never relied upon messages arriving in the order they were sent, because UDP doesn't
+ * promise that either, so this is safe.
+ *
+ * A villager's request for the token only ever raises what we know about that villager, i.e. the Villager keeps the
+ * larger request count and the larger token hop. So when a request arrives from a villager whose previous request is
+ * still waiting, only the newer of the two needs handling. The older one is dropped from the lane rather than being
+ * handled for nothing, and the newer one takes its place, so the villager doesn't lose its turn. The number of requests
+ * dropped this way is counted. A request is only dropped when the other one tells us at least as much on both counts.
+ *
+ * The request lane is a ring of its own rather than an ArrayDeque, so that a request can be replaced where it stands,
+ * and each villager's waiting request is found by indexing an array with the villager's index. That way a request
+ * costs the same however many villagers there are.
+ *
+ * The number of messages waiting in each lane is available, along with the most that have ever waited at once.
+ */
+public class PriorityInbox {
+    public enum Lane { GRANT, REQUEST }
+    private static final int MAX_NUM_CONSECUTIVE_GRANTS = 8;
+    private static final int NUM_INITIAL_REQUESTS = 16;     // must be a power of two
+    private static final int NUM_INITIAL_VILLAGERS = 32;
+    private final ArrayDeque<Message> _grants;
+    private Message[] _requests;                    // the request lane, as a ring. see slot().
+    private long _firstRequest;                     // the position of the oldest request within the lane
+    private long _nextRequest;                      // the position the next request will have
+    private Message[] _waitingRequests;             // indexed by villager, their request for the token that's waiting
+    private long[] _waitingRequestPositions;        // indexed by villager, where that request is within the lane
+    private int _numCoalescedRequests;
+    private int _numConsecutiveGrants;
+    private int _maxNumGrants;
+    private int _maxNumRequests;
+    private final ReentrantLock _lock;
+    private final Condition _notEmpty;
+
+    /**
+     * Constructs an empty inbox
+     */
+    public PriorityInbox() {
+        _grants = new ArrayDeque<>();
+        _requests = new Message[NUM_INITIAL_REQUESTS];
+        _lock = new ReentrantLock();
+        _notEmpty = _lock.newCondition();
+        _waitingRequests = new Message[NUM_INITIAL_VILLAGERS];
+        _waitingRequestPositions = new long[NUM_INITIAL_VILLAGERS];
+    }
+
+    /**
+     * Appends the message to its lane, and wakes the Receiver thread if it's waiting. A request for the token takes the
+     * place of a waiting request from the same villager that it supersedes. The message is classified before the lock
+     * is taken, because that may decode its payload.
+     * @param message the message to queue
+     */
+    public void add(Message message) {
+        boolean isGrant = message.isGrant();
+        boolean isRequestForToken = !isGrant && message.isRequestForToken();
+        Message dropped = null;
+        _lock.lock();
+        try {
+            if (isGrant) {
+                _grants.add(message);
+                _maxNumGrants = Math.max(_maxNumGrants, _grants.size());
+            }
+            else {
+                if (isRequestForToken) {
+                    dropped = coalesce(message);
+                }
+                if (dropped == null) {
+                    addRequest(message, isRequestForToken);
+                }
+            }
+            _notEmpty.signalAll();    // Unblock waiting threads
+        }
+        finally {
+            _lock.unlock();
+        }
+        if (dropped != null) {
+            dropped.release();
+        }
+    }
+
+    /**
+     * Takes the next message without waiting
+     * @return the next message, or null if both lanes are empty
+     */
+    public Message poll() {
+        _lock.lock();
+        try {
+            boolean hasRequests = _firstRequest != _nextRequest;
+            if (!_grants.isEmpty() && (!hasRequests || _numConsecutiveGrants < MAX_NUM_CONSECUTIVE_GRANTS)) {
+                ++_numConsecutiveGrants;
+                return _grants.remove();
+            }
+            _numConsecutiveGrants = 0;
+            return hasRequests ? removeRequest() : null;
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next message, blocking until there is one. This method implements the Monitor pattern.
+     * @return the next message
+     * @throws InterruptedException if the calling thread is interrupted while waiting
+     */
+    public Message take() throws InterruptedException {
+        _lock.lock();
+        try {
+            // Monitor both lanes
+            while (_grants.isEmpty() && _firstRequest == _nextRequest) {
+                _notEmpty.await();
+            }
+            return poll();
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many requests for the token were dropped because a newer request from the same villager superseded
+     * them
+     * @return the number of coalesced requests so far
+     */
+    public int getNumCoalescedRequests() {
+        _lock.lock();
+        try {
+            return _numCoalescedRequests;
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Returns how many messages are waiting in a lane right now
+     * @param lane the lane to count
+     * @return the number of messages waiting
+     */
+    public int getDepth(Lane lane) {
+        _lock.lock();
+        try {
+            return lane == Lane.GRANT ? _grants.size() : (int)(_nextRequest - _firstRequest);
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the most messages that have ever waited in a lane at once
+     * @param lane the lane to ask about
+     * @return the lane's high water mark
+     */
+    public int getMaxDepth(Lane lane) {
+        _lock.lock();
+        try {
+            return lane == Lane.GRANT ? _maxNumGrants : _maxNumRequests;
+        }
+        finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Keeps only one of this request and the waiting request from the same villager, if one tells us at least as much
+     * as the other. When it's this request that's kept, it takes the waiting request's place within the lane. Only
+     * called while holding the lock.
+     * @param request a request for the token that's about to be queued
+     * @return the request that was dropped, which may be the given one, or null if the given one must still be queued
+     */
+    private Message coalesce(Message request) {
+        int i = request.getVillagerIndex();
+        Message waiting = i >= 0 && i < _waitingRequests.length ? _waitingRequests[i] : null;
+        if (waiting == null) {
+            return null;
+        }
+        if (supersedes(waiting, request)) {
+            ++_numCoalescedRequests;
+            return request;
+        }
+        if (supersedes(request, waiting)) {
+            _requests[slot(_waitingRequestPositions[i])] = request;
+            _waitingRequests[i] = request;
+            ++_numCoalescedRequests;
+            return waiting;
+        }
+        return null;
+    }
+
+    /**
+     * Appends a message to the request lane, growing the ring if it's full. Only called while holding the lock.
+     * @param message the message to append
+     * @param isRequestForToken true if the message is a request for the token, which is remembered as the villager's
+     *                          waiting request
+     */
+    private void addRequest(Message message, boolean isRequestForToken) {
+        if (_nextRequest - _firstRequest == _requests.length) {
+            Message[] requests = new Message[_requests.length * 2];
+            for (long position = _firstRequest; position != _nextRequest; ++position) {
+                requests[(int)(position & (requests.length - 1))] = _requests[slot(position)];
+            }
+            _requests = requests;   // positions don't change, only the slots they map to
+        }
+        long position = _nextRequest++;
+        _requests[slot(position)] = message;
+        _maxNumRequests = Math.max(_maxNumRequests, (int)(_nextRequest - _firstRequest));
+
+        int i = message.getVillagerIndex();
+        if (isRequestForToken && i >= 0) {
+            if (i >= _waitingRequests.length) {
+                int numVillagers = Math.max(i + 1, _waitingRequests.length * 2);
+                _waitingRequests = Arrays.copyOf(_waitingRequests, numVillagers);
+                _waitingRequestPositions = Arrays.copyOf(_waitingRequestPositions, numVillagers);
+            }
+            _waitingRequests[i] = message;
+            _waitingRequestPositions[i] = position;
+        }
+    }
+
+    /**
+     * Removes the oldest message from the request lane, which must not be empty. Only called while holding the lock.
+     * @return the oldest message
+     */
+    private Message removeRequest() {
+        int slot = slot(_firstRequest++);
+        Message message = _requests[slot];
+        _requests[slot] = null;
+        int i = message.getVillagerIndex();
+        if (i >= 0 && i < _waitingRequests.length && _waitingRequests[i] == message) {
+            _waitingRequests[i] = null;
+        }
+        return message;
+    }
+
+    /**
+     * Maps a position within the request lane to a slot within the ring. The ring's length is always a power of two.
+     * @param position a position within the request lane
+     * @return the index of the slot
+     */
+    private int slot(long position) {
+        return (int)(position & (_requests.length - 1));
+    }
+
+    /**
+     * Determines whether one request tells us at least as much as another from the same villager
+     * @param newer the request that might be kept
+     * @param older the request that might be dropped
+     * @return true if the newer request's request count and token hop are both at least as large as the older one's
+     */
+    private static boolean supersedes(Message newer, Message older) {
+        return newer.getRequestCount() >= older.getRequestCount() && newer.getTokenHop() >= older.getTokenHop();
+    }
+}
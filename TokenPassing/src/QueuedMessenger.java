@@ -0,0 +1,97 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * A concrete implementation of the IMessenger interface that wraps another messenger, and sends through it later on.
+ *
+ * Sending, broadcasting and flushing only append a task to the node's OutboundQueue, and return straight away. The
+ * queue's thread performs each task through the wrapped messenger, in the order they were queued. Receiving is left
+ * to the wrapped messenger, because it never happens while a villager holds its monitor.
+ *
+ * Because sending returns before the message has left, a socket error can't be reported to the villager anymore. It's
+ * printed to the console window by the queue's thread instead, which is what the villagers did with them anyway.
+ */
+public class QueuedMessenger implements IMessenger {
+    private final OutboundQueue _queue;
+    private final IMessenger _messenger;
+
+    /**
+     * Constructs a messenger for one villager. Only called by OutboundQueue.
+     * @param queue the queue that performs this messenger's sends
+     * @param messenger the messenger the sends are performed through
+     */
+    QueuedMessenger(OutboundQueue queue, IMessenger messenger) {
+        _queue = queue;
+        _messenger = messenger;
+    }
+
+    /**
+     * Queues the message to be sent by the queue's thread
+     * @param message contains the destination address and the data to send
+     */
+    @Override
+    public void send(Message message) {
+        _queue.enqueue(() -> _messenger.send(message));
+    }
+
+    /**
+     * Receives from the wrapped messenger
+     * @return a message object containing the read bytes, and the address of the sender
+     * @throws IOException if the wrapped messenger suffers a communication issue
+     */
+    @Override
+    public Message receive() throws IOException {
+        return _messenger.receive();
+    }
+
+    /**
+     * Starts the wrapped messenger receiving
+     * @param handler the object that processes received messages
+     * @return true if messages will be delivered to the handler, false if the caller must use receive()
+     * @throws IOException if the wrapped messenger suffers a communication issue
+     */
+    @Override
+    public boolean startReceiving(IMessageHandler handler) throws IOException {
+        return _messenger.startReceiving(handler);
+    }
+
+    /**
+     * Queues the broadcast to be sent by the queue's thread. The wrapped messenger still encodes the payload once.
+     * @param payload the data to send to every other villager
+     * @param peers the addresses of villagers
+     * @param skip the index within the table of the villager to leave out
+     */
+    @Override
+    public void broadcast(Payload payload, InetSocketAddress[] peers, int skip) {
+        _queue.enqueue(() -> _messenger.broadcast(payload, peers, skip));
+    }
+
+    /**
+     * Queues the end of a burst, so that the wrapped messenger sees it after the burst's messages
+     */
+    @Override
+    public void flush() {
+        _queue.enqueue(_messenger::flush);
+    }
+
+    /**
+     * The address the villager is bound to.
+     * @return an address on the local machine
+     */
+    @Override
+    public InetAddress getMyAddress() {
+        return _messenger.getMyAddress();
+    }
+}
@@ -11,10 +11,10 @@ import java.io.IOException;
  *
  */
 
-public class Receiver extends Thread {
+public class Receiver implements Runnable, IMessageHandler {
     private final IMessenger _messenger;
     private final IVillager _villager;
-    private boolean _mustShutdown;
+    private volatile boolean _mustShutdown;
 
     /**
      * Constructs a Receiver object by saving the passed in references for later use.
@@ -25,14 +25,13 @@ public class Receiver extends Thread {
         _messenger = messenger;
         _villager = villager;
         _mustShutdown = false;
-        setName("VillagerReceiver" + _villager.getMyId().getIndex());
     }
 
     /**
-     * Sets an internal shutdown flag to true. This method is synchronised because the expectation is that the Villager
-     * thread and the Receiver thread will read/write this value concurrently.
+     * Sets an internal shutdown flag to true. The flag is volatile because the expectation is that the Villager thread
+     * and the Receiver thread will read/write this value concurrently.
      */
-    public synchronized void shutdown() throws IOException {
+    public void shutdown() throws IOException {
         _mustShutdown = true;
 
         // unblock our own call to _messenger.receive(). this is required for the last villager to end their Receiver
@@ -41,50 +40,32 @@ public class Receiver extends Thread {
     }
 
     /**
-     * Reads the current value of an internal shutdown flag. This method is synchronised because the expectation is that
-     * the Villager thread and the Receiver thread will read/write this value concurrently.
+     * Reads the current value of an internal shutdown flag. The flag is volatile because the expectation is that the
+     * Villager thread and the Receiver thread will read/write this value concurrently.
      */
-    private synchronized boolean mustShutdown() {
+    @Override
+    public boolean mustShutdown() {
         return _mustShutdown;
     }
 
     /**
-     * This method is the core receiving logic for a villager. All received messages are processed by this method, and
-     * there is no other code in this project receiving messages.
+     * This method is the receiving loop for a villager whose messenger blocks inside receive(). Each received message
+     * is passed to handleMessage(), then released back to its pool.
      *
      * This method ends when an exception is thrown, or the Villager thread uses the public shutdown() method. The
      * Villager thread will only call that method when it is certain that this villager instance has finished shopping.
-     *
-     * Roughly half of the Ricart-Agrawala algorithm is implemented here. The other half is within the Villager class.
-     *
-     * The approach here is straight forward -- we inspect the received message then record some state based upon the
-     * message's type. For the case of receiving a request for the token, it's possible we immediately send the token to
-     * some other villager.
      */
     @Override
     public void run() {
+        Thread.currentThread().setName("VillagerReceiver" + _villager.getMyId().getIndex());
         try {
             while (!mustShutdown()) {
-                Message from = _messenger.receive();        // blocks until a message arrives
-
-                if (from.isRequestForToken()) {
-                    // recording this request for a token allows this instance to potentially send the token to
-                    // the sender.
-                    _villager.recordRequestForToken(from);
-
-                    // if this instance is not currently requesting mini mart access AND has the token, then we can
-                    // send it to some other villager right now. otherwise the Villager thread will send it later.
-                    if (_villager.isNotRequestingMiniMartAccess() && _villager.hasToken()) {
-                        _villager.sendTokenToAnotherVillager();
-                    }
+                Message message = _messenger.receive();     // blocks until a message arrives
+                try {
+                    handleMessage(message);
                 }
-                else if (from.isToken()) {
-                    // recording the token allows this villager to enter the mini mart
-                    _villager.recordTokenAndGrantedList(from);
-                }
-                else if (from.isFinishedShopping()) {
-                    // recording this state prevents the sender of this message from receiving the token
-                    _villager.recordFinishedShopping(from);
+                finally {
+                    message.release();
                 }
             }
         }
@@ -92,4 +73,44 @@ public class Receiver extends Thread {
             e.printStackTrace();
         }
     }
+
+    /**
+     * This method is the core receiving logic for a villager. All received messages are processed by this method, and
+     * there is no other code in this project processing received messages.
+     *
+     * When the messenger is event driven (see IMessenger.startReceiving()) this thread is never started, and the
+     * messenger's own thread calls this method instead.
+     *
+     * Roughly half of the Ricart-Agrawala algorithm is implemented here. The other half is within the Villager class.
+     *
+     * The approach here is straight forward -- we inspect the received message then record some state based upon the
+     * message's type. For the case of receiving a request for the token, it's possible we immediately send the token to
+     * some other villager.
+     *
+     * The message may be pooled, so nothing called from here may hold on to it after this method returns.
+     * @param from a message received from another villager
+     * @throws IOException if the token is unable to be sent
+     */
+    @Override
+    public void handleMessage(Message from) throws IOException {
+        if (from.isRequestForToken()) {
+            // recording this request for a token allows this instance to potentially send the token to
+            // the sender.
+            _villager.recordRequestForToken(from);
+
+            // if this instance is not currently requesting mini mart access AND has the token, then we can
+            // send it to some other villager right now. otherwise the Villager thread will send it later.
+            if (_villager.isNotRequestingMiniMartAccess() && _villager.hasToken()) {
+                _villager.sendTokenToAnotherVillager();
+            }
+        }
+        else if (from.isToken()) {
+            // recording the token allows this villager to enter the mini mart
+            _villager.recordTokenAndGrantedList(from);
+        }
+        else if (from.isFinishedShopping()) {
+            // recording this state prevents the sender of this message from receiving the token
+            _villager.recordFinishedShopping(from);
+        }
+    }
 }
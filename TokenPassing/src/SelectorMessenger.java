@@ -0,0 +1,234 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.ArrayDeque;
+
+/**
+ * A concrete implementation of the IMessenger interface.
+ *
+ * Like the UdpMessenger this class uses UDP to transfer messages between villagers, and it's bound to the same address
+ * and port. The difference is that the channel is non-blocking, and is registered with a SelectorEventLoop that's shared
+ * by all villagers within this node. The event loop reads the datagrams and hands them to the villager's Receiver, so
+ * the Receiver doesn't need a thread of its own.
+ *
+ * Sending is done directly by the calling thread. If the socket's send buffer happens to be full then the message is
+ * queued, and the event loop sends it once the socket becomes writable again. Payloads too large for the receiver's
+ * buffer are split by a DatagramFragmenter, exactly like the UdpMessenger does.
+ */
+public class SelectorMessenger implements IMessenger, ISelectorChannel {
+    private final SelectorEventLoop _eventLoop;
+    private final DatagramChannel _channel;
+    private final InetAddress _localAddress;
+    private final ArrayDeque<DatagramPacket> _pendingSends;
+    private final DatagramFragmenter _fragmenter;
+    private IMessageHandler _handler;
+    private PullingHandler _pullingHandler;
+    private SelectionKey _key;
+
+    /**
+     * Creates a non-blocking UDP channel using the given address and port. After this call, the villager is 'bound' to
+     * this address. Messages are not received until startReceiving() is called.
+     * @param eventLoop the event loop that will receive messages for this villager
+     * @param localAddress an address on the local machine to bind to
+     * @param port a port on the local machine to bind to
+     * @throws IOException if a UDP channel cannot be created and bound to the IP address and port
+     */
+    public SelectorMessenger(SelectorEventLoop eventLoop, InetAddress localAddress, int port) throws IOException {
+        _eventLoop = eventLoop;
+        _channel = DatagramChannel.open();
+        _channel.bind(new InetSocketAddress(localAddress, port));
+        _channel.configureBlocking(false);
+        _localAddress = localAddress;
+        _pendingSends = new ArrayDeque<>();
+        _fragmenter = new DatagramFragmenter(UdpMessenger.NUM_RECEIVE_BUFFER_BYTES);
+    }
+
+    /**
+     * Copies bytes from the message to the UDP channel. If the channel can't accept the datagram right now then the
+     * message is queued for the event loop to send later. Messages are always sent in the order given.
+     * @param message contains the destination address and the data to send
+     * @throws IOException if the UDP channel suffers a communication issue
+     */
+    @Override
+    public void send(Message message) throws IOException {
+        InetSocketAddress to = new InetSocketAddress(message.getAddress(), message.getPort());
+        synchronized (_pendingSends) {
+            for (byte[] bytes : _fragmenter.split(message.getPayloadBytes())) {
+                if (_pendingSends.isEmpty() && sendNow(bytes, to)) {
+                    continue;
+                }
+                _pendingSends.add(new DatagramPacket(bytes, bytes.length, to));
+                if (_pendingSends.size() == 1) {
+                    _eventLoop.execute(() -> setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE));
+                }
+            }
+        }
+    }
+
+    /**
+     * Takes the next message for this villager, blocking until there is one. On the first call the event loop starts
+     * delivering this villager's messages to a queue that this method then takes from. The caller must release() each
+     * message it receives.
+     * @return a message object containing the read bytes, and the address of the sender
+     * @throws IOException if the calling thread is interrupted while waiting
+     */
+    @Override
+    public Message receive() throws IOException {
+        return startPulling().take();
+    }
+
+    /**
+     * Registers the channel with the event loop. From then on, each received message is passed to the handler by the
+     * event loop thread.
+     * @param handler the object that processes received messages
+     * @return true, always
+     */
+    @Override
+    public boolean startReceiving(IMessageHandler handler) {
+        _handler = handler;
+        _eventLoop.execute(() -> {
+            try {
+                synchronized (_pendingSends) {
+                    int interestOps = _pendingSends.isEmpty() ? SelectionKey.OP_READ :
+                            SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+                    _key = _channel.register(_eventLoop.getSelector(), interestOps, this);
+                }
+            }
+            catch (ClosedChannelException e) {
+                e.printStackTrace();
+            }
+        });
+        return true;
+    }
+
+    /**
+     * The address the villager is bound to.
+     * @return an address on the local machine
+     */
+    @Override
+    public InetAddress getMyAddress() {
+        return _localAddress;
+    }
+
+    /**
+     * Sends any queued datagrams, then reads every datagram that's waiting on the channel. Only called by the event
+     * loop thread.
+     * @param key the key whose channel is ready
+     * @param messagePool a pool, owned by the event loop, of messages to read the datagrams into
+     * @throws IOException if the UDP channel suffers a communication issue, or a reply cannot be sent
+     */
+    @Override
+    public void serviceChannel(SelectionKey key, MessagePool messagePool) throws IOException {
+        if (key.isValid() && key.isWritable()) {
+            flushPendingSends();
+        }
+        if (key.isValid() && key.isReadable()) {
+            readMessages(messagePool);
+        }
+    }
+
+    /**
+     * Reads every datagram waiting on the channel and passes each one to the handler. Once the handler has shut down
+     * the channel is removed from the selector. Only called by the event loop thread.
+     * @param messagePool a pool, owned by the event loop, of messages to read the datagrams into
+     * @throws IOException if the UDP channel suffers a communication issue, or a reply cannot be sent
+     */
+    private void readMessages(MessagePool messagePool) throws IOException {
+        while (!_handler.mustShutdown()) {
+            Message message = messagePool.acquire();
+            try {
+                InetSocketAddress sender = (InetSocketAddress)_channel.receive(message.getReceiveBuffer());
+                if (sender == null) {
+                    break;
+                }
+                message.wrapReceived(sender);
+                if (!DatagramFragmenter.isFragment(message.getReceivedBytes())) {
+                    _handler.handleMessage(message);
+                }
+                else {
+                    ByteBuffer payload = _fragmenter.reassemble(sender, message.getReceivedBytes());
+                    if (payload != null) {
+                        _handler.handleMessage(Message.fromByteBuffer(sender, payload));
+                    }
+                }
+            }
+            finally {
+                message.release();
+            }
+        }
+        if (_handler.mustShutdown()) {
+            _key.cancel();
+        }
+    }
+
+    /**
+     * Sends messages that were queued while the channel's send buffer was full. Only called by the event loop thread.
+     * @throws IOException if the UDP channel suffers a communication issue
+     */
+    private void flushPendingSends() throws IOException {
+        synchronized (_pendingSends) {
+            while (!_pendingSends.isEmpty() &&
+                    sendNow(_pendingSends.peek().getData(), _pendingSends.peek().getSocketAddress())) {
+                _pendingSends.remove();
+            }
+            if (_pendingSends.isEmpty()) {
+                setInterest(SelectionKey.OP_READ);
+            }
+        }
+    }
+
+    /**
+     * Attempts to send one datagram without blocking.
+     * @param bytes the data to send
+     * @param to the destination address
+     * @return true if the datagram was sent, false if the channel's send buffer is full
+     * @throws IOException if the UDP channel suffers a communication issue
+     */
+    private boolean sendNow(byte[] bytes, SocketAddress to) throws IOException {
+        return _channel.send(ByteBuffer.wrap(bytes), to) > 0;
+    }
+
+    /**
+     * Changes the set of events the event loop waits for on this channel. Only called by the event loop thread.
+     * @param interestOps a combination of SelectionKey.OP_READ and SelectionKey.OP_WRITE
+     */
+    private void setInterest(int interestOps) {
+        if (_key != null && _key.isValid()) {
+            _key.interestOps(interestOps);
+        }
+    }
+
+    /**
+     * Starts the event loop delivering this villager's messages to a queue, unless it's already doing so.
+     * @return the handler that queues this villager's messages
+     * @throws IOException if the channel cannot be registered with the event loop
+     * @throws IllegalStateException if the messages are already being delivered to another handler
+     */
+    private synchronized PullingHandler startPulling() throws IOException {
+        if (_pullingHandler == null) {
+            if (_handler != null) {
+                throw new IllegalStateException("Messages are already delivered to another handler");
+            }
+            _pullingHandler = new PullingHandler();
+            startReceiving(_pullingHandler);
+        }
+        return _pullingHandler;
+    }
+}
@@ -0,0 +1,207 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class is a ring of fixed size slots within a memory mapped file. Any number of threads, within any number of
+ * JVMs on this machine, can write frames into the ring. Only one thread, the villager that owns the ring, reads them.
+ *
+ * The file looks like this:
+ *      offset 0        int magic number, int number of slots, int largest frame in bytes
+ *      offset 64       long head, i.e. the sequence number of the next slot the owner will read
+ *      offset 128      long tail, i.e. the sequence number of the next slot a writer will claim
+ *      offset 192      the slots
+ *
+ * Each slot is a long sequence number, an int sender port, an int frame length, then the frame's bytes. The head and
+ * tail have a 64 byte cache line each, so that writers claiming slots don't slow down the owner reading them.
+ *
+ * A writer claims a slot by moving the tail on by one with a compare and set. It then copies its frame into the slot,
+ * and finally publishes the slot by setting the slot's sequence number to one more than the slot's position. The owner
+ * knows the slot at the head is ready when its sequence number matches. Because the sequence numbers keep counting up
+ * as the ring wraps around, a slot left over from the previous lap never looks ready.
+ *
+ * The longs are read and written through a VarHandle, which gives the same atomicity and ordering guarantees for
+ * memory shared with other processes as it does for memory shared with other threads.
+ */
+public class ShmRing {
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+    private static final VarHandle INTS = MethodHandles.byteBufferViewVarHandle(int[].class,
+            ByteOrder.nativeOrder());
+    private static final int MAGIC = 0x52415247;         // 'RARG'
+    private static final int MAGIC_OFFSET = 0;
+    private static final int NUM_SLOTS_OFFSET = 4;
+    private static final int MAX_FRAME_BYTES_OFFSET = 8;
+    private static final int HEAD_OFFSET = 64;
+    private static final int TAIL_OFFSET = 128;
+    private static final int SLOTS_OFFSET = 192;
+    private static final int SLOT_HEADER_BYTES = 16;    // long sequence, int sender port, int length
+    public static final int NO_FRAME = -1;
+
+    private final MappedByteBuffer _buffer;
+    private final int _numSlots;
+    private final int _maxFrameBytes;
+    private final int _numSlotBytes;
+    private long _head;                 // only used by the owner
+
+    /**
+     * Creates the ring file for a villager, replacing any file left over from a previous run. The file is deleted when
+     * this JVM ends. Only the villager that owns the ring calls this.
+     * @param path the file to create
+     * @param numSlots the number of frames the ring holds before writers must wait
+     * @param maxFrameBytes the largest frame a slot holds
+     * @return a new ring object
+     * @throws IOException if the file cannot be created or mapped
+     */
+    public static ShmRing create(Path path, int numSlots, int maxFrameBytes) throws IOException {
+        int numSlotBytes = slotBytes(maxFrameBytes);
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, SLOTS_OFFSET + (long)numSlots * numSlotBytes);
+        }
+        path.toFile().deleteOnExit();
+
+        // the magic number is cleared first so that writers stay away until the ring has been reset
+        INTS.setVolatile(buffer, MAGIC_OFFSET, 0);
+        buffer.putInt(NUM_SLOTS_OFFSET, numSlots);
+        buffer.putInt(MAX_FRAME_BYTES_OFFSET, maxFrameBytes);
+        for (int i = 0; i < numSlots; ++i) {
+            LONGS.setRelease(buffer, SLOTS_OFFSET + i * numSlotBytes, 0L);
+        }
+        LONGS.setRelease(buffer, HEAD_OFFSET, 0L);
+        LONGS.setRelease(buffer, TAIL_OFFSET, 0L);
+        INTS.setVolatile(buffer, MAGIC_OFFSET, MAGIC);
+        return new ShmRing(buffer, numSlots, maxFrameBytes);
+    }
+
+    /**
+     * Opens the ring file of another villager so that frames can be written into it. The villager may not have created
+     * its ring yet, in which case there's nothing to open. This is the same as sending a datagram to a port that
+     * nobody is bound to yet.
+     * @param path the file to open
+     * @return a new ring object, or null if the file doesn't exist or hasn't been set up by its owner yet
+     * @throws IOException if the file cannot be mapped
+     */
+    public static ShmRing open(Path path) throws IOException {
+        if (!Files.exists(path)) {
+            return null;
+        }
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() < SLOTS_OFFSET) {
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+        }
+        if ((int)INTS.getVolatile(buffer, MAGIC_OFFSET) != MAGIC) {
+            return null;
+        }
+        return new ShmRing(buffer, buffer.getInt(NUM_SLOTS_OFFSET), buffer.getInt(MAX_FRAME_BYTES_OFFSET));
+    }
+
+    /**
+     * This is private to force usage of the above public static methods. Their names dictate my intentions, a
+     * constructor does not.
+     * @param buffer the mapped file
+     * @param numSlots the number of slots in the ring
+     * @param maxFrameBytes the largest frame a slot holds
+     */
+    private ShmRing(MappedByteBuffer buffer, int numSlots, int maxFrameBytes) {
+        _buffer = buffer;
+        _numSlots = numSlots;
+        _maxFrameBytes = maxFrameBytes;
+        _numSlotBytes = slotBytes(maxFrameBytes);
+        _head = (long)LONGS.getAcquire(buffer, HEAD_OFFSET);
+    }
+
+    /**
+     * Returns the largest frame a slot holds
+     * @return a number of bytes
+     */
+    public int getMaxFrameBytes() {
+        return _maxFrameBytes;
+    }
+
+    /**
+     * Copies a frame into the next free slot. Safe to call from any number of threads and processes at once.
+     * @param senderPort the port of the villager sending the frame
+     * @param frame the bytes to copy, no larger than getMaxFrameBytes()
+     * @return true if the frame was written, false if the ring is full
+     * @throws IllegalArgumentException if the frame is too large for a slot
+     */
+    public boolean offer(int senderPort, byte[] frame) {
+        if (frame.length > _maxFrameBytes) {
+            throw new IllegalArgumentException("A " + frame.length + " byte frame won't fit within a ring slot");
+        }
+        while (true) {
+            long tail = (long)LONGS.getVolatile(_buffer, TAIL_OFFSET);
+            long head = (long)LONGS.getAcquire(_buffer, HEAD_OFFSET);
+            if (tail - head >= _numSlots) {
+                return false;
+            }
+            if (LONGS.compareAndSet(_buffer, TAIL_OFFSET, tail, tail + 1)) {
+                int slot = slotOffset(tail);
+                _buffer.putInt(slot + 8, senderPort);
+                _buffer.putInt(slot + 12, frame.length);
+                _buffer.put(slot + SLOT_HEADER_BYTES, frame);
+                LONGS.setRelease(_buffer, slot, tail + 1);     // publishes the slot to the owner
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Copies the frame at the head of the ring into the passed in buffer, if there is one. Only the owner calls this.
+     * @param into a buffer with at least getMaxFrameBytes() remaining. On return its position is just past the frame.
+     * @return the port of the villager that sent the frame, or NO_FRAME if the ring is empty
+     */
+    public int poll(ByteBuffer into) {
+        int slot = slotOffset(_head);
+        if ((long)LONGS.getAcquire(_buffer, slot) != _head + 1) {
+            return NO_FRAME;
+        }
+        int senderPort = _buffer.getInt(slot + 8);
+        int length = _buffer.getInt(slot + 12);
+        into.put(into.position(), _buffer, slot + SLOT_HEADER_BYTES, length);
+        into.position(into.position() + length);
+        LONGS.setRelease(_buffer, HEAD_OFFSET, ++_head);     // frees the slot for writers
+        return senderPort;
+    }
+
+    /**
+     * Calculates where a slot starts within the file
+     * @param sequence the slot's sequence number
+     * @return an offset within the file
+     */
+    private int slotOffset(long sequence) {
+        return SLOTS_OFFSET + (int)(sequence % _numSlots) * _numSlotBytes;
+    }
+
+    /**
+     * Calculates the size of one slot, rounded up so that every slot's sequence number is 8 byte aligned
+     * @param maxFrameBytes the largest frame a slot holds
+     * @return a number of bytes
+     */
+    private static int slotBytes(int maxFrameBytes) {
+        return (SLOT_HEADER_BYTES + maxFrameBytes + 7) & ~7;
+    }
+}
@@ -0,0 +1,224 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A concrete implementation of the IMessenger interface.
+ *
+ * All nodes have to run on the same machine anyway, because of the way villager addresses are worked out (see
+ * ReadMe.md). So instead of a socket, each villager owns a ShmRing within a memory mapped file under /dev/shm, named
+ * after its port. Sending a message means copying its payload straight into the destination villager's ring. No
+ * system call is made at all, which makes this transport a handy baseline for measuring how much of each hand-off
+ * of the mini mart is spent inside the UDP stack.
+ *
+ * There's no way to be woken up by another process writing to shared memory, so receive() polls the ring. It spins
+ * briefly, then yields, then parks for a short while between polls. When a BusyPoller is given, it spins for the whole
+ * spin budget instead, and only then parks. The ring files live in the temp directory instead if /dev/shm doesn't
+ * exist.
+ *
+ * Just like UDP, a message sent to a villager that hasn't created its ring yet is lost. A message sent to a ring that
+ * stays full for a whole second is also lost. Payloads too large for one slot are split by a DatagramFragmenter,
+ * exactly like the UdpMessenger does.
+ */
+public class ShmRingMessenger implements IMessenger, BusyPoller.Pollable {
+    private static final String SHM_DIRECTORY = "/dev/shm";
+    private static final int NUM_RING_SLOTS = 1024;
+    private static final int MAX_FREE_MESSAGES = 4;             // only one thread sits inside receive()
+    private static final int NUM_SPINNING_POLLS = 100;
+    private static final int NUM_YIELDING_POLLS = 200;
+    private static final long PARK_NANOS = 50_000;
+    private static final long FULL_RING_TIMEOUT_NANOS = 1_000_000_000;
+    private final InetAddress _localAddress;
+    private final int _localPort;
+    private final ShmRing _ring;
+    private final ConcurrentHashMap<Integer, ShmRing> _otherRings;
+    private final DatagramFragmenter _fragmenter;
+    private final MessagePool _messagePool;
+    private final BusyPoller _busyPoller;
+    private ByteBuffer _pollBuffer;             // only used by the thread inside receive()
+    private int _polledSenderPort;
+
+    /**
+     * Creates this villager's ring. After this call other villagers can send messages to this villager.
+     * @param localAddress the address other villagers use for this villager
+     * @param port the port other villagers use for this villager, which also names the ring's file
+     * @throws IOException if the ring's file cannot be created
+     */
+    public ShmRingMessenger(InetAddress localAddress, int port) throws IOException {
+        this(localAddress, port, null);
+    }
+
+    /**
+     * Creates this villager's ring the same way as above, except that receive() may busy poll it.
+     * @param localAddress the address other villagers use for this villager
+     * @param port the port other villagers use for this villager, which also names the ring's file
+     * @param busyPoller spins inside receive() for its spin budget, or null to use the usual spin, yield, then park
+     * @throws IOException if the ring's file cannot be created
+     */
+    public ShmRingMessenger(InetAddress localAddress, int port, BusyPoller busyPoller) throws IOException {
+        _localAddress = localAddress;
+        _localPort = port;
+        _ring = ShmRing.create(makeRingPath(port), NUM_RING_SLOTS, UdpMessenger.NUM_RECEIVE_BUFFER_BYTES);
+        _otherRings = new ConcurrentHashMap<>();
+        _fragmenter = new DatagramFragmenter(UdpMessenger.NUM_RECEIVE_BUFFER_BYTES);
+        _messagePool = new MessagePool(MAX_FREE_MESSAGES, UdpMessenger.NUM_RECEIVE_BUFFER_BYTES);
+        _busyPoller = busyPoller;
+    }
+
+    /**
+     * Copies the message's payload into the destination villager's ring. If the ring is full then this waits for the
+     * destination to make room.
+     * @param message contains the destination port and the data to send
+     * @throws IOException if the destination's ring file cannot be mapped
+     */
+    @Override
+    public void send(Message message) throws IOException {
+        ShmRing ring = findRing(message.getPort());
+        if (ring == null) {
+            return;     // nobody is there yet
+        }
+        long deadline = System.nanoTime() + FULL_RING_TIMEOUT_NANOS;
+        for (byte[] bytes : _fragmenter.split(message.getPayloadBytes())) {
+            while (!ring.offer(_localPort, bytes) && System.nanoTime() < deadline) {
+                Thread.yield();
+            }
+        }
+    }
+
+    /**
+     * Polls this villager's ring until a frame arrives, then copies it into a pooled message object. If the frame is a
+     * fragment then this method keeps polling until the whole payload has arrived. The caller must release() the
+     * message once it has been handled.
+     * @return a message object containing the received bytes and the sender's address
+     */
+    @Override
+    public Message receive() throws IOException {
+        while (true) {
+            Message message = _messagePool.acquire();
+            ByteBuffer buffer = message.getReceiveBuffer();
+            int senderPort = pollRing(buffer);
+
+            // every node is on this machine and bound to the same address, so only the port is carried in the ring
+            message.wrapReceived(_localAddress, senderPort);
+            if (!DatagramFragmenter.isFragment(message.getReceivedBytes())) {
+                return message;
+            }
+            InetSocketAddress sender = new InetSocketAddress(_localAddress, senderPort);
+            ByteBuffer payload = _fragmenter.reassemble(sender, message.getReceivedBytes());
+            message.release();
+            if (payload != null) {
+                return Message.fromByteBuffer(sender, payload);
+            }
+        }
+    }
+
+    /**
+     * Takes a frame from this villager's ring if there is one. Only called by the BusyPoller, on the thread inside
+     * receive().
+     * @return true if a frame was taken, false otherwise
+     */
+    @Override
+    public boolean poll() {
+        _polledSenderPort = _ring.poll(_pollBuffer);
+        return _polledSenderPort != ShmRing.NO_FRAME;
+    }
+
+    /**
+     * Parks for a short while. Nothing can wake this thread when a frame arrives, so this is as close to blocking as
+     * shared memory gets. Only called by the BusyPoller, on the thread inside receive().
+     */
+    @Override
+    public void block() {
+        LockSupport.parkNanos(PARK_NANOS);
+    }
+
+    /**
+     * Polls this villager's ring until a frame arrives, and copies it into the buffer
+     * @param buffer where the frame is copied to
+     * @return the port of the frame's sender
+     * @throws IOException never, but the BusyPoller allows for channels that can fail
+     */
+    private int pollRing(ByteBuffer buffer) throws IOException {
+        if (_busyPoller != null) {
+            _pollBuffer = buffer;
+            try {
+                _busyPoller.pollUntilReady(this);
+                return _polledSenderPort;
+            }
+            finally {
+                _pollBuffer = null;
+            }
+        }
+
+        int senderPort;
+        int numIdlePolls = 0;
+        while ((senderPort = _ring.poll(buffer)) == ShmRing.NO_FRAME) {
+            if (++numIdlePolls < NUM_SPINNING_POLLS) {
+                Thread.onSpinWait();
+            }
+            else if (numIdlePolls < NUM_SPINNING_POLLS + NUM_YIELDING_POLLS) {
+                Thread.yield();
+            }
+            else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+        return senderPort;
+    }
+
+    /**
+     * The address the villager uses.
+     * @return an address on the local machine
+     */
+    @Override
+    public InetAddress getMyAddress() {
+        return _localAddress;
+    }
+
+    /**
+     * Finds the ring of another villager, opening it the first time it's needed
+     * @param port the villager's port
+     * @return the villager's ring, or null if the villager hasn't created it yet
+     * @throws IOException if the ring's file cannot be mapped
+     */
+    private ShmRing findRing(int port) throws IOException {
+        ShmRing ring = _otherRings.get(port);
+        if (ring == null) {
+            ring = ShmRing.open(makeRingPath(port));
+            if (ring != null) {
+                _otherRings.put(port, ring);
+            }
+        }
+        return ring;
+    }
+
+    /**
+     * Works out the name of a villager's ring file
+     * @param port the villager's port
+     * @return the path of the ring file
+     */
+    private static Path makeRingPath(int port) {
+        Path directory = Paths.get(SHM_DIRECTORY);
+        if (!Files.isDirectory(directory)) {
+            directory = Paths.get(System.getProperty("java.io.tmpdir"));
+        }
+        return directory.resolve("RicartAgrawala" + port + ".ring");
+    }
+}
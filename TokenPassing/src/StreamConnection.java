@@ -0,0 +1,353 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class is one stream connection between two nodes. See StreamNode for the bigger picture.
+ *
+ * Each message is framed with its length, so that the receiver can tell where one message ends and the next starts
+ * within the stream. Sending a frame only appends it to a queue. The first frame queued after a write also queues a
+ * task for the event loop, and by the time that task runs every villager within this node has usually queued frames
+ * of its own, e.g. when several villagers acknowledge one request. The task writes every queued frame with a single
+ * gathering write, i.e. one system call per event loop tick rather than one per message.
+ *
+ * If the socket's send buffer happens to be full then whatever wasn't written stays queued, and the event loop writes
+ * it once the socket becomes writable again. This way no thread ever blocks on a write, which matters because the
+ * event loop is also the thread that reads the other direction.
+ *
+ * Reading is only done by the event loop thread. Frames are read into one buffer, which is compacted after every read
+ * so that a frame split across two reads is picked up whole on the second.
+ *
+ * A connection this node dials is usable straight away, even though the other node may not be listening yet. The
+ * channel connects without blocking, and the event loop finishes the connection once the channel becomes connectable.
+ * Until then frames just stay queued. If the other node isn't listening then dialing is tried again later, waiting
+ * twice as long each time up to a limit, so that no frame is ever dropped just because that node started late.
+ */
+public class StreamConnection implements ISelectorChannel {
+    public static final int NUM_FRAME_HEADER_BYTES = 12;    // int length, int destination port, int sender port
+    private static final int NUM_READ_BUFFER_BYTES = 65536;
+    private static final int HELLO = -1;                    // the destination port of a hello frame
+    private static final int MAX_NUM_GATHERED_FRAMES = 256;
+    private static final long INITIAL_REDIAL_DELAY_MILLIS = 10;
+    private static final long MAX_REDIAL_DELAY_MILLIS = 1000;
+    private final StreamNode _node;
+    private final SelectorEventLoop _eventLoop;
+    private final SocketAddress _remoteAddress;         // null for a connection the other node dialed
+    private final ScheduledExecutorService _redialTimer;
+    private final ByteBuffer _readBuffer;
+    private final ArrayDeque<ByteBuffer> _pendingWrites;
+    private final ByteBuffer[] _gatheredFrames;
+    private final Runnable _flushTask;
+    private boolean _isFlushScheduled;
+    private SocketChannel _channel;                     // replaced each time dialing is tried again
+    private boolean _isConnected;                       // only used by the event loop thread, like the key
+    private long _redialDelayMillis;
+    private SelectionKey _key;
+
+    /**
+     * Builds a frame that carries a payload from one villager to another
+     * @param destinationPort the port of the villager the frame is for
+     * @param senderPort the port of the villager sending the frame
+     * @param payload the payload bytes
+     * @return a buffer ready to be written
+     */
+    public static ByteBuffer makeFrame(int destinationPort, int senderPort, byte[] payload) {
+        ByteBuffer frame = ByteBuffer.allocate(NUM_FRAME_HEADER_BYTES + payload.length);
+        frame.putInt(payload.length).putInt(destinationPort).putInt(senderPort).put(payload);
+        return frame.flip();
+    }
+
+    /**
+     * Builds the frame a node sends first on a connection it dialed, so that the other node knows who it's talking to
+     * @param firstPort the port of the first villager within the dialing node
+     * @return a buffer ready to be written
+     */
+    public static ByteBuffer makeHelloFrame(int firstPort) {
+        return makeFrame(HELLO, firstPort, new byte[0]);
+    }
+
+    /**
+     * Constructs a connection around a connected, non-blocking channel. Nothing is read until startReading() is called.
+     * @param node the node that owns this connection
+     * @param eventLoop the event loop that reads from, and writes to, this connection
+     * @param channel the connected channel
+     */
+    public StreamConnection(StreamNode node, SelectorEventLoop eventLoop, SocketChannel channel) {
+        this(node, eventLoop, null, null);
+        _channel = channel;
+        _isConnected = true;
+    }
+
+    /**
+     * Constructs a connection to another node that hasn't been dialed yet. Frames can be sent straight away; they're
+     * queued until startDialing() has connected the channel.
+     * @param node the node that owns this connection
+     * @param eventLoop the event loop that dials, reads from, and writes to, this connection
+     * @param remoteAddress the socket file or TCP address the other node is listening on
+     * @param redialTimer runs a task once dialing must be tried again
+     */
+    public StreamConnection(StreamNode node, SelectorEventLoop eventLoop, SocketAddress remoteAddress,
+                            ScheduledExecutorService redialTimer) {
+        _node = node;
+        _eventLoop = eventLoop;
+        _remoteAddress = remoteAddress;
+        _redialTimer = redialTimer;
+        _redialDelayMillis = INITIAL_REDIAL_DELAY_MILLIS;
+        _readBuffer = ByteBuffer.allocateDirect(NUM_READ_BUFFER_BYTES);
+        _pendingWrites = new ArrayDeque<>();
+        _gatheredFrames = new ByteBuffer[MAX_NUM_GATHERED_FRAMES];
+        _flushTask = () -> {
+            try {
+                flushPendingWrites();
+            }
+            catch (IOException e) {
+                e.printStackTrace();
+                close();
+            }
+        };
+    }
+
+    /**
+     * Registers the channel with the event loop. From then on, frames are read and dispatched by the event loop thread.
+     */
+    public void startReading() {
+        _eventLoop.execute(() -> {
+            try {
+                synchronized (_pendingWrites) {
+                    int interestOps = _pendingWrites.isEmpty() ? SelectionKey.OP_READ :
+                            SelectionKey.OP_READ | SelectionKey.OP_WRITE;
+                    _key = _channel.register(_eventLoop.getSelector(), interestOps, this);
+                }
+            }
+            catch (ClosedChannelException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Dials the other node on the event loop thread, without blocking. Frames are read and dispatched once the channel
+     * has connected.
+     */
+    public void startDialing() {
+        _eventLoop.execute(this::dial);
+    }
+
+    /**
+     * Queues the frame to be written by the event loop, along with any other frames queued during the same tick.
+     * Frames are always written in the order given.
+     * @param frame the frame to write
+     */
+    public void send(ByteBuffer frame) {
+        synchronized (_pendingWrites) {
+            _pendingWrites.add(frame);
+            if (!_isFlushScheduled) {
+                _isFlushScheduled = true;
+                _eventLoop.execute(_flushTask);
+            }
+        }
+    }
+
+    /**
+     * Writes any queued frames, then reads and dispatches every whole frame that has arrived. The connection is closed
+     * if the other node closed it, or if it suffers a communication issue. Only called by the event loop thread.
+     * @param key the key whose channel is ready
+     * @param messagePool a pool, owned by the event loop, of messages to copy the payloads into
+     * @throws IOException if a reply to a dispatched message cannot be sent
+     */
+    @Override
+    public void serviceChannel(SelectionKey key, MessagePool messagePool) throws IOException {
+        if (key.isValid() && key.isConnectable()) {
+            try {
+                _channel.finishConnect();
+                finishDialing();
+            }
+            catch (IOException e) {
+                redialLater();      // nobody is listening yet
+            }
+            return;
+        }
+        try {
+            if (key.isValid() && key.isWritable()) {
+                flushPendingWrites();
+            }
+            if (key.isValid() && key.isReadable()) {
+                if (_channel.read(_readBuffer) < 0) {
+                    close();
+                    return;
+                }
+                dispatchFrames(messagePool);
+            }
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Dispatches every whole frame within the read buffer, then moves any partial frame to the start of the buffer. A
+     * frame whose payload can't be handled is dropped, and the frames after it are still dispatched.
+     * @param messagePool the pool to take messages from
+     * @throws IOException if a frame is too large, or a reply to a dispatched message cannot be sent
+     */
+    private void dispatchFrames(MessagePool messagePool) throws IOException {
+        _readBuffer.flip();
+        try {
+            while (_readBuffer.remaining() >= NUM_FRAME_HEADER_BYTES) {
+                int start = _readBuffer.position();
+                int length = _readBuffer.getInt(start);
+                if (length < 0 || length > NUM_READ_BUFFER_BYTES - NUM_FRAME_HEADER_BYTES) {
+                    throw new IOException("Received a frame with an invalid length of " + length);
+                }
+                if (_readBuffer.remaining() < NUM_FRAME_HEADER_BYTES + length) {
+                    break;
+                }
+                int destinationPort = _readBuffer.getInt(start + 4);
+                int senderPort = _readBuffer.getInt(start + 8);
+                try {
+                    if (destinationPort == HELLO) {
+                        _node.recordConnection(senderPort, this);
+                    }
+                    else {
+                        _node.dispatch(destinationPort, senderPort, _readBuffer, start + NUM_FRAME_HEADER_BYTES,
+                                length, messagePool);
+                    }
+                }
+                catch (RuntimeException e) {
+                    e.printStackTrace();
+                }
+                _readBuffer.position(start + NUM_FRAME_HEADER_BYTES + length);
+            }
+        }
+        finally {
+            _readBuffer.compact();      // always leave the buffer ready for the next read
+        }
+    }
+
+    /**
+     * Writes as many queued frames as the channel will take, gathering them into as few system calls as possible. If
+     * some are left over then the channel is watched for becoming writable again. Only called by the event loop thread.
+     * @throws IOException if the channel suffers a communication issue
+     */
+    private void flushPendingWrites() throws IOException {
+        synchronized (_pendingWrites) {
+            _isFlushScheduled = false;
+            if (!_isConnected) {
+                return;     // written once the channel has connected
+            }
+            while (!_pendingWrites.isEmpty()) {
+                int numFrames = 0;
+                for (ByteBuffer frame : _pendingWrites) {
+                    _gatheredFrames[numFrames++] = frame;
+                    if (numFrames == _gatheredFrames.length) {
+                        break;
+                    }
+                }
+                _channel.write(_gatheredFrames, 0, numFrames);
+                while (!_pendingWrites.isEmpty() && !_pendingWrites.peek().hasRemaining()) {
+                    _pendingWrites.remove();
+                }
+                if (_gatheredFrames[numFrames - 1].hasRemaining()) {
+                    break;  // the channel's send buffer is full
+                }
+            }
+            Arrays.fill(_gatheredFrames, null);
+            if (_key != null && _key.isValid()) {
+                _key.interestOps(_pendingWrites.isEmpty() ? SelectionKey.OP_READ :
+                        SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        }
+    }
+
+    /**
+     * Opens a non-blocking channel and starts connecting it to the other node. Only called by the event loop thread.
+     */
+    private void dial() {
+        try {
+            _channel = SocketChannel.open(_remoteAddress instanceof UnixDomainSocketAddress ?
+                    StandardProtocolFamily.UNIX : StandardProtocolFamily.INET);
+            _node.configure(_channel);
+            if (_channel.connect(_remoteAddress)) {
+                finishDialing();
+            }
+            else {
+                _key = _channel.register(_eventLoop.getSelector(), SelectionKey.OP_CONNECT, this);
+            }
+        }
+        catch (IOException e) {
+            redialLater();      // nobody is listening yet
+        }
+    }
+
+    /**
+     * Starts reading from a channel that has just connected, and writes the frames that were queued while it was
+     * connecting. Only called by the event loop thread.
+     * @throws IOException if the channel cannot be registered, or suffers a communication issue
+     */
+    private void finishDialing() throws IOException {
+        _isConnected = true;
+        _redialDelayMillis = INITIAL_REDIAL_DELAY_MILLIS;
+        if (_key == null) {
+            _key = _channel.register(_eventLoop.getSelector(), SelectionKey.OP_READ, this);
+        }
+        flushPendingWrites();       // also sets the interest set, now that the channel is connected
+    }
+
+    /**
+     * Throws away a channel that failed to connect, then dials again once the delay has passed. The delay doubles each
+     * time, up to a limit. Only called by the event loop thread.
+     */
+    private void redialLater() {
+        if (_key != null) {
+            _key.cancel();
+            _key = null;
+        }
+        try {
+            if (_channel != null) {
+                _channel.close();
+            }
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+        _redialTimer.schedule(() -> _eventLoop.execute(this::dial), _redialDelayMillis, TimeUnit.MILLISECONDS);
+        _redialDelayMillis = Math.min(MAX_REDIAL_DELAY_MILLIS, _redialDelayMillis * 2);
+    }
+
+    /**
+     * Closes the channel and tells the node to forget about this connection.
+     */
+    private void close() {
+        _node.forgetConnection(this);
+        if (_key != null) {
+            _key.cancel();
+        }
+        try {
+            _channel.close();
+        }
+        catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+}
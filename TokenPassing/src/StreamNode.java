@@ -0,0 +1,311 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+/**
+ * This class carries messages between nodes over stream sockets, either Unix domain sockets or TCP. There's one instance
+ * per JVM.
+ *
+ * Being a stream, neither kind of socket ever drops a message the way UDP does when a burst of tickets overflows a
+ * receive buffer, and messages always arrive in the order they were sent.
+ *
+ * Unix domain sockets skip the IP layer entirely, i.e. no checksums and no routing. They only work between processes
+ * on the same machine. Each node listens on a socket file named after the port of its first villager.
+ *
+ * TCP works between machines. I originally rejected TCP because each villager would have needed a connection to every
+ * other villager, but with one connection per pair of nodes it's no harder than Unix domain sockets. Each node listens
+ * on the TCP port of its first villager. Nagle's algorithm is turned off, because the connection batches frames itself.
+ *
+ * Either way, the file or port for any villager's node is worked out from the same portStart + index scheme that's used
+ * for UDP ports, i.e. villagers 0 to 4 belong to the node listening on portStart + 0, villagers 5 to 9 belong to the
+ * node listening on portStart + 5, and so on.
+ *
+ * There's one connection per pair of nodes. The first node that needs to send dials the other, and introduces itself
+ * with a hello frame. From then on both nodes send over that one connection. If both nodes happen to dial at the same
+ * time then each keeps using its own, which is harmless. Dialing never blocks the sending villager; see
+ * StreamConnection for how frames wait for the other node to start listening.
+ *
+ * Every frame is an int length, an int destination port, an int sender port, then the payload. The connections are
+ * registered with the SelectorEventLoop, which reads the frames and hands each one to the destination villager's
+ * Receiver.
+ */
+public class StreamNode implements ISelectorChannel {
+    private final SelectorEventLoop _eventLoop;
+    private final int _portStart;
+    private final int _firstPort;
+    private final ServerSocketChannel _serverChannel;
+    private final boolean _isTcp;
+    private final ConcurrentHashMap<Integer, StreamMessenger> _messengers;
+    private final ConcurrentHashMap<Integer, StreamConnection> _connections;
+    private final ScheduledExecutorService _redialTimer;
+
+    /**
+     * Creates this node's socket file and starts accepting connections from other nodes. Any file left over from a
+     * previous run is replaced, and the file is deleted when this JVM ends.
+     * @param eventLoop the event loop that services this node's connections
+     * @param portStart the port of the first villager within the first node
+     * @param firstPort the port of the first villager within this node
+     * @return a new node object
+     * @throws IOException if the socket file cannot be created
+     */
+    public static StreamNode makeUnixNode(SelectorEventLoop eventLoop, int portStart, int firstPort)
+            throws IOException {
+        Path path = makeSocketPath(firstPort);
+        Files.deleteIfExists(path);
+        ServerSocketChannel serverChannel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+        serverChannel.bind(UnixDomainSocketAddress.of(path));
+        path.toFile().deleteOnExit();
+        return new StreamNode(eventLoop, portStart, firstPort, serverChannel, false);
+    }
+
+    /**
+     * Binds this node's TCP port and starts accepting connections from other nodes
+     * @param eventLoop the event loop that services this node's connections
+     * @param localAddress an address on the local machine to bind to
+     * @param portStart the port of the first villager within the first node
+     * @param firstPort the port of the first villager within this node, which is the TCP port listened on
+     * @return a new node object
+     * @throws IOException if the TCP port cannot be bound
+     */
+    public static StreamNode makeTcpNode(SelectorEventLoop eventLoop, InetAddress localAddress, int portStart,
+                                         int firstPort) throws IOException {
+        ServerSocketChannel serverChannel = ServerSocketChannel.open(StandardProtocolFamily.INET);
+        serverChannel.bind(new InetSocketAddress(localAddress, firstPort));
+        return new StreamNode(eventLoop, portStart, firstPort, serverChannel, true);
+    }
+
+    /**
+     * This is private to force usage of the above public static methods. Their names dictate my intentions, a
+     * constructor does not.
+     * @param eventLoop the event loop that services this node's connections
+     * @param portStart the port of the first villager within the first node
+     * @param firstPort the port of the first villager within this node
+     * @param serverChannel a bound server channel
+     * @param isTcp true if the server channel is TCP, false if it's a Unix domain socket
+     * @throws IOException if the server channel cannot be made non-blocking
+     */
+    private StreamNode(SelectorEventLoop eventLoop, int portStart, int firstPort, ServerSocketChannel serverChannel,
+                       boolean isTcp) throws IOException {
+        _eventLoop = eventLoop;
+        _portStart = portStart;
+        _firstPort = firstPort;
+        _messengers = new ConcurrentHashMap<>();
+        _connections = new ConcurrentHashMap<>();
+        _serverChannel = serverChannel;
+        _serverChannel.configureBlocking(false);
+        _isTcp = isTcp;
+        _redialTimer = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "StreamNode");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        _eventLoop.execute(() -> {
+            try {
+                _serverChannel.register(_eventLoop.getSelector(), SelectionKey.OP_ACCEPT, this);
+            }
+            catch (ClosedChannelException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Builds a messenger for one villager within this node. This method has the same signature as
+     * IMessengerFactory.makeMessenger() so that it can be used as a factory.
+     * @param localAddress the address other villagers use for this villager
+     * @param port the port other villagers use for this villager
+     * @return a new messenger object
+     */
+    public IMessenger makeMessenger(InetAddress localAddress, int port) {
+        StreamMessenger messenger = new StreamMessenger(this, localAddress, port);
+        _messengers.put(port, messenger);
+        return messenger;
+    }
+
+    /**
+     * Runs the task on the event loop thread. Used by the LocalRouter to hand over local messages.
+     * @param task the code to run on the event loop thread
+     */
+    public void execute(Runnable task) {
+        _eventLoop.execute(task);
+    }
+
+    /**
+     * Accepts every connection that's waiting. Each one is registered with the event loop for reading. Only called by
+     * the event loop thread.
+     * @param key the server channel's key
+     * @param messagePool not used, accepting doesn't receive any messages
+     * @throws IOException if a connection cannot be accepted
+     */
+    @Override
+    public void serviceChannel(SelectionKey key, MessagePool messagePool) throws IOException {
+        SocketChannel channel;
+        while (key.isValid() && key.isAcceptable() && (channel = _serverChannel.accept()) != null) {
+            configure(channel);
+            new StreamConnection(this, _eventLoop, channel).startReading();
+        }
+    }
+
+    /**
+     * Sends the message to the node its destination villager belongs to, dialing that node if this is the first
+     * message for it. If that node isn't listening yet then the message waits until it is.
+     * @param senderPort the port of the sending villager
+     * @param message contains the destination port and the data to send
+     */
+    void send(int senderPort, Message message) {
+        StreamConnection connection = findConnection(message.getAddress(), findFirstPort(message.getPort()));
+        connection.send(StreamConnection.makeFrame(message.getPort(), senderPort, message.getPayloadBytes()));
+    }
+
+    /**
+     * Copies a received payload into a pooled message and hands it to the destination villager's Receiver. A token
+     * that's too large for a pooled message is copied into a message of its own instead. Frames for villagers that have
+     * stopped receiving are dropped. Only called by the event loop thread.
+     * @param destinationPort the port of the villager the frame is for
+     * @param senderPort the port of the villager that sent the frame
+     * @param frames the connection's read buffer
+     * @param payloadOffset where the payload starts within the read buffer
+     * @param payloadLength the number of payload bytes
+     * @param messagePool the pool to take the message from
+     * @throws IOException if a reply cannot be sent
+     */
+    void dispatch(int destinationPort, int senderPort, ByteBuffer frames, int payloadOffset, int payloadLength,
+                  MessagePool messagePool) throws IOException {
+        StreamMessenger messenger = _messengers.get(destinationPort);
+        if (messenger == null) {
+            return;
+        }
+        IMessageHandler handler = messenger.getHandler();
+        if (handler == null || handler.mustShutdown()) {
+            return;
+        }
+
+        if (payloadLength > UdpMessenger.NUM_RECEIVE_BUFFER_BYTES) {
+            ByteBuffer payload = ByteBuffer.allocate(payloadLength).put(0, frames, payloadOffset, payloadLength);
+            handler.handleMessage(Message.fromByteBuffer(new InetSocketAddress(messenger.getMyAddress(), senderPort),
+                    payload));
+            return;
+        }
+
+        Message message = messagePool.acquire();
+        try {
+            ByteBuffer buffer = message.getReceiveBuffer();
+            buffer.put(0, frames, payloadOffset, payloadLength).position(payloadLength);
+            message.wrapReceived(messenger.getMyAddress(), senderPort);
+            handler.handleMessage(message);
+        }
+        finally {
+            message.release();
+        }
+    }
+
+    /**
+     * Records the connection as the one to use for a node that dialed this node. If this node has already dialed that
+     * node then its own connection is kept.
+     * @param firstPort the port of the first villager within the other node
+     * @param connection the connection the other node dialed
+     */
+    void recordConnection(int firstPort, StreamConnection connection) {
+        _connections.putIfAbsent(firstPort, connection);
+    }
+
+    /**
+     * Forgets a connection that has been closed, so that the next message dials the other node again.
+     * @param connection the closed connection
+     */
+    void forgetConnection(StreamConnection connection) {
+        _connections.values().remove(connection);
+    }
+
+    /**
+     * Finds the connection to another node, dialing it if there isn't one yet. Dialing is done by the event loop, so
+     * this never blocks; the hello frame is queued first, and the caller's frames queue up behind it.
+     * @param address the address of a villager within the other node
+     * @param firstPort the port of the first villager within the other node
+     * @return the connection
+     */
+    private StreamConnection findConnection(InetAddress address, int firstPort) {
+        StreamConnection connection = _connections.get(firstPort);
+        if (connection != null) {
+            return connection;
+        }
+        return _connections.computeIfAbsent(firstPort, port -> {
+            StreamConnection dialed = new StreamConnection(this, _eventLoop, makeNodeAddress(address, port),
+                    _redialTimer);
+            dialed.send(StreamConnection.makeHelloFrame(_firstPort));
+            dialed.startDialing();
+            return dialed;
+        });
+    }
+
+    /**
+     * Makes a channel non-blocking, and turns off Nagle's algorithm if it's TCP
+     * @param channel a connected channel, or one that's about to connect
+     * @throws IOException if the channel cannot be configured
+     */
+    void configure(SocketChannel channel) throws IOException {
+        channel.configureBlocking(false);
+        if (_isTcp) {
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        }
+    }
+
+    /**
+     * Works out where another node is listening
+     * @param address the address of a villager within the other node
+     * @param firstPort the port of the first villager within the other node
+     * @return the socket file or TCP address the other node is listening on
+     */
+    private SocketAddress makeNodeAddress(InetAddress address, int firstPort) {
+        if (_isTcp) {
+            return new InetSocketAddress(address, firstPort);
+        }
+        return UnixDomainSocketAddress.of(makeSocketPath(firstPort));
+    }
+
+    /**
+     * Works out the port of the first villager within the node a villager belongs to
+     * @param port the villager's port
+     * @return the port of the first villager within the villager's node
+     */
+    private int findFirstPort(int port) {
+        int index = port - _portStart;
+        return _portStart + index - index % Villager.NUM_VILLAGERS_PER_NODE;
+    }
+
+    /**
+     * Works out the name of a node's socket file
+     * @param firstPort the port of the first villager within the node
+     * @return the path of the socket file
+     */
+    private static Path makeSocketPath(int firstPort) {
+        return Paths.get(System.getProperty("java.io.tmpdir"), "RicartAgrawala" + firstPort + ".sock");
+    }
+}
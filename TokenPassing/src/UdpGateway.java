@@ -0,0 +1,262 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * This class is the one UDP endpoint of a node. There's one instance per JVM.
+ *
+ * With the other UDP transports every villager binds a port of its own, and every villager sends directly to every
+ * other villager's port. That's a socket, a port and a pair of kernel buffers per villager, and the count grows with
+ * every villager added to a node. With this class a node has just two sockets, however many villagers it has. One is
+ * bound to the port of the node's first villager, and receives the datagrams for every villager within the node. The
+ * other sends this node's datagrams to the other nodes' gateways.
+ *
+ * A villager is still known by portStart + index, but that port is never bound. Instead the villager's node is worked
+ * out from its index, i.e. villagers 0 to 4 belong to the gateway on portStart + 0, villagers 5 to 9 belong to the
+ * gateway on portStart + 5, and so on. Each datagram names the villagers it's for by index, and the receiving gateway
+ * hands it to each of them. The sending villager is named by index too, so a receiver sees the same port for it as it
+ * would with the other UDP transports.
+ *
+ * Each datagram is laid out in network byte order as:
+ *      offset 0    2 bytes     magic number, the characters 'RG'
+ *      offset 2    2 bytes     sending villager's index
+ *      offset 4    1 byte      number of destination villagers
+ *      offset 5    2 bytes     each destination villager's index
+ *      then the payload
+ *
+ * The gateway's receive buffer holds the largest possible datagram, so unlike the UdpMessenger a token is never split
+ * into fragments. A broadcast costs one datagram per other node rather than one per other villager, because every destination within
+ * a node is named in the one datagram. The receive channel is registered with the SelectorEventLoop, which reads the
+ * datagrams and hands each one to the destination villagers' Receivers.
+ */
+public class UdpGateway implements ISelectorChannel {
+    public static final short MAGIC = 0x5247;
+    private static final int NUM_HEADER_BYTES = 5;
+    private static final int NUM_RECEIVE_BUFFER_BYTES = 65536;      // the largest possible datagram
+    private final SelectorEventLoop _eventLoop;
+    private final int _portStart;
+    private final DatagramChannel _receiveChannel;
+    private final DatagramChannel _sendChannel;
+    private final ByteBuffer _receiveBuffer;
+    private final ConcurrentHashMap<Integer, UdpGatewayMessenger> _messengers;     // keyed by villager index
+
+    /**
+     * Binds this node's gateway. Nothing is received until start() is called.
+     * @param eventLoop the event loop that services this node's receive channel
+     * @param localAddress an address on the local machine to bind to
+     * @param portStart the port of the first villager within the first node
+     * @param firstPort the port of the first villager within this node, which the gateway binds to
+     * @throws IOException if the channels cannot be bound
+     */
+    public UdpGateway(SelectorEventLoop eventLoop, InetAddress localAddress, int portStart, int firstPort)
+            throws IOException {
+        _eventLoop = eventLoop;
+        _portStart = portStart;
+        _messengers = new ConcurrentHashMap<>();
+        _receiveBuffer = ByteBuffer.allocateDirect(NUM_RECEIVE_BUFFER_BYTES);
+
+        _receiveChannel = DatagramChannel.open();
+        _receiveChannel.bind(new InetSocketAddress(localAddress, firstPort));
+        _receiveChannel.configureBlocking(false);
+
+        // sending blocks the calling villager rather than the event loop, the same as the UdpMessenger
+        _sendChannel = DatagramChannel.open();
+        _sendChannel.bind(new InetSocketAddress(localAddress, 0));
+    }
+
+    /**
+     * Starts receiving, by registering the receive channel with the event loop. Datagrams for villagers that haven't
+     * been built yet are dropped.
+     */
+    public void start() {
+        _eventLoop.execute(() -> {
+            try {
+                _receiveChannel.register(_eventLoop.getSelector(), SelectionKey.OP_READ, this);
+            }
+            catch (ClosedChannelException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Builds a messenger for one villager within this node. This method has the same signature as
+     * IMessengerFactory.makeMessenger() so that it can be used as a factory.
+     * @param localAddress the address other villagers use for this villager
+     * @param port the port other villagers use for this villager
+     * @return a new messenger object
+     */
+    public IMessenger makeMessenger(InetAddress localAddress, int port) {
+        UdpGatewayMessenger messenger = new UdpGatewayMessenger(this, localAddress, port);
+        _messengers.put(port - _portStart, messenger);
+        return messenger;
+    }
+
+    /**
+     * Runs the task on the event loop thread. Used by the LocalRouter to hand over local messages.
+     * @param task the code to run on the event loop thread
+     */
+    public void execute(Runnable task) {
+        _eventLoop.execute(task);
+    }
+
+    /**
+     * Sends the message to the gateway of the node its destination villager belongs to
+     * @param senderPort the port of the sending villager
+     * @param message contains the destination address, the destination port, and the data to send
+     * @throws IOException if the send channel suffers a communication issue
+     */
+    void send(int senderPort, Message message) throws IOException {
+        byte[] payloadBytes = message.getPayloadBytes();
+        ByteBuffer datagram = ByteBuffer.allocate(NUM_HEADER_BYTES + 2 + payloadBytes.length);
+        datagram.putShort(MAGIC)
+                .putChar((char)(senderPort - _portStart))
+                .put((byte)1)
+                .putChar((char)(message.getPort() - _portStart))
+                .put(payloadBytes)
+                .flip();
+        _sendChannel.send(datagram, findGateway(message.getAddress(), message.getPort()));
+    }
+
+    /**
+     * Encodes the payload once, then sends one datagram to each node that has villagers within the table. Each datagram
+     * names every villager within that node that the payload is for.
+     * @param senderPort the port of the sending villager
+     * @param payload the data to send
+     * @param peers the addresses of villagers, in ascending order of port
+     * @param skip the index within the table of the villager to leave out
+     * @throws IOException if the send channel suffers a communication issue
+     */
+    void broadcast(int senderPort, Payload payload, InetSocketAddress[] peers, int skip) throws IOException {
+        byte[] payloadBytes = payload.encode();
+        int first = 0;
+        while (first < peers.length) {
+            if (first == skip) {
+                ++first;
+                continue;
+            }
+            InetSocketAddress gateway = findGateway(peers[first].getAddress(), peers[first].getPort());
+            int last = first + 1;
+            int numNamed = 1;
+            while (last < peers.length && numNamed < 255 && (last == skip ||
+                    findGateway(peers[last].getAddress(), peers[last].getPort()).equals(gateway))) {
+                if (last++ != skip) {
+                    ++numNamed;
+                }
+            }
+
+            ByteBuffer datagram = ByteBuffer.allocate(NUM_HEADER_BYTES + 2 * numNamed + payloadBytes.length);
+            datagram.putShort(MAGIC)
+                    .putChar((char)(senderPort - _portStart))
+                    .put((byte)numNamed);
+            for (int i = first; i < last; ++i) {
+                if (i != skip) {
+                    datagram.putChar((char)(peers[i].getPort() - _portStart));
+                }
+            }
+            datagram.put(payloadBytes).flip();
+            _sendChannel.send(datagram, gateway);
+            first = last;
+        }
+    }
+
+    /**
+     * Reads every datagram that's waiting on the receive channel, and hands each one to the villagers it names. Only
+     * called by the event loop thread.
+     * @param key the receive channel's key
+     * @param messagePool a pool, owned by the event loop, of messages to copy the payloads into
+     * @throws IOException if the receive channel suffers a communication issue, or a reply cannot be sent
+     */
+    @Override
+    public void serviceChannel(SelectionKey key, MessagePool messagePool) throws IOException {
+        while (key.isValid() && key.isReadable()) {
+            _receiveBuffer.clear();
+            InetSocketAddress sender = (InetSocketAddress)_receiveChannel.receive(_receiveBuffer);
+            if (sender == null) {
+                break;
+            }
+            _receiveBuffer.flip();
+            if (_receiveBuffer.remaining() < NUM_HEADER_BYTES || _receiveBuffer.getShort(0) != MAGIC) {
+                continue;   // not from a gateway
+            }
+            int senderPort = _portStart + _receiveBuffer.getChar(2);
+            int numDestinations = _receiveBuffer.get(4) & 0xFF;
+            int payloadOffset = NUM_HEADER_BYTES + 2 * numDestinations;
+            if (payloadOffset > _receiveBuffer.limit()) {
+                continue;
+            }
+            for (int i = 0; i < numDestinations; ++i) {
+                dispatch(_receiveBuffer.getChar(NUM_HEADER_BYTES + 2 * i), sender.getAddress(), senderPort,
+                        payloadOffset, _receiveBuffer.limit() - payloadOffset, messagePool);
+            }
+        }
+    }
+
+    /**
+     * Copies a received payload into a pooled message and hands it to the destination villager's Receiver. A token
+     * that's too large for a pooled message is copied into a message of its own instead. Datagrams for villagers that
+     * have stopped receiving are dropped.
+     * @param destinationIndex the index of the villager the payload is for
+     * @param senderAddress the address of the sending villager's node
+     * @param senderPort the port of the sending villager
+     * @param payloadOffset where the payload starts within the receive buffer
+     * @param payloadLength the number of payload bytes
+     * @param messagePool the pool to take the message from
+     * @throws IOException if a reply cannot be sent
+     */
+    private void dispatch(int destinationIndex, InetAddress senderAddress, int senderPort, int payloadOffset,
+                          int payloadLength, MessagePool messagePool) throws IOException {
+        UdpGatewayMessenger messenger = _messengers.get(destinationIndex);
+        if (messenger == null) {
+            return;
+        }
+        IMessageHandler handler = messenger.getHandler();
+        if (handler == null || handler.mustShutdown()) {
+            return;
+        }
+
+        if (payloadLength > UdpMessenger.NUM_RECEIVE_BUFFER_BYTES) {
+            ByteBuffer payload = ByteBuffer.allocate(payloadLength).put(0, _receiveBuffer, payloadOffset, payloadLength);
+            handler.handleMessage(Message.fromByteBuffer(new InetSocketAddress(senderAddress, senderPort), payload));
+            return;
+        }
+
+        Message message = messagePool.acquire();
+        try {
+            ByteBuffer buffer = message.getReceiveBuffer();
+            buffer.put(0, _receiveBuffer, payloadOffset, payloadLength).position(payloadLength);
+            message.wrapReceived(senderAddress, senderPort);
+            handler.handleMessage(message);
+        }
+        finally {
+            message.release();
+        }
+    }
+
+    /**
+     * Works out the address of the gateway of the node a villager belongs to
+     * @param address the villager's address
+     * @param port the villager's port
+     * @return the address and port of the villager's node's gateway
+     */
+    private InetSocketAddress findGateway(InetAddress address, int port) {
+        int index = port - _portStart;
+        return new InetSocketAddress(address, _portStart + index - index % Villager.NUM_VILLAGERS_PER_NODE);
+    }
+}
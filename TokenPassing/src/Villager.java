@@ -12,11 +12,13 @@
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Objects;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BooleanSupplier;
 
 /**
  * This class provides the ability for a villager to enter the mini mart mutually exclusively.
@@ -30,7 +32,7 @@ import java.util.concurrent.CountDownLatch;
  * The thread can end as soon as it's finished shopping 3 times. As long as it notifies all other villagers that it's
  * shutting down there will be no side effects to the RA algorithm.
  */
-public class Villager extends Thread implements IVillager, IRequestsMiniMartAccess {
+public class Villager implements Runnable, IVillager, IRequestsMiniMartAccess {
     public static final int NUM_VILLAGERS_PER_NODE = 5;
     public static final int MAX_NUM_TIMES_SHOPPED = 3;
     private static final int MIN_SHOPPING_TIME = 1000; // just to keep it interesting
@@ -44,55 +46,93 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
     private final int _portStart;
     private final int _totalVillagers;
     private final VillagerAddress _myId;
+    private final NodeTables _nodeTables;   // shared by every villager within this node
     private final Random _random;
-    private final int[] _villagerRequestList;
-    private final boolean[] _villagerHasFinishedShopping;
-    private int[] _villagerGrantedList;
+    private int _tokenHop;
 
     private int _numTimesShopped;
     private boolean _requestingMiniMartAccess; // essentially it means 'are we in the critical section?'
     private String _token;
     private final Receiver _receiver;
+    private final ReentrantLock _lock;
+    private final Condition _stateChanged;
+    private volatile PublishedState _published;     // what the Receiver reads, without taking the lock
+    private final WaitStrategy _waitStrategy;
+    private final BooleanSupplier _hasToken;        // made once, not once per wait
 
     /**
-     * Constructs an instance of a villager. Villager objects within a node don't share any data via memory. They're
-     * intentionally self-contained.
+     * The part of this villager's state that the Receiver bases its decisions upon, as one object that's never changed
+     * once made. The Villager thread and Receiver thread make a new one, while holding the lock, every time any of
+     * these values change. Readers use whichever one was published last, through a volatile reference, so they never
+     * wait for the lock, however long another thread holds it while sending the token.
+     *
+     * Whether the token is held is worked out once, when the token changes, rather than comparing strings every time
+     * the Receiver asks.
+     */
+    private static final class PublishedState {
+        private final boolean _requestingMiniMartAccess;
+        private final String _token;
+        private final boolean _hasToken;
+
+        /**
+         * Constructs a snapshot of the Villager's state
+         * @param requestingMiniMartAccess whether the villager is requesting mini mart access
+         * @param token the token, or null if the villager doesn't possess it
+         */
+        PublishedState(boolean requestingMiniMartAccess, String token) {
+            _requestingMiniMartAccess = requestingMiniMartAccess;
+            _token = token;
+            _hasToken = Objects.equals(token, MAGICAL_TOKEN_VALUE);     // checks for null before calling .equals()
+        }
+    }
+
+    /**
+     * Constructs an instance of a villager. Villager objects within a node only share the node's tables, which hold
+     * facts that are the same whichever villager learns them. Otherwise they're intentionally self-contained.
      * @param done an object to signal when this villager is finished
+     * @param executor runs the Receiver, if the messenger needs one
+     * @param waitStrategy how the Villager thread waits to be granted the token
+     * @param nodeTables the tables shared by every villager within this node
+     * @param messengerFactory builds the messenger this villager uses to talk to the other villagers
      * @param ipAddress an address on the local machine to bind to
      * @param portStart the first value in a contiguous range of port values
      * @param totalVillagers how many villagers are part of the simulation
      * @param id the unique index of this villager
      * @throws IOException if the passed in IP address is unable to be bound to
      */
-    public Villager(CountDownLatch done, String ipAddress, int portStart, int totalVillagers, int id) throws IOException {
+    public Villager(CountDownLatch done, Executor executor, WaitStrategy waitStrategy, NodeTables nodeTables,
+                    IMessengerFactory messengerFactory, String ipAddress, int portStart, int totalVillagers, int id)
+            throws IOException {
         _done = done;
+        _lock = new ReentrantLock();
+        _stateChanged = _lock.newCondition();
+        _waitStrategy = waitStrategy;
+        _hasToken = this::hasToken;
         _portStart = portStart;
         _random = new Random();
         _numTimesShopped = 0;
         _totalVillagers = totalVillagers;
         _requestingMiniMartAccess = false;
 
-        _villagerRequestList = new int[totalVillagers];
-        _villagerGrantedList = new int[totalVillagers];
-        _villagerHasFinishedShopping = new boolean[totalVillagers];
-        Arrays.fill(_villagerRequestList, 0);
-        Arrays.fill(_villagerGrantedList, 0);
-        Arrays.fill(_villagerHasFinishedShopping, false);
+        _nodeTables = nodeTables;
+        _tokenHop = Payload.NO_TOKEN_HOP;
 
         _myId = new VillagerAddress(InetAddress.getByName(ipAddress), portStart + id, id);
-        _messenger = new UdpMessenger(InetAddress.getByName(ipAddress), portStart + id);
+        _messenger = messengerFactory.makeMessenger(InetAddress.getByName(ipAddress), portStart + id);
 
         // I chose to make villager 0 possess the token first
         if (id == 0) {
             _token = MAGICAL_TOKEN_VALUE;
-            _villagerRequestList[id] = 1;
+            _tokenHop = 0;
+            _nodeTables.incrementRequestCount(id);
             System.out.println(_myId.getDisplayString() + "has the token.");
         }
-
-        setName("Villager" + id);
+        publishState();
 
         _receiver = new Receiver(_messenger, this);
-        _receiver.start();
+        if (!_messenger.startReceiving(_receiver)) {
+            executor.execute(_receiver);    // this messenger needs a thread to sit inside its receive() method
+        }
     }
 
     /**
@@ -108,6 +148,7 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
      */
     @Override
     public void run() {
+        Thread.currentThread().setName("Villager" + _myId.getIndex());
         try {
             // the core loop. this only loops thrice.
             while (hasNotFinishedShopping()) {
@@ -150,64 +191,72 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
      * Retrieves the address of this villager.
      *
      * Used by the Payload class and Receiver class. The Payload class is used by the Receiver thread and the Villager
-     * thread, hence this method is synchronised.
+     * thread, but the address never changes once constructed, so there's nothing to lock.
      * @return the address of this villager
      */
     @Override
-    public synchronized VillagerAddress getMyId() {
+    public VillagerAddress getMyId() {
         return _myId;
     }
 
     /**
      * Determines whether this villager has the token or not
      *
-     * Used by both the Villager thread and the Receiver thread, hence this method is synchronised.
+     * Used by both the Villager thread and the Receiver thread, hence the answer is read from the published state
+     * rather than taking the lock.
      * @return true if this villager has the token, false otherwise
      */
     @Override
-    public synchronized boolean hasToken() {
-        // Objects.equals() checks for null before calling .equals()
-        return Objects.equals(getToken(), MAGICAL_TOKEN_VALUE);
+    public boolean hasToken() {
+        return _published._hasToken;
     }
 
     /**
      * Retrieves the token if it's possessed by this villager
      *
-     * Used by both the Villager thread and the Receiver thread, hence this method is synchronised.
+     * Used by both the Villager thread and the Receiver thread, hence the token is read from the published state rather
+     * than taking the lock.
      * @return the token as a string, or null if the token is not possessed
      */
     @Override
-    public synchronized String getToken() {
-        return _token;
+    public String getToken() {
+        return _published._token;
     }
 
     /**
      * Updates internal storage to indicate that a villager has finished shopping.
      *
-     * Only called by the Receiver thread, but the Villager thread reads the values of _villagerHasFinishedShopping,
-     * hence this method is synchronised.
+     * Only called by the Receiver thread. The finished shopping set is shared by the node and has a lock of its own,
+     * but the Villager thread must be woken while holding our lock, hence this method holds the lock.
      * @param message a message received from another villager
      */
     @Override
-    public synchronized void recordFinishedShopping(Message message) {
-        if (message.getVillagerIndex() >= 0 && message.getVillagerIndex() < _totalVillagers) {
-            _villagerHasFinishedShopping[message.getVillagerIndex()] = true;
-            notifyAll();        // Unblock waiting threads
+    public void recordFinishedShopping(Message message) {
+        _lock.lock();
+        try {
+            if (message.getVillagerIndex() >= 0 && message.getVillagerIndex() < _totalVillagers) {
+                _nodeTables.recordFinishedShopping(message.getVillagerIndex());
+                _stateChanged.signalAll();    // Unblock waiting threads
+            }
+        }
+        finally {
+            _lock.unlock();
         }
     }
 
     /**
-     * Updates internal storage to indicate that a villager has requested the token
+     * Updates internal storage to indicate that a villager has requested the token. The hop of the last token that
+     * villager received is also recorded, so that we know which granted entries to send it if we choose it.
      *
-     * Only called by the Receiver thread, but the Villager thread reads the values of _villagerRequestList, hence this
-     * method is synchronised.
+     * Only called by the Receiver thread. The request list is shared by the node, and protected by the node's tables
+     * rather than our lock, so this method doesn't hold the lock.
      * @param message a message received from another villager
      */
     @Override
-    public synchronized void recordRequestForToken(Message message) {
+    public void recordRequestForToken(Message message) {
         int i = message.getVillagerIndex();
         if (i >= 0 && i < _totalVillagers) {
-            _villagerRequestList[i] = Math.max(_villagerRequestList[i], message.getRequestCount());
+            _nodeTables.recordRequest(i, message.getRequestCount(), message.getTokenHop());
         }
     }
 
@@ -215,24 +264,32 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
      * Updates internal storage to indicate that a villager has received the token, and updates the granted list. This
      * method also nudges the monitor that's implemented in the waitUntilGrantedTheToken() method.
      *
-     * Only called by the Receiver thread, but the Villager thread reads the values of _token and _villagerGrantedList,
-     * hence this method is synchronised.
+     * Only called by the Receiver thread, but the Villager thread reads the values of _token and _tokenHop, hence this
+     * method holds the lock. The granted list is shared by the node, and protected by the node's tables.
      * @param message a message received from another villager
      */
     @Override
-    public synchronized void recordTokenAndGrantedList(Message message) {
-        if (message.getVillagerIndex() < 0 || message.getVillagerIndex() >= _totalVillagers) {
-            return;
-        }
-        if (Objects.equals(message.getToken(), MAGICAL_TOKEN_VALUE)) {
-            _token = message.getToken();
-            _villagerGrantedList = message.getGrantedList().clone(); // copy the values, not the ref
+    public void recordTokenAndGrantedList(Message message) {
+        _lock.lock();
+        try {
+            if (message.getVillagerIndex() < 0 || message.getVillagerIndex() >= _totalVillagers) {
+                return;
+            }
+            if (Objects.equals(message.getToken(), MAGICAL_TOKEN_VALUE)) {
+                _token = message.getToken();
+                _tokenHop = message.getTokenHop();
+                _nodeTables.mergeGrantedList(message);
+                publishState();     // only once the token's state is whole, a spinning villager may leave its wait
 
-            VillagerAddress from = new VillagerAddress(_messenger.getMyAddress(),
-                    _portStart + message.getVillagerIndex(), message.getVillagerIndex());
-            System.out.println(_myId.getDisplayString() + "received the token from " + from.getDisplayString());
+                VillagerAddress from = new VillagerAddress(_messenger.getMyAddress(),
+                        _portStart + message.getVillagerIndex(), message.getVillagerIndex());
+                System.out.println(_myId.getDisplayString() + "received the token from " + from.getDisplayString());
 
-            notifyAll();        // Unblock waiting threads
+                _stateChanged.signalAll();    // Unblock waiting threads
+            }
+        }
+        finally {
+            _lock.unlock();
         }
     }
 
@@ -241,100 +298,126 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
      * @throws IOException if the token cannot be sent to another villager
      */
     @Override
-    public synchronized void sendTokenToAnotherVillager() throws IOException {
-        if (!hasToken()) { // don't bother if we don't have the token
-            return;
-        }
+    public void sendTokenToAnotherVillager() throws IOException {
+        _lock.lock();
+        try {
+            // don't bother if we don't have the token. the Receiver thread decided to send it without taking the lock,
+            // so check again that we haven't started requesting mini mart access since, or we'd give away a token
+            // we're about to use
+            if (!hasToken() || _requestingMiniMartAccess) {
+                return;
+            }
 
-        // if this is only villager instance left, then -1 will be returned from this method because we can't choose
-        // ourselves when randomly choosing a villager. for this case we don't need to send the token anywhere, just
-        // hang onto it and iterate through the main loop again.
-        int i = chooseAnotherVillagerRandomly();
-        if (i < 0) {
-            return;
-        }
+            // if this is only villager instance left, then -1 will be returned from this method because we can't choose
+            // ourselves when randomly choosing a villager. for this case we don't need to send the token anywhere, just
+            // hang onto it and iterate through the main loop again.
+            int i = chooseAnotherVillagerRandomly();
+            if (i < 0) {
+                return;
+            }
 
-        VillagerAddress to = new VillagerAddress(_messenger.getMyAddress(), _portStart + i, i);
+            VillagerAddress to = new VillagerAddress(_messenger.getMyAddress(), _portStart + i, i);
 
-        System.out.println(_myId.getDisplayString() + "sending the token to " + to.getDisplayString());
-        sendMessageToVillager(to, Payload.makeTokenAndGrantedList(this, _villagerGrantedList));
+            System.out.println(_myId.getDisplayString() + "sending the token to " + to.getDisplayString());
 
-        relinquishToken(); // clears internal state
+            // the receiver told us the hop of the last token it received, so it only needs the entries changed since
+            // then
+            ++_tokenHop;
+            sendMessageToVillager(to, _nodeTables.makeTokenAndGrantedList(this, _tokenHop, i));
+
+            relinquishToken(); // clears internal state
+        }
+        finally {
+            _lock.unlock();
+        }
     }
 
     /**
      * Determines if this villager is NOT requesting mini mart access.
      *
      * Only called by the Receiver thread, but the Villager thread writes the value of _requestingMiniMartAccess, hence
-     * this method is synchronised.
+     * the answer is read from the published state rather than taking the lock.
      * @return true if this villager is NOT requesting mini mart access, false otherwise
      */
     @Override
     public boolean isNotRequestingMiniMartAccess() {
-        return !_requestingMiniMartAccess;
+        return !_published._requestingMiniMartAccess;
     }
 
     /**
      * Updates internal storage to indicate that this villager has started to request mini mart access.
      *
      * Only called by the MiniMartAccess class as part of the core loop above. The Receiver thread will read the value
-     * of _requestingMiniMartAccess via the call to isNotRequestingMiniMartAccess(), hence this method is synchronised.
+     * of _requestingMiniMartAccess via the call to isNotRequestingMiniMartAccess(), hence this method holds the lock.
      */
     @Override
-    public synchronized void startRequestingMiniMartAccess() {
-        _requestingMiniMartAccess = true;
+    public void startRequestingMiniMartAccess() {
+        _lock.lock();
+        try {
+            _requestingMiniMartAccess = true;
+            publishState();
+        }
+        finally {
+            _lock.unlock();
+        }
     }
 
     /**
      * Updates internal storage to indicate that this villager has stopped requesting mini mart access.
      *
      * Only called by the MiniMartAccess class as part of the core loop above. The Receiver thread will read the value
-     * of _requestingMiniMartAccess via the call to isNotRequestingMiniMartAccess(), hence this method is synchronised.
+     * of _requestingMiniMartAccess via the call to isNotRequestingMiniMartAccess(), hence this method holds the lock.
      */
     @Override
-    public synchronized void stopRequestingMiniMartAccess() {
-        _requestingMiniMartAccess = false;
-        System.out.println(_myId.getDisplayString() + "exited the Mini Mart " +
-                _numTimesShopped + "/" + MAX_NUM_TIMES_SHOPPED + ". Letting the next villager in.");
+    public void stopRequestingMiniMartAccess() {
+        _lock.lock();
+        try {
+            _requestingMiniMartAccess = false;
+            publishState();
+            System.out.println(_myId.getDisplayString() + "exited the Mini Mart " +
+                    _numTimesShopped + "/" + MAX_NUM_TIMES_SHOPPED + ". Letting the next villager in.");
+        }
+        finally {
+            _lock.unlock();
+        }
     }
 
     /**
-     * Clears knowledge of the token.
+     * Publishes the current values of _requestingMiniMartAccess and _token for the Receiver to read. Called whenever
+     * one of them changes, while holding the lock, so that snapshots are published in the same order the changes were
+     * made. It's called after everything that goes with the change, so whoever sees the snapshot sees all of it too.
      */
-    private synchronized void relinquishToken() {
-        _token = null;
+    private void publishState() {
+        _published = new PublishedState(_requestingMiniMartAccess, _token);
     }
 
     /**
-     * Chooses another villager by collecting all villagers that are requesting a token, then randomly choosing one of
-     * them. This does not prevent starvation in any way, nor is it trying to. The expectation of this method is to
-     * use a uniform distribution to choose a villager randomly.
-     * @return the index of villager that is requesting the token
+     * Clears knowledge of the token.
      */
-    private int chooseAnotherVillagerRandomly() {
-        final ArrayList<Integer> villagers = new ArrayList<>();
-        for (int i = 0; i < _totalVillagers; ++i) {
-            if (isVillagerRequestingToken(i)) {
-                villagers.add(i);
-            }
+    private void relinquishToken() {
+        _lock.lock();
+        try {
+            _token = null;
+            publishState();
         }
-        if (villagers.isEmpty()) { // will happen when this villager is the last villager
-            return -1;
+        finally {
+            _lock.unlock();
         }
-        return villagers.get(_random.nextInt(villagers.size()));
     }
 
     /**
-     * Determines if a villager is requesting a token. True is returned if the index is not this villager, is not for a
-     * villager that has finished shopping, and is for a villager that has more requests for the token than grants for
-     * the token.
-     * @param i the index of a villager to test
-     * @return true if the villager is requesting a token, false otherwise
+     * Chooses another villager randomly from all villagers that are requesting a token. This does not prevent
+     * starvation in any way, nor is it trying to. The expectation of this method is to use a uniform distribution to
+     * choose a villager randomly.
+     *
+     * A villager is requesting a token if it's not this villager, it hasn't finished shopping, and it has more
+     * requests for the token than grants for the token. The node's tables keep the last of those up to date as a set of
+     * bits, so the villagers are counted and chosen a word of 64 at a time rather than one at a time.
+     * @return the index of villager that is requesting the token, or -1 if there isn't one
      */
-    private boolean isVillagerRequestingToken(int i) {
-        return i != _myId.getIndex() &&                             // don't send it to myself
-               !_villagerHasFinishedShopping[i] &&                  // don't bother if they're finished
-               _villagerRequestList[i] > _villagerGrantedList[i];   // more requests than grants?
+    private int chooseAnotherVillagerRandomly() {
+        // will return -1 when this villager is the last villager
+        return _nodeTables.chooseWaitingVillager(_myId.getIndex(), _random);
     }
 
     /**
@@ -358,7 +441,7 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
      * Determines if this villager has NOT finished shopping.
      *
      * Only called by the Receiver thread, but the Villager thread writes the value of _numTimesShopped, hence this
-     * method is synchronised.
+     * method holds the lock.
      * @return true if this villager has finished shopping, false otherwise
      */
     private boolean hasNotFinishedShopping() {
@@ -370,63 +453,81 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
      * which this application ends.
      *
      * Only called by the above core loop, but the Receiver thread reads the value of _numTimesShopped via the
-     * hasNotFinishedShopping() method, hence this method is synchronised.
+     * hasNotFinishedShopping() method, hence this method holds the lock.
      * @throws IOException if the message can't be sent
      */
-    private synchronized void incrementShoppingCount() throws IOException {
-        if (++_numTimesShopped >= MAX_NUM_TIMES_SHOPPED) {
-            System.out.println(_myId.getDisplayString() + "finished all their shopping.");
-            _villagerHasFinishedShopping[_myId.getIndex()] = true;
-
-            // we must let other villagers know that we're finished shopping. this will allow them to exit their calls
-            // to the waitForOtherVillagersToFinishShopping() method and end their process.
-            tellOtherVillagersIveFinishedShopping();
+    private void incrementShoppingCount() throws IOException {
+        _lock.lock();
+        try {
+            if (++_numTimesShopped >= MAX_NUM_TIMES_SHOPPED) {
+                System.out.println(_myId.getDisplayString() + "finished all their shopping.");
+                _nodeTables.recordFinishedShopping(_myId.getIndex());
+
+                // we must let other villagers know that we're finished shopping. this will allow them to exit their
+                // calls to the waitForOtherVillagersToFinishShopping() method and end their process.
+                tellOtherVillagersIveFinishedShopping();
+            }
+        }
+        finally {
+            _lock.unlock();
         }
     }
 
     /**
      * Increments internal state to indicate a new request for the token
      *
-     * Only called above by the core loop. The Receiver thread reads the value of the _villagerRequestList array, hence
-     * this method is synchronised.
+     * Only called above by the core loop. The request list is shared by the node, and protected by the node's tables
+     * rather than our lock, so this method doesn't hold the lock.
      */
-    private synchronized void incrementMyRequestCount() {
-        ++_villagerRequestList[_myId.getIndex()];
+    private void incrementMyRequestCount() {
+        _nodeTables.incrementRequestCount(_myId.getIndex());
     }
 
     /**
      * Updates internal state to indicate that a token has been granted
      *
-     * Only called above by the core loop. The Receiver thread reads the value of the _villagerRequestList array, hence
-     * this method is synchronised.
+     * Only called above by the core loop. The Receiver thread writes the value of _tokenHop, hence this method holds
+     * the lock. The granted list is shared by the node, and protected by the node's tables.
      */
-    private synchronized void updateGrantedCount() {
-        _villagerGrantedList[_myId.getIndex()] = _villagerRequestList[_myId.getIndex()];
+    private void updateGrantedCount() {
+        _lock.lock();
+        try {
+            _nodeTables.recordGrant(_myId.getIndex(), _tokenHop + 1);    // the hop of the next token we send
+        }
+        finally {
+            _lock.unlock();
+        }
     }
 
     /**
      * For each iteration of the core loop where the villager does not possess the token, this method is called to block
-     * the Villager thread until a token is granted. This is a core part of the Ricart-Agrawala algorithm. This method
-     * implements the Monitor pattern.
+     * the Villager thread until a token is granted. This is a core part of the Ricart-Agrawala algorithm. How it waits
+     * is up to the wait strategy, which implements the Monitor pattern once it has stopped spinning.
      *
-     * The _token array is accessed by the Receiver thread, hence this method is synchronised.
+     * The _token variable is written by the Receiver thread while holding the lock, and it signals _stateChanged once
+     * the token has been published. hasToken() reads the published state, so it can be checked while spinning.
      */
-    private synchronized void waitUntilGrantedTheToken() {
-        // Monitor the _token variable
-        while (!hasToken()) {
-            try {
-                wait();
-            }
-            catch (InterruptedException ignored) { }
-        }
+    private void waitUntilGrantedTheToken() {
+        _waitStrategy.waitUntil(_hasToken, _lock, _stateChanged);
     }
 
     /**
-     * Informs all other villagers that this villager is requesting the token.
+     * Informs all other villagers that this villager is requesting the token. The request includes the hop of the last
+     * token this villager received.
+     *
+     * The Receiver thread writes the value of _tokenHop, hence the payload is built while holding the lock.
      * @throws IOException if the message can't be sent
      */
     private void requestTheTokenFromOtherVillagers() throws IOException {
-        sendMessageToOtherVillagers(Payload.makeRequestForToken(this, _villagerRequestList[_myId.getIndex()]));
+        Payload payload;
+        _lock.lock();
+        try {
+            payload = Payload.makeRequestForToken(this, _nodeTables.getRequestCount(_myId.getIndex()), _tokenHop);
+        }
+        finally {
+            _lock.unlock();
+        }
+        sendMessageToOtherVillagers(payload);
     }
 
     /**
@@ -440,8 +541,9 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
     }
 
     /**
-     * Uses the messenger object to physically put bytes on the wire for another villager to read. All socket errors are
-     * swallowed, but printed to the console window.
+     * Uses the messenger object to physically put bytes on the wire for another villager to read. The messenger only
+     * queues the message, so this is cheap enough to call while holding the lock. All socket errors are swallowed, but
+     * printed to the console window.
      * @throws IOException if the message can't be sent
      */
     private void sendMessageToVillager(VillagerAddress to, Payload payload) throws IOException {
@@ -460,11 +562,14 @@ public class Villager extends Thread implements IVillager, IRequestsMiniMartAcce
      * @throws IOException if the message can't be sent
      */
     private void sendMessageToOtherVillagers(Payload payload) throws IOException {
-        for (int i = 0; i < _totalVillagers; ++i) {
-            if (i != _myId.getIndex()) { // be sure to skip ourselves when looping
-                VillagerAddress to = new VillagerAddress(_messenger.getMyAddress(), _portStart + i, i);
-                sendMessageToVillager(to, payload);
-            }
+        try {
+            // encodes the payload once, not once per villager, and leaves us out
+            _messenger.broadcast(payload, _nodeTables.getVillagerAddresses(), _myId.getIndex());
+            _messenger.flush();     // the end of a burst
+        }
+        catch (SocketException e) {
+            System.out.println("Caught exception [" + e.getLocalizedMessage() +
+                    "] when sending a message to the other villagers");
         }
     }
 }
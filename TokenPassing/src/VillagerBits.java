@@ -0,0 +1,126 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.util.Random;
+
+/**
+ * This class holds one bit per villager, packed 64 to a long. A villager uses it in place of a boolean array, which
+ * takes a byte per villager, so a villager's state for every other villager takes an eighth of the memory.
+ *
+ * More importantly, questions about every villager at once are answered a word at a time rather than a villager at a
+ * time. Counting is done with Long.bitCount(), and finding a set bit with Long.numberOfTrailingZeros(), both of which
+ * are single instructions on most CPUs.
+ *
+ * This class isn't thread safe. Its owner protects it with its own lock.
+ */
+public class VillagerBits {
+    private final long[] _words;
+
+    /**
+     * Constructs a set with every bit clear
+     * @param numBits how many villagers there are
+     */
+    public VillagerBits(int numBits) {
+        _words = new long[(numBits + 63) >>> 6];
+    }
+
+    /**
+     * Sets a villager's bit
+     * @param i the index of the villager
+     */
+    public void set(int i) {
+        _words[i >>> 6] |= 1L << i;
+    }
+
+    /**
+     * Clears a villager's bit
+     * @param i the index of the villager
+     */
+    public void clear(int i) {
+        _words[i >>> 6] &= ~(1L << i);
+    }
+
+    /**
+     * Sets or clears a villager's bit
+     * @param i the index of the villager
+     * @param value true to set the bit, false to clear it
+     */
+    public void set(int i, boolean value) {
+        if (value) {
+            set(i);
+        }
+        else {
+            clear(i);
+        }
+    }
+
+    /**
+     * Takes the index of the lowest set bit, clearing it at the same time
+     * @return the index of a villager, or -1 if every bit is clear
+     */
+    public int takeLowest() {
+        for (int w = 0; w < _words.length; ++w) {
+            if (_words[w] != 0) {
+                int bit = Long.numberOfTrailingZeros(_words[w]);
+                _words[w] &= _words[w] - 1;     // clears the lowest set bit
+                return (w << 6) + bit;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Chooses one of the villagers whose bit is set within this set, but not within the excluded set, with every one
+     * of them equally likely. The first pass counts them a word at a time, and the second pass goes straight to the
+     * word holding the chosen one.
+     * @param excluded villagers that must not be chosen, the same size as this set
+     * @param self a villager that must not be chosen either
+     * @param random the source of randomness
+     * @return the index of the chosen villager, or -1 if there's nobody to choose
+     */
+    public int chooseRandomly(VillagerBits excluded, int self, Random random) {
+        int count = 0;
+        for (int w = 0; w < _words.length; ++w) {
+            count += Long.bitCount(candidates(excluded, self, w));
+        }
+        if (count == 0) {
+            return -1;
+        }
+
+        int n = random.nextInt(count);
+        for (int w = 0; ; ++w) {
+            long word = candidates(excluded, self, w);
+            int inWord = Long.bitCount(word);
+            if (n < inWord) {
+                for (int j = 0; j < n; ++j) {
+                    word &= word - 1;           // clears the lowest set bit
+                }
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            }
+            n -= inWord;
+        }
+    }
+
+    /**
+     * Returns the bits of one word that may be chosen by chooseRandomly()
+     * @param excluded villagers that must not be chosen
+     * @param self a villager that must not be chosen either
+     * @param w the index of the word
+     * @return the bits of the word that are set here, clear within the excluded set, and aren't self
+     */
+    private long candidates(VillagerBits excluded, int self, int w) {
+        long word = _words[w] & ~excluded._words[w];
+        if (self >>> 6 == w) {
+            word &= ~(1L << self);
+        }
+        return word;
+    }
+}
@@ -0,0 +1,163 @@
+/**
+ * Designed and written by Damian Coventry
+ * Copyright (c) 2022, all rights reserved
+ *
+ * Massey University
+ * 159.355 Concurrent Systems
+ * Assignment 3
+ * 2022 Semester 1
+ *
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BooleanSupplier;
+
+/**
+ * This class decides how a Villager thread waits for something another thread will do for it. There's one instance
+ * per JVM, chosen by the user, and shared by every villager.
+ *
+ * Blocking on a Condition means the thread that makes the change must unpark the waiter, and the scheduler must put it
+ * back onto a core, which takes microseconds and sometimes a whole scheduling quantum. If the change is only
+ * moments away, it's quicker to keep checking for it. So a wait goes through up to three phases: spinning with
+ * Thread.onSpinWait() between checks, then yielding the core between checks, then blocking on the Condition. Each phase
+ * only lasts as long as its budget, and the last phase can be left out altogether, in which case the thread spins
+ * until the change is made.
+ *
+ * The spinning and yielding phases check without holding the lock, so whatever they check must be readable without
+ * it, e.g. a volatile field. The blocking phase checks while holding the lock, so the change must be made, and the
+ * Condition signalled, while holding the lock too. Otherwise the signal could be missed.
+ *
+ * Counts are kept of which phase each wait ended in, so that the Main class can report whether the budgets suit the
+ * traffic.
+ */
+public class WaitStrategy {
+    public static final long ADAPTIVE_SPIN_NANOS = 20_000;
+    public static final long ADAPTIVE_YIELD_NANOS = 200_000;
+
+    private final long _spinNanos;
+    private final long _yieldNanos;
+    private final boolean _mayBlock;
+    private final AtomicLong _numAlreadySatisfied;
+    private final AtomicLong _numSatisfiedSpinning;
+    private final AtomicLong _numSatisfiedYielding;
+    private final AtomicLong _numSatisfiedBlocked;
+
+    /**
+     * Constructs a strategy with no waits counted yet
+     * @param spinNanos how long to spin before yielding, in nanoseconds
+     * @param yieldNanos how long to yield before blocking, in nanoseconds
+     * @param mayBlock false to spin forever rather than yield or block
+     */
+    private WaitStrategy(long spinNanos, long yieldNanos, boolean mayBlock) {
+        _spinNanos = spinNanos;
+        _yieldNanos = yieldNanos;
+        _mayBlock = mayBlock;
+        _numAlreadySatisfied = new AtomicLong();
+        _numSatisfiedSpinning = new AtomicLong();
+        _numSatisfiedYielding = new AtomicLong();
+        _numSatisfiedBlocked = new AtomicLong();
+    }
+
+    /**
+     * Makes a strategy that blocks straight away, just as the villagers always have
+     * @return the strategy
+     */
+    public static WaitStrategy makeBlocking() {
+        return new WaitStrategy(0, 0, true);
+    }
+
+    /**
+     * Makes a strategy that spins, then yields, then blocks
+     * @return the strategy
+     */
+    public static WaitStrategy makeAdaptive() {
+        return new WaitStrategy(ADAPTIVE_SPIN_NANOS, ADAPTIVE_YIELD_NANOS, true);
+    }
+
+    /**
+     * Makes a strategy that never stops spinning. Each waiting villager keeps a core busy, so this only suits a node
+     * with a core to spare for every villager, and platform threads.
+     * @return the strategy
+     */
+    public static WaitStrategy makeBusySpinning() {
+        return new WaitStrategy(0, 0, false);
+    }
+
+    /**
+     * Waits until the condition is satisfied. Called by any Villager thread.
+     * @param isSatisfied checks the condition, without needing the lock
+     * @param lock the lock held by whoever satisfies the condition
+     * @param changed signalled, while holding the lock, when the condition may have been satisfied
+     */
+    public void waitUntil(BooleanSupplier isSatisfied, Lock lock, Condition changed) {
+        if (isSatisfied.getAsBoolean()) {
+            _numAlreadySatisfied.incrementAndGet();
+            return;
+        }
+
+        long start = System.nanoTime();
+        while (!_mayBlock || System.nanoTime() - start < _spinNanos) {
+            Thread.onSpinWait();
+            if (isSatisfied.getAsBoolean()) {
+                _numSatisfiedSpinning.incrementAndGet();
+                return;
+            }
+        }
+        while (System.nanoTime() - start < _spinNanos + _yieldNanos) {
+            Thread.yield();
+            if (isSatisfied.getAsBoolean()) {
+                _numSatisfiedYielding.incrementAndGet();
+                return;
+            }
+        }
+
+        lock.lock();
+        try {
+            // Monitor the condition
+            while (!isSatisfied.getAsBoolean()) {
+                try {
+                    changed.await();
+                }
+                catch (InterruptedException ignored) { }
+            }
+        }
+        finally {
+            lock.unlock();
+        }
+        _numSatisfiedBlocked.incrementAndGet();
+    }
+
+    /**
+     * Returns how many waits were satisfied before they began
+     * @return the number of waits that didn't wait at all so far
+     */
+    public long getNumAlreadySatisfied() {
+        return _numAlreadySatisfied.get();
+    }
+
+    /**
+     * Returns how many waits were satisfied while spinning
+     * @return the number of waits that ended while spinning so far
+     */
+    public long getNumSatisfiedSpinning() {
+        return _numSatisfiedSpinning.get();
+    }
+
+    /**
+     * Returns how many waits were satisfied while yielding
+     * @return the number of waits that ended while yielding so far
+     */
+    public long getNumSatisfiedYielding() {
+        return _numSatisfiedYielding.get();
+    }
+
+    /**
+     * Returns how many waits had to block
+     * @return the number of waits that ended blocked so far
+     */
+    public long getNumSatisfiedBlocked() {
+        return _numSatisfiedBlocked.get();
+    }
+}